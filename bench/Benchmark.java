@@ -0,0 +1,308 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Micro-benchmarks for the parts of query processing that are sensitive to
+ * implementation choices. Each benchmark compares the alternatives that the
+ * search engine can still choose between, runs a warm-up phase so that the
+ * JIT compiler has settled, and then reports the average time per operation.
+ * The benchmarks of each feature are in their own class (QueryBenchmarks,
+ * ScoreBenchmarks, MatchBenchmarks and IndexBenchmarks); this class selects
+ * one and holds what they share. Run it to see a simple usage message.
+ * <p>
+ * The benchmarks are not part of the search engine. They are compiled
+ * against its classes, e.g.:
+ * </p>
+ *
+ * <pre>
+ *    cd bench; make
+ *    java -cp "bench:src:src/lucene-4.3.0/*" Benchmark -mode score ...
+ * </pre>
+ * <p>
+ * The query file has the same format as the QryEval query file (qid:query),
+ * so real (e.g., expanded) queries can be used.
+ * </p>
+ */
+public class Benchmark {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String USAGE = "Usage:  java Benchmark -mode MODE -queries QUERY_FILE [options]\n\n"
+			+ "where MODE is one of\n"
+			+ "    parse\t\tparse each query with QryParser.getQuery\n"
+			+ "    plan\t\tmatch and score each query with and without\n"
+			+ "\t\t\tQryPlanner (requires -param)\n"
+			+ "    share\t\tmatch and score each query with and without\n"
+			+ "\t\t\tshared inverted lists for repeated terms and\n"
+			+ "\t\t\tsubtrees (requires -param)\n"
+			+ "    score\t\tmatch and score each query with QrySop.getScore,\n"
+			+ "\t\t\ta compiled QryScorer and a generated QryScorer\n"
+			+ "\t\t\t(requires -param)\n"
+			+ "    kernels\t\tscore the postings of the query terms with the\n"
+			+ "\t\t\tscalar and the fastest ScoreKernels (requires a\n"
+			+ "\t\t\tBM25 or Indri -param)\n"
+			+ "    intersect\t\tintersect the inverted lists of the terms of each\n"
+			+ "\t\t\tquery with the scalar and the fastest DocidKernels\n"
+			+ "\t\t\t(requires -param)\n"
+			+ "    docset\t\tmatch each query with docIterators and with\n"
+			+ "\t\t\tdocsets, with and without DocSetCache (requires an\n"
+			+ "\t\t\tUnrankedBoolean -param)\n"
+			+ "    postings\t\tread the inverted lists of the query terms with\n"
+			+ "\t\t\tand without positions (requires -index or -param)\n"
+			+ "    lengths\t\tlook up the body lengths of the documents in the\n"
+			+ "\t\t\tinverted lists of the query terms with a merged\n"
+			+ "\t\t\tMultiDocValues view, per document and per block\n"
+			+ "\t\t\t(requires -param)\n"
+			+ "    invlists\t\tmatch and score each query with and without\n"
+			+ "\t\t\tInvListCache (requires -param)\n\n"
+			+ "and options include\n"
+			+ "    -index INDEX_PATH\topen an index first\n"
+			+ "    -param PARAM_FILE\topen the index and use the retrieval model\n"
+			+ "\t\t\tof a QryEval parameter file\n"
+			+ "    -iterations N\tmeasured passes over the queries (default 20)\n"
+			+ "    -warmup N\t\twarm-up passes over the queries (default 5)\n";
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * One pass of a benchmark over its inputs.
+	 */
+	interface Pass {
+
+		/**
+		 * Run the pass.
+		 *
+		 * @return The results of the pass (e.g., match counts and scores),
+		 *         so that the work isn't optimized away and so that the
+		 *         results of alternatives can be compared.
+		 * @throws IOException
+		 *             Error accessing the Lucene index.
+		 */
+		double[] run() throws IOException;
+	}
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param args
+	 *            Command line arguments; see USAGE.
+	 * @throws Exception
+	 *             Error accessing the index or the query file.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String, String> options = new HashMap<String, String>();
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("-")) {
+				throw new IllegalArgumentException(USAGE);
+			}
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+
+		if (!options.containsKey("mode") || !options.containsKey("queries")) {
+			throw new IllegalArgumentException(USAGE);
+		}
+
+		RetrievalModel model = null;
+
+		if (options.containsKey("param")) {
+			Map<String, String> parameters = QryEval.readParameterFile(options.get("param"));
+			Idx.open(parameters.get("indexPath"));
+			model = QryEval.initializeRetrievalModel(parameters);
+		} else if (options.containsKey("index")) {
+			Idx.open(options.get("index"));
+		}
+
+		List<String> queries = readQueries(options.get("queries"));
+		int warmup = options.containsKey("warmup") ? Integer.parseInt(options.get("warmup")) : 5;
+		int iterations = options.containsKey("iterations") ? Integer.parseInt(options.get("iterations")) : 20;
+		String mode = options.get("mode");
+
+		if (mode.equals("parse")) {
+			QueryBenchmarks.parse(queries, warmup, iterations);
+		} else if (mode.equals("plan") && (model != null)) {
+			QueryBenchmarks.plan(queries, model, warmup, iterations);
+		} else if (mode.equals("share") && (model != null)) {
+			QueryBenchmarks.share(queries, model, warmup, iterations);
+		} else if (mode.equals("score") && (model != null)) {
+			ScoreBenchmarks.score(queries, model, warmup, iterations);
+		} else if (mode.equals("kernels")
+				&& ((model instanceof RetrievalModelBM25) || (model instanceof RetrievalModelIndri))) {
+			ScoreBenchmarks.kernels(queries, model, warmup, iterations);
+		} else if (mode.equals("intersect") && (model != null)) {
+			MatchBenchmarks.intersect(queries, model, warmup, iterations);
+		} else if (mode.equals("docset") && (model instanceof RetrievalModelUnrankedBoolean)) {
+			MatchBenchmarks.docSet(queries, model, warmup, iterations);
+		} else if (mode.equals("postings")) {
+			IndexBenchmarks.postings(queries, warmup, iterations);
+		} else if (mode.equals("lengths") && (model != null)) {
+			IndexBenchmarks.lengths(queries, model, warmup, iterations);
+		} else if (mode.equals("invlists") && (model != null)) {
+			IndexBenchmarks.invListCache(queries, model, warmup, iterations);
+		} else {
+			throw new IllegalArgumentException("Unknown benchmark " + mode + "\n\n" + USAGE);
+		}
+	}
+
+	/**
+	 * Time a pass: run it warmup times, then time iterations runs, and
+	 * print the total and the average time per operation.
+	 *
+	 * @param name
+	 *            The name of the alternative that the pass measures.
+	 * @param pass
+	 *            The pass.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @param operations
+	 *            The number of operations in one pass.
+	 * @param units
+	 *            What the operations are (e.g., "queries").
+	 * @return The results of the last pass.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static double[] measure(String name, Pass pass, int warmup, int iterations, long operations, String units)
+			throws IOException {
+
+		double[] results = null;
+
+		for (int i = 0; i < warmup; i++) {
+			pass.run();
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+
+		for (int i = 0; i < iterations; i++) {
+			results = pass.run();
+		}
+
+		timer.stop();
+
+		long n = (long) iterations * operations;
+
+		System.out.println(name + ":  " + timer + " for " + n + " " + units + ", "
+				+ String.format("%.3f", timer.getNanos() / 1000.0 / Math.max(1, n)) + " us/op");
+		return results;
+	}
+
+	/**
+	 * Parse queries with the default query operator of a retrieval model.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @return The queries that aren't empty.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static List<Qry> parseQueries(List<String> queries, RetrievalModel model) throws IOException {
+
+		List<Qry> parsed = new ArrayList<Qry>();
+
+		for (String query : queries) {
+			Qry q = QryParser.getQuery(model.defaultQrySopName() + "(" + query + ")");
+
+			if ((q != null) && (q.args.size() > 0)) {
+				parsed.add(q);
+			}
+		}
+
+		return parsed;
+	}
+
+	/**
+	 * Match and score each query once.
+	 *
+	 * @param queries
+	 *            Parsed queries.
+	 * @param model
+	 *            The retrieval model.
+	 * @return For each query, the number of matches, the sum of the matching
+	 *         docids, and the sum of the scores.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static double[] scoreAll(List<Qry> queries, RetrievalModel model) throws IOException {
+
+		double[] results = new double[3 * queries.size()];
+
+		for (int i = 0; i < queries.size(); i++) {
+			Qry q = queries.get(i);
+			QrySop sop = (QrySop) q;
+
+			q.initialize(model);
+
+			while (q.docIteratorHasMatch(model)) {
+				int docid = q.docIteratorGetMatch();
+
+				results[3 * i]++;
+				results[3 * i + 1] += docid;
+				results[3 * i + 2] += sop.getScore(model);
+				q.docIteratorAdvancePast(docid);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Collect the inverted lists of the SCORE operators in a query.
+	 *
+	 * @param q
+	 *            An initialized query.
+	 * @param lists
+	 *            The inverted lists.
+	 */
+	static void collectInvLists(Qry q, List<InvList> lists) {
+
+		if (q instanceof QrySopScore) {
+			lists.add(((QryIop) q.args.get(0)).invertedList);
+		} else {
+			for (Qry arg : q.args) {
+				collectInvLists(arg, lists);
+			}
+		}
+	}
+
+	/**
+	 * Read a query file. Lines have the form qid:query.
+	 *
+	 * @param path
+	 *            The query file.
+	 * @return The query strings.
+	 * @throws IOException
+	 *             Error reading the file.
+	 */
+	private static List<String> readQueries(String path) throws IOException {
+
+		List<String> queries = new ArrayList<String>();
+		BufferedReader input = new BufferedReader(new FileReader(path));
+
+		try {
+			String qLine;
+
+			while ((qLine = input.readLine()) != null) {
+				int d = qLine.indexOf(':');
+
+				if (d < 0) {
+					throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+				}
+
+				queries.add(qLine.substring(d + 1));
+			}
+		} finally {
+			input.close();
+		}
+
+		return queries;
+	}
+}
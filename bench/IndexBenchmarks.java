@@ -0,0 +1,212 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ * Benchmarks of reading the index: inverted lists with and without
+ * positions, document lengths, and the InvListCache. See Benchmark.
+ */
+class IndexBenchmarks {
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Measure reading the inverted lists of the query terms with positions
+	 * and without them (docids and term frequencies only).
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void postings(List<String> queries, int warmup, int iterations) throws IOException {
+
+		final List<String> terms = new ArrayList<String>();
+
+		for (String query : queries) {
+			for (String token : query.split("[\\s()]+")) {
+				if ((token.length() > 0) && !token.startsWith("#") && !token.matches("[0-9.]+")) {
+					terms.add(token);
+				}
+			}
+		}
+
+		for (final boolean positions : new boolean[] { true, false }) {
+			double[] ctf = Benchmark.measure(positions ? "with positions" : "docs and freqs", new Benchmark.Pass() {
+				public double[] run() throws IOException {
+					return new double[] { readPostings(terms, positions) };
+				}
+			}, warmup, iterations, terms.size(), "lists");
+
+			System.out.println("  ctf:  " + (long) ctf[0]);
+		}
+	}
+
+	/**
+	 * Read the inverted lists of some terms.
+	 *
+	 * @param terms
+	 *            Query terms, optionally with a .field suffix.
+	 * @param positions
+	 *            Whether positions are read.
+	 * @return The total ctf of the lists, so that the work isn't optimized
+	 *         away.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static long readPostings(List<String> terms, boolean positions) throws IOException {
+
+		long ctf = 0;
+
+		for (String term : terms) {
+			int dot = term.lastIndexOf('.');
+			String field = (dot > 0) ? term.substring(dot + 1) : "body";
+			String[] stems = QryParser.tokenizeString((dot > 0) ? term.substring(0, dot) : term);
+
+			for (String stem : stems) {
+				ctf += new InvList(stem, field, positions).ctf;
+			}
+		}
+
+		return ctf;
+	}
+
+	/**
+	 * Measure document length lookups for the postings of the query terms:
+	 * through Lucene's merged MultiDocValues view of the norms, with
+	 * Idx.getFieldLength for each document, and with Idx.getFieldLengths for
+	 * a block of documents.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model, which is used to initialize the query.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void lengths(List<String> queries, RetrievalModel model, int warmup, int iterations) throws IOException {
+
+		final List<int[]> lists = new ArrayList<int[]>();
+		long postings = 0;
+
+		for (Qry q : Benchmark.parseQueries(queries, model)) {
+			q.initialize(model);
+
+			List<InvList> invLists = new ArrayList<InvList>();
+
+			Benchmark.collectInvLists(q, invLists);
+
+			for (InvList list : invLists) {
+				lists.add(list.getDocids());
+				postings += list.df;
+			}
+		}
+
+		final NumericDocValues merged = MultiDocValues.getNormValues(Idx.INDEXREADER, "body");
+		String[] names = { "MultiDocValues", "getFieldLength", "getFieldLengths" };
+
+		for (int k = 0; k < names.length; k++) {
+			final int method = k;
+			double[] sum = Benchmark.measure(names[k], new Benchmark.Pass() {
+				public double[] run() throws IOException {
+					return new double[] { sumLengths(lists, merged, method) };
+				}
+			}, warmup, iterations, postings, "lookups");
+
+			System.out.println("  sum:  " + sum[0]);
+		}
+	}
+
+	/**
+	 * Sum the body lengths of the documents in some inverted lists.
+	 *
+	 * @param lists
+	 *            Docids of inverted lists.
+	 * @param merged
+	 *            Merged norms of the body field.
+	 * @param method
+	 *            0 for the merged norms, 1 for Idx.getFieldLength, 2 for
+	 *            Idx.getFieldLengths.
+	 * @return The sum of the lengths.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static double sumLengths(List<int[]> lists, NumericDocValues merged, int method) throws IOException {
+
+		double sum = 0;
+		double[] lengths = new double[ScoreKernels.BLOCK_SIZE];
+
+		for (int[] docids : lists) {
+			for (int start = 0; start < docids.length; start += lengths.length) {
+				int n = Math.min(lengths.length, docids.length - start);
+
+				if (method == 2) {
+					Idx.getFieldLengths("body", docids, start, n, lengths);
+				} else {
+					for (int i = 0; i < n; i++) {
+						lengths[i] = (method == 0) ? merged.get(docids[start + i])
+								: Idx.getFieldLength("body", docids[start + i]);
+					}
+				}
+
+				for (int i = 0; i < n; i++) {
+					sum += lengths[i];
+				}
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Measure matching and scoring each query with the InvListCache disabled
+	 * and enabled (warm), and check that both produce the same matches and
+	 * scores.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void invListCache(List<String> queries, final RetrievalModel model, int warmup, int iterations)
+			throws IOException {
+
+		final List<Qry> parsed = Benchmark.parseQueries(queries, model);
+		String[] names = { "no cache", "InvListCache" };
+		long[] capacities = { 0, InvListCache.DEFAULT_CAPACITY };
+		double[][] results = new double[names.length][];
+
+		for (int k = 0; k < names.length; k++) {
+			InvListCache.clear();
+			InvListCache.setCapacity(capacities[k]);
+
+			results[k] = Benchmark.measure(names[k], new Benchmark.Pass() {
+				public double[] run() throws IOException {
+					return Benchmark.scoreAll(parsed, model);
+				}
+			}, warmup, iterations, parsed.size(), "queries");
+		}
+
+		System.out.println("Same matches and scores:  " + Arrays.equals(results[0], results[1]));
+		System.out.println(InvListCache.getStatistics());
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks of matching: intersecting docid arrays with DocidKernels, and
+ * Boolean matching with docsets and the DocSetCache. See Benchmark.
+ */
+class MatchBenchmarks {
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Measure the intersection of the inverted lists of the terms of each
+	 * query, as a Boolean #and of the terms would do it, with the scalar and
+	 * the fastest DocidKernels.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model, which is used to initialize the query.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void intersect(List<String> queries, RetrievalModel model, int warmup, int iterations)
+			throws IOException {
+
+		final List<InvList[]> conjunctions = new ArrayList<InvList[]>();
+		long postings = 0;
+
+		for (Qry q : Benchmark.parseQueries(queries, model)) {
+			q.initialize(model);
+
+			List<InvList> lists = new ArrayList<InvList>();
+
+			Benchmark.collectInvLists(q, lists);
+
+			if (lists.size() > 1) {
+				Collections.sort(lists, new Comparator<InvList>() {
+					public int compare(InvList a, InvList b) {
+						return Integer.compare(a.df, b.df);
+					}
+				});
+
+				for (InvList list : lists) {
+					postings += list.df;
+				}
+
+				conjunctions.add(lists.toArray(new InvList[lists.size()]));
+			}
+		}
+
+		for (final DocidKernels kernels : new DocidKernels[] { DocidKernels.SCALAR, DocidKernels.INSTANCE }) {
+			double[] matches = Benchmark.measure(kernels.toString(), new Benchmark.Pass() {
+				public double[] run() {
+					return new double[] { intersect(conjunctions, kernels) };
+				}
+			}, warmup, iterations, postings, "postings");
+
+			System.out.println("  matches:  " + (long) matches[0]);
+		}
+	}
+
+	/**
+	 * Intersect the inverted lists of each conjunction.
+	 *
+	 * @param conjunctions
+	 *            Inverted lists, shortest first.
+	 * @param kernels
+	 *            The kernels to intersect docid arrays with.
+	 * @return The total number of matching documents.
+	 */
+	private static long intersect(List<InvList[]> conjunctions, DocidKernels kernels) {
+
+		long matches = 0;
+
+		for (InvList[] lists : conjunctions) {
+			int[] docids = lists[0].getDocids().clone();
+			int n = docids.length;
+
+			for (int i = 1; (i < lists.length) && (n > 0); i++) {
+				n = kernels.intersect(docids, n, lists[i].getDocids(), lists[i].df, docids);
+			}
+
+			matches += n;
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Measure matching with docIterators over inverted lists against
+	 * matching with docsets, as QryEval.processQuery does for the
+	 * UnrankedBoolean retrieval model: cold (the DocSetCache is cleared
+	 * before each query) and warm.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void docSet(List<String> queries, final RetrievalModel model, int warmup, int iterations)
+			throws IOException {
+
+		final List<Qry> parsed = Benchmark.parseQueries(queries, model);
+		String[] names = { "docIterator", "DocSet (cold)", "DocSet (warm)" };
+
+		for (int k = 0; k < names.length; k++) {
+			final int method = k;
+			double[] matches = Benchmark.measure(names[k], new Benchmark.Pass() {
+				public double[] run() throws IOException {
+					return new double[] { matchAll(parsed, model, method) };
+				}
+			}, warmup, iterations, parsed.size(), "queries");
+
+			System.out.println("  matches:  " + (long) matches[0]);
+		}
+
+		System.out.println(DocSetCache.getStatistics());
+	}
+
+	/**
+	 * Match each query once.
+	 *
+	 * @param queries
+	 *            Parsed queries.
+	 * @param model
+	 *            The retrieval model.
+	 * @param method
+	 *            0 for docIterators, 1 for docsets with a cleared cache, 2
+	 *            for docsets.
+	 * @return The total number of matching documents.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static long matchAll(List<Qry> queries, RetrievalModel model, int method) throws IOException {
+
+		long matches = 0;
+
+		for (Qry q : queries) {
+			if (method == 0) {
+				q.initialize(model);
+
+				while (q.docIteratorHasMatch(model)) {
+					matches++;
+					q.docIteratorAdvancePast(q.docIteratorGetMatch());
+				}
+			} else {
+				if (method == 1) {
+					DocSetCache.clear();
+				}
+
+				DocSet docs = q.getDocSet(model);
+
+				matches += (docs == null) ? 0 : docs.cardinality();
+			}
+		}
+
+		return matches;
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks of building query trees: parsing (QryParser), planning
+ * (QryPlanner), and sharing the inverted lists of repeated terms and
+ * subtrees. See Benchmark.
+ */
+class QueryBenchmarks {
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Measure the time to parse each query.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void parse(final List<String> queries, int warmup, int iterations) throws IOException {
+
+		long chars = 0;
+
+		for (String query : queries) {
+			chars += query.length();
+		}
+
+		Benchmark.measure("parse", new Benchmark.Pass() {
+			public double[] run() throws IOException {
+				double parsed = 0;
+
+				for (String query : queries) {
+					parsed += (QryParser.getQuery(query) == null) ? 0 : 1;
+				}
+
+				return new double[] { parsed };
+			}
+		}, warmup, iterations, queries.size(), "queries");
+
+		System.out.println("  average query length:  " + (chars / Math.max(1, queries.size())) + " chars");
+	}
+
+	/**
+	 * Measure matching and scoring each query as parsed and as planned by
+	 * QryPlanner, and check that both produce the same matches and scores.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void plan(List<String> queries, RetrievalModel model, int warmup, int iterations) throws IOException {
+
+		List<Qry> parsed = Benchmark.parseQueries(queries, model);
+		List<Qry> planned = Benchmark.parseQueries(queries, model);
+
+		for (Qry q : planned) {
+			new QryPlanner(model).plan(q);
+		}
+
+		double[] asParsed = scoreAll("as parsed", parsed, model, warmup, iterations);
+		double[] asPlanned = scoreAll("planned", planned, model, warmup, iterations);
+
+		System.out.println("Same matches and scores:  " + Arrays.equals(asParsed, asPlanned));
+	}
+
+	/**
+	 * Measure matching and scoring each query with a separate inverted list
+	 * for each occurrence of a repeated term or subtree, and with inverted
+	 * lists that are shared (see QryParser.getQuery). Check that both produce
+	 * the same matches and scores.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void share(List<String> queries, RetrievalModel model, int warmup, int iterations) throws IOException {
+
+		List<Qry> separate = Benchmark.parseQueries(queries, model);
+		List<Qry> shared = Benchmark.parseQueries(queries, model);
+
+		for (Qry q : separate) {
+			unshareInvertedLists(q);
+			q.setNeedsPositions(false);
+		}
+
+		double[] separateResults = scoreAll("separate lists", separate, model, warmup, iterations);
+		double[] sharedResults = scoreAll("shared lists", shared, model, warmup, iterations);
+
+		System.out.println("Same matches and scores:  " + Arrays.equals(separateResults, sharedResults));
+	}
+
+	/**
+	 * Time matching and scoring a list of queries.
+	 *
+	 * @param name
+	 *            The name of the alternative.
+	 * @param queries
+	 *            Parsed queries.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @return The results of Benchmark.scoreAll.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static double[] scoreAll(String name, final List<Qry> queries, final RetrievalModel model, int warmup,
+			int iterations) throws IOException {
+
+		return Benchmark.measure(name, new Benchmark.Pass() {
+			public double[] run() throws IOException {
+				return Benchmark.scoreAll(queries, model);
+			}
+		}, warmup, iterations, queries.size(), "queries");
+	}
+
+	/**
+	 * Make every inverted list operator of a query tree evaluate its own
+	 * inverted list.
+	 *
+	 * @param q
+	 *            The query tree.
+	 */
+	private static void unshareInvertedLists(Qry q) {
+
+		if (q instanceof QryIop) {
+			((QryIop) q).shareInvertedList(null);
+		}
+
+		for (Qry q_i : q.args) {
+			unshareInvertedLists(q_i);
+		}
+	}
+}
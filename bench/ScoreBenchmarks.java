@@ -0,0 +1,237 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks of scoring: the compiled QryScorer tree, the generated
+ * scorers of QryCodegen, and the batch ScoreKernels. See Benchmark.
+ */
+class ScoreBenchmarks {
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Measure the per-document cost of matching and scoring each query, using
+	 * QrySop.getScore (interpreted), a compiled QryScorer, and a QryScorer
+	 * generated by QryCodegen. Query initialization (e.g., reading inverted
+	 * lists) and code generation are not timed.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void score(List<String> queries, RetrievalModel model, int warmup, int iterations) throws IOException {
+
+		for (String scorer : new String[] { "interpreted", "compiled", "generated" }) {
+			long[] totals = new long[2]; // nanoseconds, documents
+
+			for (int i = 0; i < warmup + iterations; i++) {
+				if (i == warmup) {
+					totals[0] = 0;
+					totals[1] = 0;
+				}
+
+				for (String query : queries) {
+					scoreQuery(query, model, scorer, totals);
+				}
+			}
+
+			System.out.println(scorer + ":  " + (totals[0] / 1000000) + " ms for " + totals[1] + " documents, "
+					+ String.format("%.1f", (double) totals[0] / Math.max(1, totals[1])) + " ns/doc");
+		}
+	}
+
+	/**
+	 * Match and score one query, and add the elapsed time and the number of
+	 * matching documents to totals.
+	 *
+	 * @param query
+	 *            The query string.
+	 * @param model
+	 *            The retrieval model.
+	 * @param scorerName
+	 *            "interpreted", "compiled" or "generated".
+	 * @param totals
+	 *            Elapsed nanoseconds and matching documents.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static void scoreQuery(String query, RetrievalModel model, String scorerName, long[] totals)
+			throws IOException {
+
+		Qry q = QryParser.getQuery(model.defaultQrySopName() + "(" + query + ")");
+
+		if ((q == null) || (q.args.size() == 0)) {
+			return;
+		}
+
+		q.initialize(model);
+
+		QryScorer scorer = null;
+
+		if (scorerName.equals("compiled")) {
+			scorer = QryScorer.compile(q, model);
+		} else if (scorerName.equals("generated")) {
+			scorer = QryCodegen.compile(q, model);
+		}
+
+		QrySop sop = (QrySop) q;
+		double checksum = 0;
+		long start = System.nanoTime();
+
+		while (q.docIteratorHasMatch(model)) {
+			int docid = q.docIteratorGetMatch();
+			checksum += (scorer != null) ? scorer.score() : sop.getScore(model);
+			q.docIteratorAdvancePast(docid);
+			totals[1]++;
+		}
+
+		totals[0] += System.nanoTime() - start;
+
+		if (Double.isNaN(checksum)) { // Keeps the scores live
+			System.out.print("");
+		}
+	}
+
+	/**
+	 * Measure the batch scoring kernels on the postings of the query terms,
+	 * so that the (tf, docLen) distributions are real. Each pass scores every
+	 * posting of every query term once, in blocks.
+	 *
+	 * @param queries
+	 *            The query strings.
+	 * @param model
+	 *            The BM25 or Indri retrieval model.
+	 * @param warmup
+	 *            Number of warm-up passes.
+	 * @param iterations
+	 *            Number of measured passes.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void kernels(List<String> queries, final RetrievalModel model, int warmup, int iterations)
+			throws IOException {
+
+		final List<double[]> tfBlocks = new ArrayList<double[]>();
+		final List<double[]> lengthBlocks = new ArrayList<double[]>();
+		long n = 0;
+
+		for (Qry q : Benchmark.parseQueries(queries, model)) {
+			q.initialize(model);
+			n += collectPostings(q, tfBlocks, lengthBlocks);
+		}
+
+		final long postings = n;
+		ScoreKernels[] kernels = { ScoreKernels.SCALAR, ScoreKernels.INSTANCE };
+		double[][] results = new double[kernels.length][];
+
+		for (int k = 0; k < kernels.length; k++) {
+			final ScoreKernels kernel = kernels[k];
+
+			results[k] = Benchmark.measure(kernel.toString(), new Benchmark.Pass() {
+				public double[] run() {
+					return runKernel(kernel, model, tfBlocks, lengthBlocks, postings);
+				}
+			}, warmup, iterations, postings, "postings");
+		}
+
+		System.out.println("  identical scores:  " + Arrays.equals(results[0], results[kernels.length - 1]));
+	}
+
+	/**
+	 * Copy the (tf, docLen) pairs of the postings of the SCORE operators in a
+	 * query into blocks.
+	 *
+	 * @param q
+	 *            An initialized query.
+	 * @param tfBlocks
+	 *            Blocks of term frequencies.
+	 * @param lengthBlocks
+	 *            Blocks of document lengths.
+	 * @return The number of postings.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static long collectPostings(Qry q, List<double[]> tfBlocks, List<double[]> lengthBlocks)
+			throws IOException {
+
+		if (!(q instanceof QrySopScore)) {
+			long postings = 0;
+
+			for (Qry arg : q.args) {
+				postings += collectPostings(arg, tfBlocks, lengthBlocks);
+			}
+
+			return postings;
+		}
+
+		QryIop iop = (QryIop) q.args.get(0);
+		InvList list = iop.invertedList;
+
+		for (int start = 0; start < list.df; start += ScoreKernels.BLOCK_SIZE) {
+			int n = Math.min(ScoreKernels.BLOCK_SIZE, list.df - start);
+			double[] tf = new double[n];
+			double[] docLen = new double[n];
+
+			for (int i = 0; i < n; i++) {
+				InvList.DocPosting posting = list.postings.get(start + i);
+				tf[i] = posting.tf;
+				docLen[i] = Idx.getFieldLength(iop.getField(), posting.docid);
+			}
+
+			tfBlocks.add(tf);
+			lengthBlocks.add(docLen);
+		}
+
+		return list.df;
+	}
+
+	/**
+	 * Score every block of postings once.
+	 *
+	 * @param kernels
+	 *            The kernel implementation.
+	 * @param model
+	 *            The BM25 or Indri retrieval model.
+	 * @param tfBlocks
+	 *            Blocks of term frequencies.
+	 * @param lengthBlocks
+	 *            Blocks of document lengths.
+	 * @param postings
+	 *            The total number of postings.
+	 * @return The scores.
+	 */
+	private static double[] runKernel(ScoreKernels kernels, RetrievalModel model, List<double[]> tfBlocks,
+			List<double[]> lengthBlocks, long postings) {
+
+		double[] scores = new double[(int) postings];
+		int offset = 0;
+
+		for (int i = 0; i < tfBlocks.size(); i++) {
+			double[] tf = tfBlocks.get(i);
+
+			if (model instanceof RetrievalModelBM25) {
+				RetrievalModelBM25 bm25 = (RetrievalModelBM25) model;
+				kernels.bm25(tf, lengthBlocks.get(i), tf.length, bm25.getK1(), bm25.getB(), 100.0, 1.5, 1.0, scores,
+						offset);
+			} else {
+				RetrievalModelIndri indri = (RetrievalModelIndri) model;
+				kernels.indri(tf, lengthBlocks.get(i), tf.length, indri.getMu(), 1 - indri.getLambda(), 0.01,
+						indri.getLambda() * 0.0001, scores, offset);
+			}
+
+			offset += tf.length;
+		}
+
+		return scores;
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * A columnar store of document attributes (stored fields such as externalId,
+ * url and title) that is kept next to a Lucene index. Lucene stores the
+ * fields of a document together and compressed, so reading one attribute
+ * decompresses the whole document. The attribute store keeps each attribute
+ * in its own file, indexed by internal docid, so reading an attribute is an
+ * array lookup.
+ * <p>
+ * The attribute store is a directory named <i>indexPath</i>.attr. Each
+ * attribute has two files:
+ * </p>
+ *
+ * <pre>
+ *    name.offsets:  magic (a long), the version of the index (a long), then
+ *                   numDocs+1 longs; the byte offset of each document's
+ *                   value, with the sign bit set if the document doesn't
+ *                   have the attribute
+ *    name.values:   the UTF-8 bytes of the values, in docid order
+ * </pre>
+ * <p>
+ * Attributes whose values are small (e.g., externalId) are decoded onto the
+ * heap when the store is opened. Larger attributes (e.g., title) stay
+ * memory-mapped, and an LRU cache of decoded values sits in front of them.
+ * The store records the version of the index that it was built from, and
+ * open rejects a store of a different version. Use the main method to build
+ * an attribute store.
+ * </p>
+ */
+public class AttributeStore {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String USAGE = "Usage:  java AttributeStore -index INDEX_PATH [-fields f1,f2,...]\n\n";
+
+	private static final long MAGIC = 0x41545452L; // "ATTR"
+
+	private static final String SUFFIX = ".attr";
+
+	/**
+	 * The number of longs before the offsets: the magic number and the index
+	 * version.
+	 */
+	private static final int HEADER_LONGS = 2;
+
+	/**
+	 * Marks a document that doesn't have the attribute.
+	 */
+	private static final long MISSING = Long.MIN_VALUE;
+
+	/**
+	 * Attributes whose values file is at most this large are kept on the
+	 * heap.
+	 */
+	private static final long HEAP_LIMIT = 16L << 20;
+
+	/**
+	 * The default number of decoded values that are cached for each
+	 * memory-mapped attribute.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private Map<String, Attribute> attributes = new HashMap<String, Attribute>();
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * The values of one attribute.
+	 */
+	public static class Attribute {
+
+		private final String name;
+		private final MMapFile offsets;
+		private final MMapFile values;
+
+		/**
+		 * The decoded values, if the attribute is kept on the heap; otherwise
+		 * null.
+		 */
+		private String[] heap = null;
+
+		/**
+		 * Recently read values of a memory-mapped attribute, or null if
+		 * there is no cache.
+		 */
+		private LinkedHashMap<Integer, String> cache = null;
+
+		private Attribute(File dir, String name) throws IOException {
+
+			this.name = name;
+			this.offsets = new MMapFile(new File(dir, name + ".offsets"));
+			this.values = new MMapFile(new File(dir, name + ".values"));
+
+			if ((this.offsets.length() < 8 * (HEADER_LONGS + 1)) || (this.offsets.getLong(0) != MAGIC)) {
+				throw new IOException("Not an attribute store offsets file: " + name);
+			}
+
+			if (this.values.length() <= HEAP_LIMIT) {
+				this.loadOnHeap();
+			} else {
+				this.setCacheSize(DEFAULT_CACHE_SIZE);
+			}
+		}
+
+		/**
+		 * Get the name of the attribute.
+		 *
+		 * @return The attribute name.
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * Get the number of documents in the attribute store.
+		 *
+		 * @return The number of documents.
+		 */
+		public int numDocs() {
+			return (int) (this.offsets.length() / 8) - HEADER_LONGS - 1;
+		}
+
+		/**
+		 * Get the version of the index that the attribute was built from.
+		 *
+		 * @return The index version.
+		 */
+		public long getVersion() {
+			return this.offsets.getLong(8);
+		}
+
+		/**
+		 * Get the value of the attribute in a document.
+		 *
+		 * @param docid
+		 *            An internal docid.
+		 * @return The value, or null if the document doesn't have the
+		 *         attribute.
+		 */
+		public String get(int docid) {
+
+			if (this.heap != null) {
+				return this.heap[docid];
+			}
+
+			if (this.cache == null) {
+				return this.read(docid);
+			}
+
+			synchronized (this.cache) {
+				String value = this.cache.get(docid);
+
+				if (value != null) {
+					return value;
+				}
+			}
+
+			String value = this.read(docid);
+
+			if (value != null) {
+				synchronized (this.cache) {
+					this.cache.put(docid, value);
+				}
+			}
+
+			return value;
+		}
+
+		/**
+		 * Decode every value onto the heap, so that reads are array lookups.
+		 */
+		public void loadOnHeap() {
+
+			String[] decoded = new String[this.numDocs()];
+
+			for (int docid = 0; docid < decoded.length; docid++) {
+				decoded[docid] = this.read(docid);
+			}
+
+			this.heap = decoded;
+			this.cache = null;
+		}
+
+		/**
+		 * Set the number of decoded values that are cached for a
+		 * memory-mapped attribute. Attributes on the heap don't have a
+		 * cache.
+		 *
+		 * @param entries
+		 *            The number of values to cache; 0 turns the cache off.
+		 */
+		public void setCacheSize(final int entries) {
+
+			if (this.heap != null) {
+				return;
+			}
+
+			this.cache = (entries <= 0) ? null : new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+					return this.size() > entries;
+				}
+			};
+		}
+
+		/**
+		 * Decode the value of a document from the mapped files.
+		 *
+		 * @param docid
+		 *            An internal docid.
+		 * @return The value, or null if the document doesn't have the
+		 *         attribute.
+		 */
+		private String read(int docid) {
+
+			long start = this.offsets.getLong(8L * (HEADER_LONGS + docid));
+
+			if (start < 0) {
+				return null;
+			}
+
+			long end = this.offsets.getLong(8L * (HEADER_LONGS + docid + 1)) & ~MISSING;
+			byte[] bytes = new byte[(int) (end - start)];
+
+			this.values.getBytes(start, bytes, 0, bytes.length);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Get an attribute.
+	 *
+	 * @param name
+	 *            The attribute name.
+	 * @return The attribute, or null if it isn't in the store.
+	 */
+	public Attribute getAttribute(String name) {
+		return this.attributes.get(name);
+	}
+
+	/**
+	 * Open the attribute store that accompanies a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param reader
+	 *            The open index.
+	 * @return The attribute store, or null if the index doesn't have one.
+	 * @throws IllegalArgumentException
+	 *             An attribute was built from a different version of the
+	 *             index.
+	 * @throws IOException
+	 *             Error accessing the attribute store.
+	 */
+	public static AttributeStore open(String indexPath, IndexReader reader)
+			throws IllegalArgumentException, IOException {
+
+		File dir = getDirectory(indexPath);
+
+		if (!dir.isDirectory()) {
+			return null;
+		}
+
+		AttributeStore store = new AttributeStore();
+
+		for (String fileName : dir.list()) {
+			if (fileName.endsWith(".offsets")) {
+				String name = fileName.substring(0, fileName.length() - ".offsets".length());
+				Attribute attribute = new Attribute(dir, name);
+
+				// A store that was built for a different version of the
+				// index would return the attributes of the wrong documents.
+
+				if ((attribute.getVersion() != Idx.getIndexVersion(reader))
+						|| (attribute.numDocs() != reader.maxDoc())) {
+					throw new IllegalArgumentException("The attribute store of " + indexPath
+							+ " doesn't match the index.  Rebuild it with AttributeStore.main.");
+				}
+
+				store.attributes.put(name, attribute);
+			}
+		}
+
+		return store;
+	}
+
+	/**
+	 * Get the directory that contains the attribute store of a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return The attribute store directory.
+	 */
+	public static File getDirectory(String indexPath) {
+		return new File(new File(indexPath).getPath() + SUFFIX);
+	}
+
+	/**
+	 * Export attributes from the stored fields of a Lucene index. Each
+	 * document is read once, for all of the attributes.
+	 *
+	 * @param reader
+	 *            The Lucene index.
+	 * @param dir
+	 *            The attribute store directory.
+	 * @param names
+	 *            The attributes to export.
+	 * @throws IOException
+	 *             Error accessing the Lucene index or the attribute store.
+	 */
+	public static void build(IndexReader reader, File dir, String[] names) throws IOException {
+
+		DataOutputStream[] offsets = new DataOutputStream[names.length];
+		OutputStream[] values = new OutputStream[names.length];
+		long[] offset = new long[names.length];
+
+		try {
+			for (int i = 0; i < names.length; i++) {
+				offsets[i] = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(new File(dir, names[i] + ".offsets"))));
+				values[i] = new BufferedOutputStream(new FileOutputStream(new File(dir, names[i] + ".values")));
+				offsets[i].writeLong(MAGIC);
+				offsets[i].writeLong(Idx.getIndexVersion(reader));
+			}
+
+			for (int docid = 0; docid < reader.maxDoc(); docid++) {
+				Document d = reader.document(docid);
+
+				for (int i = 0; i < names.length; i++) {
+					String value = d.get(names[i]);
+
+					if (value == null) {
+						offsets[i].writeLong(offset[i] | MISSING);
+					} else {
+						byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+						offsets[i].writeLong(offset[i]);
+						values[i].write(bytes);
+						offset[i] += bytes.length;
+					}
+				}
+			}
+
+			for (int i = 0; i < names.length; i++) {
+				offsets[i].writeLong(offset[i]);
+			}
+		} finally {
+			for (int i = 0; i < names.length; i++) {
+				if (offsets[i] != null) {
+					offsets[i].close();
+				}
+
+				if (values[i] != null) {
+					values[i].close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build an attribute store for a Lucene index.
+	 *
+	 * @param args
+	 *            -index INDEX_PATH [-fields f1,f2,...]
+	 * @throws IOException
+	 *             Error accessing the Lucene index or the attribute store.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		String indexPath = null;
+		String[] names = { "externalId", "url", "title" };
+
+		for (int i = 0; i < args.length; i++) {
+			if ("-index".equals(args[i]) && (i + 1 < args.length)) {
+				indexPath = args[++i];
+			} else if ("-fields".equals(args[i]) && (i + 1 < args.length)) {
+				names = args[++i].split(",");
+			} else {
+				throw new IllegalArgumentException(USAGE);
+			}
+		}
+
+		if (indexPath == null) {
+			throw new IllegalArgumentException(USAGE);
+		}
+
+		for (int i = 0; i < names.length; i++) {
+			names[i] = names[i].trim();
+		}
+
+		IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+		File dir = getDirectory(indexPath);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+		build(reader, dir, names);
+		timer.stop();
+		System.out.println(Arrays.toString(names) + ":  " + timer);
+
+		reader.close();
+	}
+}
@@ -3,20 +3,67 @@
  */
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * When a field is first used, the norms of each leaf (segment) of the
+ * index are copied into one array indexed by docid, so a lookup is an
+ * array access.  Opening an index doesn't load the norms of fields that
+ * queries don't use.  The lengths of a field may also be supplied as an
+ * array (e.g., by an {@link IndexSnapshot}).
+ * <p>
+ * A field whose lengths don't fit in an int is read from its norms, one
+ * leaf at a time.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+
+  private List<AtomicReaderContext> leaves;
+
+  /**
+   * The norms of each field that has been used, one entry per leaf.  An
+   * entry is null if the field has no norms in that leaf.
+   */
+  private Map<String, NumericDocValues[]> values = new ConcurrentHashMap<String, NumericDocValues[]>();
+
+  /**
+   * The lengths of each field that has been used, indexed by docid, or
+   * NO_LENGTHS if the field's norms must be used.
+   */
+  private Map<String, int[]> lengths = new ConcurrentHashMap<String, int[]>();
+
+  /**
+   * Marks a field that has no norms, or whose lengths don't fit in an int.
+   */
+  private static final int[] NO_LENGTHS = new int[0];
+
+  /**
+   * The field of the last getDocLength call and its lengths, so that
+   * consecutive lookups in one field skip the map lookup.
+   */
+  private volatile FieldLengths last = null;
+
+  /**
+   * The docBase of each leaf, followed by maxDoc.
+   */
+  private int[] docStarts;
+
+  /**
+   * The leaf of the last getDocLength call.  It is only a hint, which
+   * is checked before it is used, so concurrent callers can't get
+   * wrong lengths.
+   */
+  private int lastLeaf = 0;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
@@ -24,9 +71,140 @@ public class DocLengthStore  {
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.leaves = reader.leaves();
+    this.docStarts = new int[leaves.size() + 1];
+
+    for (int i = 0; i < leaves.size(); i++) {
+      this.docStarts[i] = leaves.get(i).docBase;
+    }
+
+    this.docStarts[leaves.size()] = reader.maxDoc();
+  }
+
+  /**
+   * Returns the norms of a field, one entry per leaf.  They are loaded
+   * when the field is first used.
+   *
+   * @param fieldname Name of field.
+   * @return The norms of each leaf; an entry is null if the field has no
+   * norms in that leaf.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private NumericDocValues[] getNorms(String fieldname) throws IOException {
+
+    NumericDocValues[] leafValues = this.values.get(fieldname);
+
+    if (leafValues == null) {
+      synchronized (this) {
+        leafValues = this.values.get(fieldname);
+
+        if (leafValues == null) {
+          leafValues = new NumericDocValues[leaves.size()];
+
+          for (int i = 0; i < leaves.size(); i++) {
+            leafValues[i] = leaves.get(i).reader().getNormValues(fieldname);
+          }
+
+          this.values.put(fieldname, leafValues);
+        }
+      }
+    }
+
+    return leafValues;
+  }
+
+  /**
+   * Returns the lengths of a field, indexed by docid.  They are copied
+   * from the norms when the field is first used.
+   *
+   * @param fieldname Name of field.
+   * @return The lengths, or NO_LENGTHS if the norms must be used.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private int[] getLengths(String fieldname) throws IOException {
+
+    int[] all = this.lengths.get(fieldname);
+
+    if (all == null) {
+      synchronized (this) {
+        all = this.lengths.get(fieldname);
+
+        if (all == null) {
+          all = getAllDocLengths(fieldname);
+
+          if (all == null)
+            all = NO_LENGTHS;
+
+          this.lengths.put(fieldname, all);
+        }
+      }
+    }
+
+    return all;
+  }
+
+  /**
+   * Load the lengths of every indexed field, so that later lookups don't
+   * have to.
+   *
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public void loadAll() throws IOException {
+    for (String field : MultiFields.getIndexedFields(reader))
+      getLengths(field);
+  }
+
+  /**
+   * Returns the lengths of a field in every document, as an array that
+   * can be passed to setDocLengths.
+   *
+   * @param fieldname Name of field.
+   * @return The length of the field in each document, or null if the
+   * field has no norms or a length doesn't fit in an int.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public int[] getAllDocLengths(String fieldname) throws IOException {
+
+    NumericDocValues[] leafValues = getNorms(fieldname);
+    int[] all = new int[reader.maxDoc()];
+    boolean hasNorms = false;
+
+    for (int leaf = 0; leaf < leafValues.length; leaf++) {
+      NumericDocValues norms = leafValues[leaf];
+
+      if (norms == null)
+        continue;
+
+      hasNorms = true;
+
+      for (int docid = this.docStarts[leaf]; docid < this.docStarts[leaf + 1]; docid++) {
+        long length = norms.get(docid - this.docStarts[leaf]);
+
+        if ((length < Integer.MIN_VALUE) || (length > Integer.MAX_VALUE))
+          return null;
+
+        all[docid] = (int) length;
+      }
     }
+
+    return hasNorms ? all : null;
+  }
+
+  /**
+   * Supplies the lengths of a field in every document.  They are used
+   * instead of the field's norms.
+   *
+   * @param fieldname Name of field.
+   * @param all The length of the field in each document (see
+   * getAllDocLengths).
+   */
+  public void setDocLengths(String fieldname, int[] all) {
+
+    if (all.length != reader.maxDoc())
+      throw new IllegalArgumentException("The lengths of " + fieldname + " don't match the index.");
+
+    this.lengths.put(fieldname, all);
+    this.last = null;
   }
 
   /**
@@ -39,6 +217,93 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+
+    FieldLengths last = this.last;
+
+    if ((last == null) || (! last.field.equals(fieldname))) {
+      last = new FieldLengths(fieldname, getLengths(fieldname));
+      this.last = last;
+    }
+
+    if (last.lengths != NO_LENGTHS)
+      return last.lengths[docid];
+
+    //  Lookups tend to be in docid order, so check the last leaf
+    //  before searching.
+
+    NumericDocValues[] leafValues = getNorms(fieldname);
+    int leaf = this.lastLeaf;
+
+    if ((docid < this.docStarts[leaf]) || (docid >= this.docStarts[leaf + 1])) {
+      leaf = ReaderUtil.subIndex(docid, this.docStarts);
+      this.lastLeaf = leaf;
+    }
+
+    NumericDocValues norms = leafValues[leaf];
+
+    return (norms == null) ? 0 : norms.get(docid - this.docStarts[leaf]);
+  }
+
+  /**
+   * Returns the lengths of the specified field in several documents.
+   * The documents are visited in order, so each leaf is found once.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @param docids Internal docids, in increasing order.
+   * @param from The index of the first docid.
+   * @param n The number of docids.
+   * @param lengths Output: lengths[i] is the length of the field in
+   * docids[from+i].
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public void getDocLengths(String fieldname, int[] docids, int from, int n, double[] lengths)
+    throws IOException {
+
+    if (n == 0)
+      return;
+
+    int[] all = getLengths(fieldname);
+
+    if (all != NO_LENGTHS) {
+      for (int i = 0; i < n; i++)
+        lengths[i] = all[docids[from + i]];
+
+      return;
+    }
+
+    NumericDocValues[] leafValues = getNorms(fieldname);
+    int leaf = ReaderUtil.subIndex(docids[from], this.docStarts);
+    int i = 0;
+
+    while (i < n) {
+
+      //  The documents in [i, end) are in this leaf.
+
+      int leafEnd = this.docStarts[leaf + 1];
+      int docBase = this.docStarts[leaf];
+      NumericDocValues norms = leafValues[leaf];
+      int end = i;
+
+      while ((end < n) && (docids[from + end] < leafEnd))
+        end++;
+
+      for (; i < end; i++)
+        lengths[i] = (norms == null) ? 0 : norms.get(docids[from + i] - docBase);
+
+      leaf++;
+    }
+  }
+
+  /**
+   * A field and its lengths.
+   */
+  private static class FieldLengths {
+    private final String field;
+    private final int[] lengths;
+
+    private FieldLengths(String field, int[] lengths) {
+      this.field = field;
+      this.lengths = lengths;
+    }
   }
 }
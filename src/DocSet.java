@@ -0,0 +1,737 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
+/**
+ * An immutable set of internal docids, stored as a compressed bitmap in the
+ * style of Roaring bitmaps. The docid space is divided into chunks of 65536
+ * docids that share the high 16 bits of the docid. Each chunk that has
+ * members is stored in a container: a sorted array of the low 16 bits if it
+ * has at most 4096 members, otherwise a 65536-bit bitmap. Sparse and dense
+ * sets are both compact, and AND, OR and ANDNOT work one container pair at a
+ * time.
+ * <p>
+ * Docsets are used when only set membership matters, e.g., by the
+ * UnrankedBoolean retrieval model (see {@link Qry#getDocSet}), and as
+ * filters. The docset of a term is read from the index without positions or
+ * term frequencies.
+ * </p>
+ */
+public class DocSet {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The empty docset.
+	 */
+	public static final DocSet EMPTY = new DocSet(new char[0], new Container[0]);
+
+	/**
+	 * The largest container that is stored as an array.
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	/**
+	 * The high 16 bits of the docids in each container, in increasing order.
+	 */
+	private final char[] keys;
+
+	private final Container[] containers;
+
+	private final int cardinality;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keys
+	 *            The high 16 bits of each container.
+	 * @param containers
+	 *            The non-empty containers.
+	 */
+	private DocSet(char[] keys, Container[] containers) {
+
+		int cardinality = 0;
+
+		for (Container c : containers) {
+			cardinality += c.cardinality();
+		}
+
+		this.keys = keys;
+		this.containers = containers;
+		this.cardinality = cardinality;
+	}
+
+	/**
+	 * Get the docset of a term from the index.
+	 *
+	 * @param termString
+	 *            The processed (stemmed, lower-cased, etc) term string.
+	 * @param fieldString
+	 *            The field that the term occurs in.
+	 * @return The documents that contain the term in the field.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static DocSet forTerm(String termString, String fieldString) throws IOException {
+
+		BytesRef termBytes = new BytesRef(termString);
+
+		if (Idx.INDEXREADER.docFreq(new Term(fieldString, termBytes)) < 1) {
+			return EMPTY;
+		}
+
+		Builder builder = new Builder();
+
+		for (AtomicReaderContext leaf : Idx.INDEXREADER.leaves()) {
+			TermsEnum termsEnum = Idx.getTermsEnum(leaf, fieldString, termBytes);
+
+			if (termsEnum == null) {
+				continue;
+			}
+
+			DocsEnum docs = termsEnum.docs(leaf.reader().getLiveDocs(), null, DocsEnum.FLAG_NONE);
+			int docid;
+
+			while ((docid = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+				builder.add(leaf.docBase + docid);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Get the docset of a sorted array of docids.
+	 *
+	 * @param docids
+	 *            Docids in increasing order.
+	 * @param n
+	 *            The number of docids.
+	 * @return The docset.
+	 */
+	public static DocSet fromSorted(int[] docids, int n) {
+
+		Builder builder = new Builder();
+
+		for (int i = 0; i < n; i++) {
+			builder.add(docids[i]);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Get the number of documents in the docset.
+	 *
+	 * @return The number of documents.
+	 */
+	public int cardinality() {
+		return this.cardinality;
+	}
+
+	/**
+	 * Indicates whether a document is in the docset.
+	 *
+	 * @param docid
+	 *            An internal document id.
+	 * @return True if the document is in the docset.
+	 */
+	public boolean contains(int docid) {
+
+		int i = Arrays.binarySearch(this.keys, (char) (docid >>> 16));
+
+		return (i >= 0) && this.containers[i].contains((char) docid);
+	}
+
+	/**
+	 * Get the first document in the docset that is at least docid. Use it to
+	 * skip docIterators to the next document that a filter accepts.
+	 *
+	 * @param docid
+	 *            An internal document id.
+	 * @return The smallest member that is at least docid, or
+	 *         Qry.INVALID_DOCID if there is none.
+	 */
+	public int next(int docid) {
+
+		if (docid < 0) {
+			docid = 0;
+		}
+
+		char high = (char) (docid >>> 16);
+		int i = Arrays.binarySearch(this.keys, high);
+
+		if (i >= 0) {
+			int low = this.containers[i].next((char) docid);
+
+			if (low >= 0) {
+				return (high << 16) | low;
+			}
+
+			i++;
+		} else {
+			i = -i - 1;
+		}
+
+		if (i < this.keys.length) {
+			return (this.keys[i] << 16) | this.containers[i].next((char) 0);
+		}
+
+		return Qry.INVALID_DOCID;
+	}
+
+	/**
+	 * Get the documents in the docset.
+	 *
+	 * @return The docids, in increasing order.
+	 */
+	public int[] toArray() {
+
+		int[] docids = new int[this.cardinality];
+		int n = 0;
+
+		for (int i = 0; i < this.keys.length; i++) {
+			n += this.containers[i].toArray(docids, n, this.keys[i] << 16);
+		}
+
+		return docids;
+	}
+
+	/**
+	 * Get the approximate amount of memory that the docset uses.
+	 *
+	 * @return The size in bytes.
+	 */
+	public long sizeInBytes() {
+
+		long size = 2L * this.keys.length;
+
+		for (Container c : this.containers) {
+			size += c.sizeInBytes();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Intersect two docsets.
+	 *
+	 * @param other
+	 *            Another docset.
+	 * @return The documents that are in both docsets.
+	 */
+	public DocSet and(DocSet other) {
+
+		Merger m = new Merger(Math.min(this.keys.length, other.keys.length));
+		int i = 0;
+		int j = 0;
+
+		while ((i < this.keys.length) && (j < other.keys.length)) {
+			if (this.keys[i] < other.keys[j]) {
+				i++;
+			} else if (this.keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				m.add(this.keys[i], this.containers[i].and(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+
+		return m.build();
+	}
+
+	/**
+	 * Unite two docsets.
+	 *
+	 * @param other
+	 *            Another docset.
+	 * @return The documents that are in either docset.
+	 */
+	public DocSet or(DocSet other) {
+
+		Merger m = new Merger(this.keys.length + other.keys.length);
+		int i = 0;
+		int j = 0;
+
+		while ((i < this.keys.length) || (j < other.keys.length)) {
+			if ((j >= other.keys.length) || ((i < this.keys.length) && (this.keys[i] < other.keys[j]))) {
+				m.add(this.keys[i], this.containers[i]);
+				i++;
+			} else if ((i >= this.keys.length) || (this.keys[i] > other.keys[j])) {
+				m.add(other.keys[j], other.containers[j]);
+				j++;
+			} else {
+				m.add(this.keys[i], this.containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+
+		return m.build();
+	}
+
+	/**
+	 * Subtract a docset from this docset.
+	 *
+	 * @param other
+	 *            Another docset.
+	 * @return The documents that are in this docset but not in the other.
+	 */
+	public DocSet andNot(DocSet other) {
+
+		Merger m = new Merger(this.keys.length);
+		int j = 0;
+
+		for (int i = 0; i < this.keys.length; i++) {
+			while ((j < other.keys.length) && (other.keys[j] < this.keys[i])) {
+				j++;
+			}
+
+			if ((j < other.keys.length) && (other.keys[j] == this.keys[i])) {
+				m.add(this.keys[i], this.containers[i].andNot(other.containers[j]));
+			} else {
+				m.add(this.keys[i], this.containers[i]);
+			}
+		}
+
+		return m.build();
+	}
+
+	/**
+	 * Get a string version of the docset.
+	 *
+	 * @return The string version of the docset.
+	 */
+	@Override
+	public String toString() {
+		return "DocSet(" + this.cardinality + " docs, " + this.keys.length + " containers)";
+	}
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * Builds a docset from docids that are added in increasing order.
+	 */
+	public static class Builder {
+
+		private Merger merger = new Merger(4);
+		private char[] values = new char[64];
+		private int n = 0;
+		private int high = -1;
+
+		/**
+		 * Add a document. Documents must be added in increasing order.
+		 *
+		 * @param docid
+		 *            An internal document id.
+		 */
+		public void add(int docid) {
+
+			if ((docid >>> 16) != this.high) {
+				this.flush();
+				this.high = docid >>> 16;
+			}
+
+			if (this.n == this.values.length) {
+				this.values = Arrays.copyOf(this.values, Math.min(2 * this.n, 1 << 16));
+			}
+
+			this.values[this.n++] = (char) docid;
+		}
+
+		/**
+		 * Get the docset.
+		 *
+		 * @return The docset.
+		 */
+		public DocSet build() {
+			this.flush();
+			return this.merger.build();
+		}
+
+		private void flush() {
+
+			if (this.n > ARRAY_MAX) {
+				BitmapContainer c = new BitmapContainer();
+
+				for (int i = 0; i < this.n; i++) {
+					c.set(this.values[i]);
+				}
+
+				this.merger.add((char) this.high, c);
+			} else if (this.n > 0) {
+				this.merger.add((char) this.high, new ArrayContainer(Arrays.copyOf(this.values, this.n), this.n));
+			}
+
+			this.n = 0;
+		}
+	}
+
+	/**
+	 * Collects the containers of a new docset, in key order. Empty (null)
+	 * containers are dropped.
+	 */
+	private static class Merger {
+
+		private char[] keys;
+		private Container[] containers;
+		private int n = 0;
+
+		Merger(int capacity) {
+			this.keys = new char[Math.max(capacity, 1)];
+			this.containers = new Container[this.keys.length];
+		}
+
+		void add(char key, Container c) {
+
+			if (c == null) {
+				return;
+			}
+
+			if (this.n == this.keys.length) {
+				this.keys = Arrays.copyOf(this.keys, 2 * this.n);
+				this.containers = Arrays.copyOf(this.containers, 2 * this.n);
+			}
+
+			this.keys[this.n] = key;
+			this.containers[this.n] = c;
+			this.n++;
+		}
+
+		DocSet build() {
+			return new DocSet(Arrays.copyOf(this.keys, this.n), Arrays.copyOf(this.containers, this.n));
+		}
+	}
+
+	/**
+	 * The low 16 bits of the docids in one chunk. Containers are immutable
+	 * once they are in a docset; set operations return new containers, or
+	 * null if the result is empty.
+	 */
+	private static abstract class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(char low);
+
+		/**
+		 * @return The smallest member that is at least low, or -1.
+		 */
+		abstract int next(char low);
+
+		/**
+		 * Copy the members (high | low) to out.
+		 *
+		 * @return The number of members copied.
+		 */
+		abstract int toArray(int[] out, int offset, int high);
+
+		abstract long sizeInBytes();
+
+		abstract Container and(Container other);
+
+		abstract Container or(Container other);
+
+		abstract Container andNot(Container other);
+	}
+
+	/**
+	 * A container for at most ARRAY_MAX members: a sorted array.
+	 */
+	private static class ArrayContainer extends Container {
+
+		final char[] values;
+		final int n;
+
+		ArrayContainer(char[] values, int n) {
+			this.values = values;
+			this.n = n;
+		}
+
+		int cardinality() {
+			return this.n;
+		}
+
+		boolean contains(char low) {
+			return Arrays.binarySearch(this.values, 0, this.n, low) >= 0;
+		}
+
+		int next(char low) {
+
+			int i = Arrays.binarySearch(this.values, 0, this.n, low);
+
+			if (i < 0) {
+				i = -i - 1;
+			}
+
+			return (i < this.n) ? this.values[i] : -1;
+		}
+
+		int toArray(int[] out, int offset, int high) {
+
+			for (int i = 0; i < this.n; i++) {
+				out[offset + i] = high | this.values[i];
+			}
+
+			return this.n;
+		}
+
+		long sizeInBytes() {
+			return 2L * this.values.length;
+		}
+
+		Container and(Container other) {
+
+			char[] result = new char[this.n];
+			int k = 0;
+
+			if (other instanceof BitmapContainer) {
+				BitmapContainer b = (BitmapContainer) other;
+
+				for (int i = 0; i < this.n; i++) {
+					if (b.contains(this.values[i])) {
+						result[k++] = this.values[i];
+					}
+				}
+			} else {
+				ArrayContainer a = (ArrayContainer) other;
+				int i = 0;
+				int j = 0;
+
+				while ((i < this.n) && (j < a.n)) {
+					if (this.values[i] < a.values[j]) {
+						i++;
+					} else if (this.values[i] > a.values[j]) {
+						j++;
+					} else {
+						result[k++] = this.values[i];
+						i++;
+						j++;
+					}
+				}
+			}
+
+			return (k == 0) ? null : new ArrayContainer(Arrays.copyOf(result, k), k);
+		}
+
+		Container or(Container other) {
+
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+
+			ArrayContainer a = (ArrayContainer) other;
+			char[] result = new char[this.n + a.n];
+			int i = 0;
+			int j = 0;
+			int k = 0;
+
+			while ((i < this.n) || (j < a.n)) {
+				if ((j >= a.n) || ((i < this.n) && (this.values[i] < a.values[j]))) {
+					result[k++] = this.values[i++];
+				} else if ((i >= this.n) || (this.values[i] > a.values[j])) {
+					result[k++] = a.values[j++];
+				} else {
+					result[k++] = this.values[i];
+					i++;
+					j++;
+				}
+			}
+
+			if (k > ARRAY_MAX) {
+				BitmapContainer b = new BitmapContainer();
+
+				for (int m = 0; m < k; m++) {
+					b.set(result[m]);
+				}
+
+				return b;
+			}
+
+			return new ArrayContainer(Arrays.copyOf(result, k), k);
+		}
+
+		Container andNot(Container other) {
+
+			char[] result = new char[this.n];
+			int k = 0;
+
+			for (int i = 0; i < this.n; i++) {
+				if (!other.contains(this.values[i])) {
+					result[k++] = this.values[i];
+				}
+			}
+
+			return (k == 0) ? null : new ArrayContainer(Arrays.copyOf(result, k), k);
+		}
+	}
+
+	/**
+	 * A container for more than ARRAY_MAX members: one bit per docid.
+	 */
+	private static class BitmapContainer extends Container {
+
+		final long[] words;
+		int n = 0;
+
+		BitmapContainer() {
+			this.words = new long[1 << 10];
+		}
+
+		BitmapContainer(long[] words) {
+			this.words = words;
+
+			for (long w : words) {
+				this.n += Long.bitCount(w);
+			}
+		}
+
+		/**
+		 * Add a member. Only used while the container is built.
+		 */
+		void set(char low) {
+
+			long bit = 1L << low;
+
+			if ((this.words[low >>> 6] & bit) == 0) {
+				this.words[low >>> 6] |= bit;
+				this.n++;
+			}
+		}
+
+		int cardinality() {
+			return this.n;
+		}
+
+		boolean contains(char low) {
+			return (this.words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		int next(char low) {
+
+			int w = low >>> 6;
+			long word = this.words[w] & (-1L << low);
+
+			while (word == 0) {
+				if (++w == this.words.length) {
+					return -1;
+				}
+
+				word = this.words[w];
+			}
+
+			return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		int toArray(int[] out, int offset, int high) {
+
+			int k = offset;
+
+			for (int w = 0; w < this.words.length; w++) {
+				long word = this.words[w];
+
+				while (word != 0) {
+					out[k++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+
+			return k - offset;
+		}
+
+		long sizeInBytes() {
+			return 8L * this.words.length;
+		}
+
+		Container and(Container other) {
+
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+
+			long[] b = ((BitmapContainer) other).words;
+			long[] result = new long[this.words.length];
+
+			for (int w = 0; w < result.length; w++) {
+				result[w] = this.words[w] & b[w];
+			}
+
+			return shrink(new BitmapContainer(result));
+		}
+
+		Container or(Container other) {
+
+			long[] result = this.words.clone();
+
+			if (other instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) other;
+
+				for (int i = 0; i < a.n; i++) {
+					result[a.values[i] >>> 6] |= 1L << a.values[i];
+				}
+			} else {
+				long[] b = ((BitmapContainer) other).words;
+
+				for (int w = 0; w < result.length; w++) {
+					result[w] |= b[w];
+				}
+			}
+
+			return new BitmapContainer(result);
+		}
+
+		Container andNot(Container other) {
+
+			long[] result = this.words.clone();
+
+			if (other instanceof ArrayContainer) {
+				ArrayContainer a = (ArrayContainer) other;
+
+				for (int i = 0; i < a.n; i++) {
+					result[a.values[i] >>> 6] &= ~(1L << a.values[i]);
+				}
+			} else {
+				long[] b = ((BitmapContainer) other).words;
+
+				for (int w = 0; w < result.length; w++) {
+					result[w] &= ~b[w];
+				}
+			}
+
+			return shrink(new BitmapContainer(result));
+		}
+
+		/**
+		 * Convert a bitmap that has become small to an array, or to null if
+		 * it is empty.
+		 */
+		private static Container shrink(BitmapContainer b) {
+
+			if (b.n == 0) {
+				return null;
+			} else if (b.n > ARRAY_MAX) {
+				return b;
+			}
+
+			int[] low = new int[b.n];
+			char[] values = new char[b.n];
+
+			b.toArray(low, 0, 0);
+
+			for (int i = 0; i < b.n; i++) {
+				values[i] = (char) low[i];
+			}
+
+			return new ArrayContainer(values, b.n);
+		}
+	}
+}
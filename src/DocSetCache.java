@@ -0,0 +1,81 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ * A bounded, least-recently-used cache of the docsets of terms and
+ * subqueries (see {@link Qry#getDocSet}). The bound is the total size of the
+ * cached docsets (see SizeBoundedCache), so a few very common terms can't
+ * push out everything else without being accounted for. Docsets are only
+ * valid for the index that they were read from, so the cache is cleared when
+ * the current index changes.
+ */
+public class DocSetCache {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The default capacity, in bytes.
+	 */
+	public static final long DEFAULT_CAPACITY = 64L << 20;
+
+	private static final SizeBoundedCache<DocSet> cache = new SizeBoundedCache<DocSet>("DocSetCache", "docsets",
+			DEFAULT_CAPACITY) {
+		protected long sizeOf(DocSet docs) {
+			return docs.sizeInBytes();
+		}
+	};
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Get a cached docset.
+	 *
+	 * @param key
+	 *            The canonical form of the query (see Qry.getDocSetKey).
+	 * @return The docset, or null if it isn't cached.
+	 */
+	public static DocSet get(String key) {
+		return cache.get(key);
+	}
+
+	/**
+	 * Cache a docset, and evict the least recently used docsets if the cache
+	 * is full. A docset that is larger than the capacity isn't cached.
+	 *
+	 * @param key
+	 *            The canonical form of the query.
+	 * @param docs
+	 *            The docset.
+	 */
+	public static void put(String key, DocSet docs) {
+		cache.put(key, docs);
+	}
+
+	/**
+	 * Remove every docset from the cache.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Set the capacity of the cache.
+	 *
+	 * @param bytes
+	 *            The maximum total size of the cached docsets. 0 disables the
+	 *            cache.
+	 */
+	public static void setCapacity(long bytes) {
+		cache.setCapacity(bytes);
+	}
+
+	/**
+	 * Get a string that describes the use of the cache.
+	 *
+	 * @return Cache statistics.
+	 */
+	public static String getStatistics() {
+		return cache.getStatistics();
+	}
+}
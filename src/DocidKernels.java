@@ -0,0 +1,229 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.Arrays;
+
+/**
+ * Kernels for sorted arrays of docids: skipping ahead to a docid, and
+ * intersecting two arrays. Query operators that match documents that
+ * contain all of their arguments (Boolean #and, #near/n, #window/n) use
+ * them on the docids of materialized inverted lists (see
+ * {@link InvList#getDocids}), and QryIop uses advance to move its
+ * docIterator.
+ * <p>
+ * As with {@link ScoreKernels}, INSTANCE is a SIMD implementation
+ * ({@link DocidKernelsVector}) if the JVM is started with --add-modules
+ * jdk.incubator.vector, otherwise the scalar implementation. Set the
+ * docidKernels system property to "scalar" to disable it.
+ * </p>
+ */
+public abstract class DocidKernels {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The scalar kernels.
+	 */
+	public static final DocidKernels SCALAR = new Scalar();
+
+	/**
+	 * The fastest kernels that are available.
+	 */
+	public static final DocidKernels INSTANCE = load();
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Select the kernel implementation.
+	 *
+	 * @return The SIMD kernels, if they can be loaded, otherwise the scalar
+	 *         kernels.
+	 */
+	private static DocidKernels load() {
+
+		if ("scalar".equals(System.getProperty("docidKernels"))) {
+			return SCALAR;
+		}
+
+		try {
+			DocidKernels kernels = (DocidKernels) Class.forName("DocidKernelsVector").getDeclaredConstructor()
+					.newInstance();
+
+			return agreesWithScalar(kernels) ? kernels : SCALAR;
+		} catch (Throwable ex) {
+
+			// The class or the jdk.incubator.vector module is missing.
+
+			return SCALAR;
+		}
+	}
+
+	/**
+	 * Check that kernels give the same results as the scalar kernels. The
+	 * arrays are long enough that advance scans several vectors, and the
+	 * targets include ones before, between, on and after the docids.
+	 *
+	 * @param kernels
+	 *            The kernels to check.
+	 * @return True if every result is identical.
+	 */
+	private static boolean agreesWithScalar(DocidKernels kernels) {
+
+		int n = 203;
+		int[] a = new int[n];
+		int[] b = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			a[i] = 3 * i + (i % 3);
+			b[i] = 2 * i + (i % 2);
+		}
+
+		for (int from = 0; from < n; from += 17) {
+			for (int target = -1; target <= a[n - 1] + 1; target++) {
+				if (kernels.advance(a, from, n, target) != SCALAR.advance(a, from, n, target)) {
+					return false;
+				}
+			}
+		}
+
+		int[] expected = new int[n];
+		int[] actual = new int[n];
+		int length = SCALAR.intersect(a, n, b, n, expected);
+
+		return (kernels.intersect(a, n, b, n, actual) == length) && Arrays.equals(expected, actual);
+	}
+
+	/**
+	 * Find the first docid that is at least target.
+	 *
+	 * @param docids
+	 *            Sorted docids.
+	 * @param from
+	 *            The first index to consider.
+	 * @param to
+	 *            The end (exclusive) of the range to consider.
+	 * @param target
+	 *            The docid to search for.
+	 * @return The index of the first docid in [from, to) that is at least
+	 *         target, or to if there is none.
+	 */
+	public abstract int advance(int[] docids, int from, int to, int target);
+
+	/**
+	 * Intersect two sorted arrays of docids. Pass the shorter array as a;
+	 * each of its docids is searched for in b with advance.
+	 *
+	 * @param a
+	 *            Sorted docids.
+	 * @param aLength
+	 *            The number of docids in a.
+	 * @param b
+	 *            Sorted docids.
+	 * @param bLength
+	 *            The number of docids in b.
+	 * @param out
+	 *            Output: the docids that are in both arrays. It may be a.
+	 * @return The number of docids in out.
+	 */
+	public int intersect(int[] a, int aLength, int[] b, int bLength, int[] out) {
+
+		int n = 0;
+		int j = 0;
+
+		for (int i = 0; (i < aLength) && (j < bLength); i++) {
+			int docid = a[i];
+
+			j = this.advance(b, j, bLength, docid);
+
+			if ((j < bLength) && (b[j] == docid)) {
+				out[n++] = docid;
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * Get the name of the implementation.
+	 *
+	 * @return The name.
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName();
+	}
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * Scalar kernels. advance gallops (1, 2, 4, ... docids) and then does a
+	 * binary search, which is fast for both short and long skips.
+	 */
+	static class Scalar extends DocidKernels {
+
+		public int advance(int[] docids, int from, int to, int target) {
+
+			if ((from >= to) || (docids[from] >= target)) {
+				return from;
+			}
+
+			// docids[low] < target. Gallop until docids[high] >= target.
+
+			int low = from;
+			int step = 1;
+			int high = from + 1;
+
+			while ((high < to) && (docids[high] < target)) {
+				low = high;
+				step <<= 1;
+				high = low + step;
+			}
+
+			if (high > to) {
+				high = to;
+			}
+
+			// Binary search in (low, high].
+
+			while (low + 1 < high) {
+				int mid = (low + high) >>> 1;
+
+				if (docids[mid] < target) {
+					low = mid;
+				} else {
+					high = mid;
+				}
+			}
+
+			return high;
+		}
+
+		public int intersect(int[] a, int aLength, int[] b, int bLength, int[] out) {
+
+			// A merge is faster than searching when the arrays have similar
+			// lengths.
+
+			if (bLength > 8 * aLength) {
+				return super.intersect(a, aLength, b, bLength, out);
+			}
+
+			int n = 0;
+			int i = 0;
+			int j = 0;
+
+			while ((i < aLength) && (j < bLength)) {
+				if (a[i] < b[j]) {
+					i++;
+				} else if (a[i] > b[j]) {
+					j++;
+				} else {
+					out[n++] = a[i];
+					i++;
+					j++;
+				}
+			}
+
+			return n;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD docid kernels that use the Java Vector API. advance compares a block
+ * of docids with the target in one instruction; because the docids are
+ * sorted, the number of lanes that are less than the target is the offset of
+ * the answer. Long skips switch to the scalar galloping search.
+ * <p>
+ * This class needs the jdk.incubator.vector module to compile and to run; see
+ * {@link DocidKernels}.
+ * </p>
+ */
+public class DocidKernelsVector extends DocidKernels {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/**
+	 * The number of blocks that advance scans before it gallops.
+	 */
+	private static final int MAX_SCAN_BLOCKS = 4;
+
+	// --------------- Methods ---------------------------------------
+
+	public int advance(int[] docids, int from, int to, int target) {
+
+		int lanes = SPECIES.length();
+		int i = from;
+
+		for (int block = 0; (block < MAX_SCAN_BLOCKS) && (i + lanes <= to); block++, i += lanes) {
+			int less = IntVector.fromArray(SPECIES, docids, i).compare(VectorOperators.LT, target).trueCount();
+
+			if (less < lanes) {
+				return i + less;
+			}
+		}
+
+		return DocidKernels.SCALAR.advance(docids, i, to, target);
+	}
+}
@@ -0,0 +1,360 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.math.BigInteger;
+
+/**
+ * Formats doubles as ASCII bytes, in the format of Double.toString, without
+ * allocating. The digits are the shortest decimal that reads back as the
+ * same double (ties go to the closest, then to the even digit), computed
+ * with Giulietti's Schubfach algorithm: a few 128-bit multiplications by a
+ * precomputed power of ten, instead of the arbitrary precision arithmetic of
+ * Double.toString.
+ * <p>
+ * Double.toString occasionally produces a digit more than necessary; the
+ * output of format is then shorter, but it reads back as the same double.
+ * For the scores in run files the output is the same.
+ * </p>
+ */
+public class DoubleFormat {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The maximum number of bytes that format writes
+	 * ("-2.2250738585072014E-308").
+	 */
+	public static final int MAX_LENGTH = 24;
+
+	private static final int P = 53;
+	private static final int Q_MIN = -1074;
+	private static final long C_MIN = 1L << (P - 1);
+	private static final long C_TINY = 3;
+	private static final long T_MASK = C_MIN - 1;
+	private static final int BQ_MASK = 0x7ff;
+	private static final long MASK_63 = (1L << 63) - 1;
+
+	/**
+	 * The range of decimal exponents k of the table of powers of ten.
+	 */
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+
+	/**
+	 * g1 and g0 of each power of ten: 10^-k, scaled by a power of two so
+	 * that 2^125 &lt;= g &lt; 2^126, rounded up, and split into g = g1
+	 * 2^63 + g0.
+	 */
+	private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+	private static final long[] POW10 = new long[18];
+
+	static {
+		for (int k = K_MIN; k <= K_MAX; k++) {
+			int r = flog2pow10(-k) - 125;
+			BigInteger g;
+
+			if (k <= 0) {
+				BigInteger p = BigInteger.TEN.pow(-k);
+
+				g = (r >= 0) ? p.shiftRight(r) : p.shiftLeft(-r);
+			} else {
+				g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+			}
+
+			g = g.add(BigInteger.ONE);
+
+			G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+			G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+		}
+
+		POW10[0] = 1;
+
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = 10 * POW10[i - 1];
+		}
+	}
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Write a double in the format of Double.toString.
+	 *
+	 * @param v
+	 *            The double.
+	 * @param bytes
+	 *            Output: the ASCII characters are written here. It must
+	 *            have room for MAX_LENGTH bytes after pos.
+	 * @param pos
+	 *            The index of the first byte to write.
+	 * @return The index after the last byte written.
+	 */
+	public static int format(double v, byte[] bytes, int pos) {
+
+		long bits = Double.doubleToRawLongBits(v);
+		long t = bits & T_MASK;
+		int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+
+		if (bq == BQ_MASK) {
+			return putAscii((t != 0) ? "NaN" : (bits > 0) ? "Infinity" : "-Infinity", bytes, pos);
+		}
+
+		if (bits < 0) {
+			bytes[pos++] = '-';
+		}
+
+		if (bq != 0) {
+
+			// A normal value: c 2^q.
+
+			int mq = -Q_MIN + 1 - bq;
+			long c = C_MIN | t;
+
+			// Integers that are small enough are exact.
+
+			if ((0 < mq) && (mq < P)) {
+				long f = c >> mq;
+
+				if ((f << mq) == c) {
+					return putDecimal(f, 0, bytes, pos);
+				}
+			}
+
+			return toDecimal(-mq, c, 0, bytes, pos);
+		} else if (t != 0) {
+
+			// A subnormal value.
+
+			return (t < C_TINY) ? toDecimal(Q_MIN, 10 * t, -1, bytes, pos) : toDecimal(Q_MIN, t, 0, bytes, pos);
+		} else {
+			return putAscii("0.0", bytes, pos);
+		}
+	}
+
+	/**
+	 * Find the shortest decimal in the rounding interval of c 2^q, and write
+	 * it.
+	 *
+	 * @param q
+	 *            The binary exponent.
+	 * @param c
+	 *            The significand.
+	 * @param dk
+	 *            A correction of the decimal exponent for tiny subnormals.
+	 * @param bytes
+	 *            Output.
+	 * @param pos
+	 *            The index of the first byte to write.
+	 * @return The index after the last byte written.
+	 */
+	private static int toDecimal(int q, long c, int dk, byte[] bytes, int pos) {
+
+		int out = (int) c & 0x1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+
+		// The rounding interval is asymmetric at powers of two.
+
+		if ((c != C_MIN) || (q == Q_MIN)) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+
+		int h = q + flog2pow10(-k) + 2;
+		long g1 = G[2 * (k - K_MIN)];
+		long g0 = G[2 * (k - K_MIN) + 1];
+
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+
+		long s = vb >> 2;
+
+		// Try one digit less: a multiple of 10 in the interval.
+
+		if (s >= 100) {
+			long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= (sp10 << 2);
+			boolean wpin = (tp10 << 2) + out <= vbr;
+
+			if (upin != wpin) {
+				return putDecimal(upin ? sp10 : tp10, k, bytes, pos);
+			}
+		}
+
+		long u = s + 1;
+		boolean uin = vbl + out <= (s << 2);
+		boolean win = (u << 2) + out <= vbr;
+
+		if (uin != win) {
+			return putDecimal(uin ? s : u, k + dk, bytes, pos);
+		}
+
+		long cmp = vb - ((s + u) << 1);
+
+		return putDecimal(((cmp < 0) || ((cmp == 0) && ((s & 0x1) == 0))) ? s : u, k + dk, bytes, pos);
+	}
+
+	/**
+	 * Round the product of g and cp to odd.
+	 */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = Math.multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = Math.multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+
+		return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+	}
+
+	/**
+	 * Write f 10^e in the format of Double.toString: plain notation with at
+	 * least one digit after the point if 10^-3 &lt;= |v| &lt; 10^7, and
+	 * computerized scientific notation otherwise.
+	 *
+	 * @param f
+	 *            The decimal significand.
+	 * @param e
+	 *            The decimal exponent.
+	 * @param bytes
+	 *            Output.
+	 * @param pos
+	 *            The index of the first byte to write.
+	 * @return The index after the last byte written.
+	 */
+	private static int putDecimal(long f, int e, byte[] bytes, int pos) {
+
+		// Drop trailing zeros.
+
+		while ((f != 0) && (f % 10 == 0)) {
+			f /= 10;
+			e++;
+		}
+
+		int len = 1;
+
+		while ((len < POW10.length) && (f >= POW10[len])) {
+			len++;
+		}
+
+		// v = 0.d1 d2 ... dlen 10^exp
+
+		int exp = e + len;
+		int start = pos;
+
+		if ((0 < exp) && (exp <= 7)) {
+			if (len <= exp) {
+				pos = putDigits(f, len, bytes, pos);
+
+				for (int i = len; i < exp; i++) {
+					bytes[pos++] = '0';
+				}
+
+				bytes[pos++] = '.';
+				bytes[pos++] = '0';
+			} else {
+				putDigits(f, len, bytes, pos + 1);
+				System.arraycopy(bytes, pos + 1, bytes, pos, exp);
+				bytes[pos + exp] = '.';
+				pos += len + 1;
+			}
+		} else if ((-3 < exp) && (exp <= 0)) {
+			bytes[pos++] = '0';
+			bytes[pos++] = '.';
+
+			for (int i = exp; i < 0; i++) {
+				bytes[pos++] = '0';
+			}
+
+			pos = putDigits(f, len, bytes, pos);
+		} else {
+			putDigits(f, len, bytes, pos + 1);
+			bytes[pos] = bytes[pos + 1];
+			bytes[pos + 1] = '.';
+			pos += len + 1;
+
+			if (len == 1) {
+				bytes[pos++] = '0';
+			}
+
+			bytes[pos++] = 'E';
+
+			int x = exp - 1;
+
+			if (x < 0) {
+				bytes[pos++] = '-';
+				x = -x;
+			}
+
+			if (x >= 100) {
+				bytes[pos++] = (byte) ('0' + x / 100);
+				x %= 100;
+				bytes[pos++] = (byte) ('0' + x / 10);
+			} else if (x >= 10) {
+				bytes[pos++] = (byte) ('0' + x / 10);
+			}
+
+			bytes[pos++] = (byte) ('0' + x % 10);
+		}
+
+		assert pos - start <= MAX_LENGTH;
+		return pos;
+	}
+
+	/**
+	 * Write the len digits of f.
+	 *
+	 * @return The index after the last digit.
+	 */
+	private static int putDigits(long f, int len, byte[] bytes, int pos) {
+
+		for (int i = pos + len - 1; i >= pos; i--) {
+			bytes[i] = (byte) ('0' + f % 10);
+			f /= 10;
+		}
+
+		return pos + len;
+	}
+
+	/**
+	 * Write an ASCII string.
+	 *
+	 * @return The index after the last byte written.
+	 */
+	private static int putAscii(String s, byte[] bytes, int pos) {
+
+		for (int i = 0; i < s.length(); i++) {
+			bytes[pos++] = (byte) s.charAt(i);
+		}
+
+		return pos;
+	}
+
+	/**
+	 * @return floor(log10(2^e)), for |e| &lt;= 5456721.
+	 */
+	private static int flog10pow2(int e) {
+		return (int) ((e * 661_971_961_083L) >> 41);
+	}
+
+	/**
+	 * @return floor(log10(3/4 2^e)), for |e| &lt;= 2647166.
+	 */
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) ((e * 661_971_961_083L + -274_743_187_321L) >> 41);
+	}
+
+	/**
+	 * @return floor(log2(10^e)), for |e| &lt;= 1838394.
+	 */
+	private static int flog2pow10(int e) {
+		return (int) ((e * 913_124_641_741L) >> 38);
+	}
+}
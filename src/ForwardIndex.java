@@ -0,0 +1,555 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A forward index that is stored next to a Lucene index. For each document
+ * and field, it stores the document's (termId, tf) pairs and, optionally, the
+ * termId that occurs at each position. A shared term table maps termIds to
+ * term strings, document frequency (df) and collection term frequency (ctf).
+ * <p>
+ * Lucene term vectors must be decoded term by term, and each stem's
+ * collection statistics require a lookup in the term dictionary. The forward
+ * index stores the same information as flat, memory-mapped int arrays, so
+ * TermVector-style access (see {@link ForwardIndex.Field}) does not decode
+ * postings or allocate objects.
+ * </p>
+ * <p>
+ * The forward index is a directory named <i>indexPath</i>.fwd. Each field has
+ * three files:
+ * </p>
+ *
+ * <pre>
+ *    field.terms:    magic, index version, maxDoc, hasPositions, numTerms,
+ *                    then (term, df, ctf) per termId
+ *    field.offsets:  numDocs+1 longs; the byte offset of each document's record
+ *    field.docs:     one record per document:
+ *                      fieldLength, numStems, termId[numStems], tf[numStems],
+ *                      and if positions are stored,
+ *                      positionsLength, stem[positionsLength]
+ * </pre>
+ * <p>
+ * Stems in a document record are numbered from 1, in the same order as the
+ * term dictionary. Stem 0 indicates a stopword (or unindexed position), as in
+ * {@link TermVector}. The term table records the version and maxDoc of the
+ * index that the forward index was built from, and open rejects a forward
+ * index that doesn't match. Use the main method to build a forward index.
+ * </p>
+ */
+public class ForwardIndex {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String USAGE = "Usage:  java ForwardIndex -index INDEX_PATH [-fields f1,f2,...] [-positions]\n\n";
+
+	private static final int MAGIC = 0x46574458; // "FWDX"
+
+	private static final String SUFFIX = ".fwd";
+
+	private Map<String, Field> fields = new HashMap<String, Field>();
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * The forward index for one field. Document accessors take an internal
+	 * docid and a stem index, and read directly from the mapped files.
+	 */
+	public static class Field {
+
+		private final String name;
+		private final long version;
+		private final int maxDoc;
+		private final boolean hasPositions;
+		private final String[] termStrings;
+		private final int[] termDfs;
+		private final long[] termCtfs;
+		private final HashMap<String, Integer> termIds;
+		private final MMapFile offsets;
+		private final MMapFile docs;
+
+		private Field(File dir, String name) throws IOException {
+
+			this.name = name;
+
+			// The term table is small, so it is kept on the heap.
+
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(new File(dir, name + ".terms"))));
+
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Not a forward index term table: " + name);
+				}
+
+				this.version = in.readLong();
+				this.maxDoc = in.readInt();
+				this.hasPositions = in.readBoolean();
+
+				int numTerms = in.readInt();
+
+				this.termStrings = new String[numTerms];
+				this.termDfs = new int[numTerms];
+				this.termCtfs = new long[numTerms];
+				this.termIds = new HashMap<String, Integer>(numTerms * 2);
+
+				for (int i = 0; i < numTerms; i++) {
+					this.termStrings[i] = in.readUTF();
+					this.termDfs[i] = in.readInt();
+					this.termCtfs[i] = in.readLong();
+					this.termIds.put(this.termStrings[i], i);
+				}
+			} finally {
+				in.close();
+			}
+
+			this.offsets = new MMapFile(new File(dir, name + ".offsets"));
+			this.docs = new MMapFile(new File(dir, name + ".docs"));
+		}
+
+		/**
+		 * Get the name of the field.
+		 *
+		 * @return The field name.
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * Indicates whether positions are stored for this field.
+		 *
+		 * @return True if positions are stored, otherwise false.
+		 */
+		public boolean hasPositions() {
+			return this.hasPositions;
+		}
+
+		/**
+		 * Get the number of documents in the forward index.
+		 *
+		 * @return The number of documents.
+		 */
+		public int numDocs() {
+			return (int) (this.offsets.length() / 8) - 1;
+		}
+
+		private long record(int docid) {
+			return this.offsets.getLong(8L * docid);
+		}
+
+		/**
+		 * Get the length of the field in a document.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @return The number of indexed terms in the field.
+		 */
+		public int fieldLength(int docid) {
+			return this.docs.getInt(record(docid));
+		}
+
+		/**
+		 * Get the number of unique stems in the field of a document. Stems
+		 * are numbered 1..stemsLength.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @return The number of unique stems.
+		 */
+		public int stemsLength(int docid) {
+			return this.docs.getInt(record(docid) + 4);
+		}
+
+		/**
+		 * Get the termId of the i'th stem in a document.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @param i
+		 *            Index of the stem, starting at 1.
+		 * @return The termId.
+		 */
+		public int stemId(int docid, int i) {
+			return this.docs.getInt(record(docid) + 4L * (1 + i));
+		}
+
+		/**
+		 * Get the frequency (tf) of the i'th stem in a document.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @param i
+		 *            Index of the stem, starting at 1.
+		 * @return The stem frequency.
+		 */
+		public int stemFreq(int docid, int i) {
+			long r = record(docid);
+			return this.docs.getInt(r + 4L * (1 + this.docs.getInt(r + 4) + i));
+		}
+
+		/**
+		 * Get the number of positions in the field of a document, or 0 if
+		 * positions are not stored.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @return The number of positions.
+		 */
+		public int positionsLength(int docid) {
+			if (!this.hasPositions) {
+				return 0;
+			}
+
+			long r = record(docid);
+			return this.docs.getInt(r + 4L * (2 + 2 * this.docs.getInt(r + 4)));
+		}
+
+		/**
+		 * Get the index of the stem that occurs at a position in a document.
+		 * 0 indicates a stopword.
+		 *
+		 * @param docid
+		 *            The internal docid.
+		 * @param pos
+		 *            A position in the field, less than positionsLength.
+		 * @return The index of the stem.
+		 */
+		public int stemAt(int docid, int pos) {
+			long r = record(docid);
+			return this.docs.getInt(r + 4L * (3 + 2 * this.docs.getInt(r + 4) + pos));
+		}
+
+		/**
+		 * Get the number of terms in the term table.
+		 *
+		 * @return The vocabulary size.
+		 */
+		public int numTerms() {
+			return this.termStrings.length;
+		}
+
+		/**
+		 * Get the termId of a term string.
+		 *
+		 * @param term
+		 *            The processed (stemmed, lower-cased, etc) term string.
+		 * @return The termId, or -1 if the term does not occur in the field.
+		 */
+		public int termId(String term) {
+			Integer id = this.termIds.get(term);
+			return (id == null) ? -1 : id;
+		}
+
+		/**
+		 * Get the string of a term.
+		 *
+		 * @param termId
+		 *            The termId.
+		 * @return The term string.
+		 */
+		public String termString(int termId) {
+			return this.termStrings[termId];
+		}
+
+		/**
+		 * Get the document frequency (df) of a term.
+		 *
+		 * @param termId
+		 *            The termId.
+		 * @return The df of the term.
+		 */
+		public int termDf(int termId) {
+			return this.termDfs[termId];
+		}
+
+		/**
+		 * Get the collection term frequency (ctf) of a term.
+		 *
+		 * @param termId
+		 *            The termId.
+		 * @return The ctf of the term.
+		 */
+		public long termCtf(int termId) {
+			return this.termCtfs[termId];
+		}
+	}
+
+	// --------------- Methods ---------------------------------------
+
+	private ForwardIndex() {
+	}
+
+	/**
+	 * Get the forward index for a field.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return The forward index for the field, or null if the field isn't in
+	 *         the forward index.
+	 */
+	public Field getField(String fieldName) {
+		return this.fields.get(fieldName);
+	}
+
+	/**
+	 * Open the forward index that accompanies a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param reader
+	 *            The open index.
+	 * @return The forward index, or null if the index doesn't have one.
+	 * @throws IllegalArgumentException
+	 *             A field was built from a different version of the index.
+	 * @throws IOException
+	 *             Error accessing the forward index.
+	 */
+	public static ForwardIndex open(String indexPath, IndexReader reader)
+			throws IllegalArgumentException, IOException {
+
+		File dir = getDirectory(indexPath);
+
+		if (!dir.isDirectory()) {
+			return null;
+		}
+
+		ForwardIndex fwd = new ForwardIndex();
+
+		for (String fileName : dir.list()) {
+			if (fileName.endsWith(".terms")) {
+				String fieldName = fileName.substring(0, fileName.length() - ".terms".length());
+				Field field = new Field(dir, fieldName);
+
+				// A stale forward index would give TermVector the stems and
+				// statistics of the wrong documents.
+
+				if ((field.version != Idx.getIndexVersion(reader)) || (field.maxDoc != reader.maxDoc())
+						|| (field.numDocs() != reader.maxDoc())) {
+					throw new IllegalArgumentException("The forward index of " + indexPath
+							+ " doesn't match the index.  Rebuild it with ForwardIndex.main.");
+				}
+
+				fwd.fields.put(fieldName, field);
+			}
+		}
+
+		return fwd;
+	}
+
+	/**
+	 * Get the directory that contains the forward index of a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return The forward index directory.
+	 */
+	public static File getDirectory(String indexPath) {
+		return new File(new File(indexPath).getPath() + SUFFIX);
+	}
+
+	/**
+	 * Build the forward index for one field from the Lucene term vectors.
+	 *
+	 * @param reader
+	 *            The Lucene index.
+	 * @param dir
+	 *            The forward index directory.
+	 * @param fieldName
+	 *            The field to index.
+	 * @param positions
+	 *            If true, store positions.
+	 * @throws IOException
+	 *             Error accessing the Lucene index or the forward index.
+	 */
+	public static void build(IndexReader reader, File dir, String fieldName, boolean positions)
+			throws IOException {
+
+		// Assign termIds in term dictionary order and write the term table.
+
+		HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+		DataOutputStream terms = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(new File(dir, fieldName + ".terms"))));
+
+		try {
+			Terms dictionary = MultiFields.getTerms(reader, fieldName);
+			List<String> strings = new ArrayList<String>();
+			List<Integer> dfs = new ArrayList<Integer>();
+			List<Long> ctfs = new ArrayList<Long>();
+
+			if (dictionary != null) {
+				TermsEnum ithTerm = dictionary.iterator(null);
+				BytesRef term;
+
+				while ((term = ithTerm.next()) != null) {
+					String s = term.utf8ToString();
+					termIds.put(s, strings.size());
+					strings.add(s);
+					dfs.add(ithTerm.docFreq());
+					ctfs.add(ithTerm.totalTermFreq());
+				}
+			}
+
+			terms.writeInt(MAGIC);
+			terms.writeLong(Idx.getIndexVersion(reader));
+			terms.writeInt(reader.maxDoc());
+			terms.writeBoolean(positions);
+			terms.writeInt(strings.size());
+
+			for (int i = 0; i < strings.size(); i++) {
+				terms.writeUTF(strings.get(i));
+				terms.writeInt(dfs.get(i));
+				terms.writeLong(ctfs.get(i));
+			}
+		} finally {
+			terms.close();
+		}
+
+		// Write one record per document. Each term vector is read in a
+		// single pass; the positions buffer grows as needed and is reused.
+
+		DataOutputStream docs = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(new File(dir, fieldName + ".docs"))));
+		DataOutputStream offsets = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(new File(dir, fieldName + ".offsets"))));
+
+		try {
+			long offset = 0;
+			int[] ids = new int[16];
+			int[] tfs = new int[16];
+			int[] stemAt = new int[256];
+
+			for (int docid = 0; docid < reader.maxDoc(); docid++) {
+
+				int numStems = 0;
+				int fieldLength = 0;
+				int positionsLength = 0;
+				Terms vector = reader.getTermVector(docid, fieldName);
+
+				if (vector != null) {
+					TermsEnum ithTerm = vector.iterator(null);
+					BytesRef term;
+
+					while ((term = ithTerm.next()) != null) {
+						if (numStems == ids.length) {
+							ids = Arrays.copyOf(ids, 2 * numStems);
+							tfs = Arrays.copyOf(tfs, 2 * numStems);
+						}
+
+						int tf = (int) ithTerm.totalTermFreq();
+
+						ids[numStems] = termIds.get(term.utf8ToString());
+						tfs[numStems] = tf;
+						numStems++;
+						fieldLength += tf;
+
+						DocsAndPositionsEnum ithPositions = positions ? ithTerm.docsAndPositions(null, null) : null;
+
+						if (ithPositions == null) {
+							continue;
+						}
+
+						ithPositions.nextDoc();
+
+						for (int j = 0; j < tf; j++) {
+							int pos = ithPositions.nextPosition();
+
+							if (pos >= stemAt.length) {
+								stemAt = Arrays.copyOf(stemAt, Math.max(2 * stemAt.length, pos + 1));
+							}
+
+							while (positionsLength <= pos) {
+								stemAt[positionsLength++] = 0;
+							}
+
+							stemAt[pos] = numStems;
+						}
+					}
+				}
+
+				offsets.writeLong(offset);
+
+				docs.writeInt(fieldLength);
+				docs.writeInt(numStems);
+
+				for (int i = 0; i < numStems; i++) {
+					docs.writeInt(ids[i]);
+				}
+
+				for (int i = 0; i < numStems; i++) {
+					docs.writeInt(tfs[i]);
+				}
+
+				offset += 4L * (2 + 2 * numStems);
+
+				if (positions) {
+					docs.writeInt(positionsLength);
+
+					for (int i = 0; i < positionsLength; i++) {
+						docs.writeInt(stemAt[i]);
+					}
+
+					offset += 4L * (1 + positionsLength);
+				}
+			}
+
+			offsets.writeLong(offset);
+		} finally {
+			docs.close();
+			offsets.close();
+		}
+	}
+
+	/**
+	 * Build a forward index for a Lucene index.
+	 *
+	 * @param args
+	 *            -index INDEX_PATH [-fields f1,f2,...] [-positions]
+	 * @throws IOException
+	 *             Error accessing the Lucene index or the forward index.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		String indexPath = null;
+		String[] fieldNames = { "body", "title", "url", "inlink", "keywords" };
+		boolean positions = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if ("-index".equals(args[i]) && (i + 1 < args.length)) {
+				indexPath = args[++i];
+			} else if ("-fields".equals(args[i]) && (i + 1 < args.length)) {
+				fieldNames = args[++i].split(",");
+			} else if ("-positions".equals(args[i])) {
+				positions = true;
+			} else {
+				throw new IllegalArgumentException(USAGE);
+			}
+		}
+
+		if (indexPath == null) {
+			throw new IllegalArgumentException(USAGE);
+		}
+
+		IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+		File dir = getDirectory(indexPath);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+
+		for (String fieldName : fieldNames) {
+			Timer timer = new Timer();
+			timer.start();
+			build(reader, dir, fieldName.trim(), positions);
+			timer.stop();
+			System.out.println(fieldName + ":  " + timer);
+		}
+
+		reader.close();
+	}
+}
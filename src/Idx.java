@@ -32,13 +32,30 @@ public class Idx {
 
 	private static DocLengthStore DOCLENGTHSTORE = null;
 
+	private static ForwardIndex FORWARDINDEX = null;
+
+	private static AttributeStore ATTRIBUTESTORE = null;
+
+	private static IndexSnapshot SNAPSHOT = null;
+
 	private static HashMap<String, IndexReader> openIndexReaders = new HashMap<String, IndexReader>();
 	private static HashMap<String, DocLengthStore> openDocLengthStores = new HashMap<String, DocLengthStore>();
+	private static HashMap<String, ForwardIndex> openForwardIndexes = new HashMap<String, ForwardIndex>();
+	private static HashMap<String, AttributeStore> openAttributeStores = new HashMap<String, AttributeStore>();
+	private static HashMap<String, IndexSnapshot> openSnapshots = new HashMap<String, IndexSnapshot>();
+
+	/**
+	 * The external id ordinals of each open index, built when they are first
+	 * needed (see getExternalDocidOrdinals).
+	 */
+	private static Map<IndexReader, int[]> externalDocidOrdinals = new IdentityHashMap<IndexReader, int[]>();
 
 	// --------------- Methods ---------------------------------------
 
 	/**
-	 * Get the specified attribute from the specified document.
+	 * Get the specified attribute from the specified document. The attribute
+	 * store is used if it has the attribute; otherwise the document's stored
+	 * fields are read.
 	 * 
 	 * @param attributeName
 	 *            Name of attribute
@@ -50,6 +67,16 @@ public class Idx {
 	 */
 	public static String getAttribute(String attributeName, int docid) throws IOException {
 
+		AttributeStore store = Idx.ATTRIBUTESTORE;
+
+		if (store != null) {
+			AttributeStore.Attribute attribute = store.getAttribute(attributeName);
+
+			if (attribute != null) {
+				return attribute.get(docid);
+			}
+		}
+
 		Document d = Idx.INDEXREADER.document(docid);
 		return d.get(attributeName);
 	}
@@ -64,7 +91,11 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static int getDocCount(String fieldName) throws IOException {
-		return Idx.INDEXREADER.getDocCount(fieldName);
+
+		IndexSnapshot snapshot = Idx.SNAPSHOT;
+		Integer docCount = (snapshot == null) ? null : snapshot.getDocCount(fieldName);
+
+		return (docCount != null) ? docCount : Idx.INDEXREADER.getDocCount(fieldName);
 	}
 
 	/**
@@ -78,9 +109,157 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static String getExternalDocid(int iid) throws IOException {
-		Document d = Idx.INDEXREADER.document(iid);
-		String eid = d.get("externalId");
-		return eid;
+		return getAttribute("externalId", iid);
+	}
+
+	/**
+	 * Get the position of each document's external id in the sorted order of
+	 * the external ids of the current index, so that documents can be
+	 * ordered by external id without reading their stored fields. Documents
+	 * that have the same external id have the same ordinal; documents that
+	 * don't have one come last.
+	 * <p>
+	 * The ordinals are read from the externalId terms, which Lucene keeps in
+	 * sorted order, when they are first needed. Term order (UTF-8 bytes) and
+	 * String order (UTF-16 chars) only differ for unusual characters; if
+	 * they differ, the external ids are read and sorted as Strings instead.
+	 * </p>
+	 *
+	 * @return For each internal docid, the ordinal of its external id.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static int[] getExternalDocidOrdinals() throws IOException {
+
+		IndexReader reader = Idx.INDEXREADER;
+
+		synchronized (externalDocidOrdinals) {
+			int[] ordinals = externalDocidOrdinals.get(reader);
+
+			if (ordinals == null) {
+				ordinals = readExternalDocidOrdinals(reader);
+
+				if (ordinals == null) {
+					ordinals = sortExternalDocids(reader);
+				}
+
+				externalDocidOrdinals.put(reader, ordinals);
+			}
+
+			return ordinals;
+		}
+	}
+
+	/**
+	 * Read the external id ordinals from the terms of the externalId field.
+	 *
+	 * @param reader
+	 *            An index.
+	 * @return The ordinals, or null if the field isn't indexed or term order
+	 *         isn't String order.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static int[] readExternalDocidOrdinals(IndexReader reader) throws IOException {
+
+		Terms terms = MultiFields.getTerms(reader, "externalId");
+
+		if (terms == null) {
+			return null;
+		}
+
+		int[] ordinals = new int[reader.maxDoc()];
+		TermsEnum termsEnum = terms.iterator(null);
+		DocsEnum docs = null;
+		String previous = null;
+		int ordinal = 0;
+		BytesRef term;
+
+		Arrays.fill(ordinals, Integer.MAX_VALUE);
+
+		while ((term = termsEnum.next()) != null) {
+			String externalId = term.utf8ToString();
+
+			if ((previous != null) && (previous.compareTo(externalId) >= 0)) {
+				return null;
+			}
+
+			docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+
+			while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+				ordinals[docs.docID()] = ordinal;
+			}
+
+			previous = externalId;
+			ordinal++;
+		}
+
+		return ordinals;
+	}
+
+	/**
+	 * Compute the external id ordinals by reading and sorting the external
+	 * ids of every document.
+	 *
+	 * @param reader
+	 *            An index.
+	 * @return The ordinals.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static int[] sortExternalDocids(IndexReader reader) throws IOException {
+
+		final String[] externalIds = new String[reader.maxDoc()];
+		Integer[] order = new Integer[externalIds.length];
+
+		for (int docid = 0; docid < externalIds.length; docid++) {
+			externalIds[docid] = reader.document(docid).get("externalId");
+			order[docid] = docid;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				String idA = externalIds[a];
+				String idB = externalIds[b];
+
+				if (idA == null) {
+					return (idB == null) ? 0 : 1;
+				} else {
+					return (idB == null) ? -1 : idA.compareTo(idB);
+				}
+			}
+		});
+
+		int[] ordinals = new int[externalIds.length];
+		int ordinal = 0;
+
+		for (int i = 0; i < order.length; i++) {
+			String externalId = externalIds[order[i]];
+
+			if (externalId == null) {
+				ordinals[order[i]] = Integer.MAX_VALUE;
+			} else {
+				if ((i > 0) && !externalId.equals(externalIds[order[i - 1]])) {
+					ordinal++;
+				}
+
+				ordinals[order[i]] = ordinal;
+			}
+		}
+
+		return ordinals;
+	}
+
+	/**
+	 * Get the forward index for a field of the current index.
+	 * 
+	 * @param fieldName
+	 *            The field name.
+	 * @return The forward index for the field, or null if the current index
+	 *         doesn't have one.
+	 */
+	public static ForwardIndex.Field getForwardIndex(String fieldName) {
+		return (Idx.FORWARDINDEX == null) ? null : Idx.FORWARDINDEX.getField(fieldName);
 	}
 
 	/**
@@ -98,6 +277,74 @@ public class Idx {
 		return (int) Idx.DOCLENGTHSTORE.getDocLength(fieldName, docid);
 	}
 
+	/**
+	 * Get the lengths of the specified field in several documents. The
+	 * lengths are read from each leaf (segment) of the index in turn, so this
+	 * is faster than calling getFieldLength for each document.
+	 * 
+	 * @param fieldName
+	 *            Name of field to access lengths.
+	 * @param docids
+	 *            Internal docids, in increasing order.
+	 * @param from
+	 *            The index of the first docid.
+	 * @param n
+	 *            The number of docids.
+	 * @param lengths
+	 *            Output: lengths[i] is set to the length of the field in
+	 *            docids[from+i].
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static void getFieldLengths(String fieldName, int[] docids, int from, int n, double[] lengths)
+			throws IOException {
+		Idx.DOCLENGTHSTORE.getDocLengths(fieldName, docids, from, n, lengths);
+	}
+
+	/**
+	 * Get the lengths of the specified field in every document.
+	 * 
+	 * @param fieldName
+	 *            Name of field to access lengths.
+	 * @return The length of the field in each document, or null if the field
+	 *         doesn't have lengths.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static int[] getAllFieldLengths(String fieldName) throws IOException {
+		return Idx.DOCLENGTHSTORE.getAllDocLengths(fieldName);
+	}
+
+	/**
+	 * Position a TermsEnum of one leaf (segment) of the current index on a
+	 * term. Postings that are read from it have leaf docids; add the leaf's
+	 * docBase to get internal docids.
+	 * 
+	 * @param leaf
+	 *            A leaf of Idx.INDEXREADER.
+	 * @param fieldName
+	 *            The field that the term occurs in.
+	 * @param term
+	 *            The processed (stemmed, lower-cased, etc) term.
+	 * @return The TermsEnum, or null if the term doesn't occur in the field
+	 *         in this leaf.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static TermsEnum getTermsEnum(AtomicReaderContext leaf, String fieldName, BytesRef term)
+			throws IOException {
+
+		Terms terms = leaf.reader().terms(fieldName);
+
+		if (terms == null) {
+			return null;
+		}
+
+		TermsEnum termsEnum = terms.iterator(null);
+
+		return termsEnum.seekExact(term, true) ? termsEnum : null;
+	}
+
 	/**
 	 * Get the internal document id for a document specified by its external id,
 	 * e.g. clueweb09-enwp00-88-09710. If no such document exists, throw an
@@ -148,7 +395,11 @@ public class Idx {
 	 *             Error accessing the Lucene index.
 	 */
 	public static long getSumOfFieldLengths(String fieldName) throws IOException {
-		return Idx.INDEXREADER.getSumTotalTermFreq(fieldName);
+
+		IndexSnapshot snapshot = Idx.SNAPSHOT;
+		Long sum = (snapshot == null) ? null : snapshot.getSumOfFieldLengths(fieldName);
+
+		return (sum != null) ? sum : Idx.INDEXREADER.getSumTotalTermFreq(fieldName);
 	}
 
 	/**
@@ -168,7 +419,25 @@ public class Idx {
 	}
 
 	/**
-	 * Open a Lucene index and the associated DocLengthStore.
+	 * Get the number of documents that contain the term in the specified
+	 * field.
+	 * 
+	 * @param fieldName
+	 *            The field name.
+	 * @param term
+	 *            The term.
+	 * @return The document frequency of the term.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static int getDocFreq(String fieldName, String term) throws IOException {
+		return INDEXREADER.docFreq(new Term(fieldName, new BytesRef(term)));
+	}
+
+	/**
+	 * Open a Lucene index and the associated DocLengthStore, ForwardIndex,
+	 * AttributeStore and IndexSnapshot (if they have been built). An index
+	 * that is already open isn't opened again.
 	 * 
 	 * @param indexPath
 	 *            A directory that contains a Lucene index.
@@ -182,6 +451,13 @@ public class Idx {
 		IndexReader indexReader;
 		DocLengthStore docLengthStore;
 
+		// An index is opened once. Opening it again would leak the old
+		// reader, and discard the document lengths and cached postings.
+
+		if (openIndexReaders.containsKey(indexPath)) {
+			return;
+		}
+
 		// Open the Lucene index
 
 		indexReader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
@@ -199,16 +475,136 @@ public class Idx {
 			throw new IllegalArgumentException("Unable to open the document length store.");
 		}
 
+		// The forward index is optional. It is built by ForwardIndex.main.
+		// So is the attribute store, which is built by AttributeStore.main.
+		// Either is rejected if it was built from another version of the
+		// index.
+
+		ForwardIndex forwardIndex;
+		AttributeStore attributeStore;
+
+		try {
+			forwardIndex = ForwardIndex.open(indexPath, indexReader);
+			attributeStore = AttributeStore.open(indexPath, indexReader);
+		} catch (IllegalArgumentException ex) {
+			indexReader.close();
+			throw ex;
+		}
+
+		// The snapshot is optional too. It is built by IndexSnapshot.main,
+		// and it replaces the norms and external id ordinals, which are
+		// otherwise read when they are first used.
+
+		IndexSnapshot snapshot;
+
+		try {
+			snapshot = IndexSnapshot.load(indexPath, indexReader);
+		} catch (IllegalArgumentException ex) {
+			indexReader.close();
+			throw ex;
+		}
+
+		if (snapshot != null) {
+			for (Map.Entry<String, int[]> lengths : snapshot.getDocLengths().entrySet()) {
+				docLengthStore.setDocLengths(lengths.getKey(), lengths.getValue());
+			}
+
+			if (snapshot.getExternalDocidOrdinals() != null) {
+				synchronized (externalDocidOrdinals) {
+					externalDocidOrdinals.put(indexReader, snapshot.getExternalDocidOrdinals());
+				}
+			}
+		}
+
 		// Keep track of the open indexes.
 
 		openIndexReaders.put(indexPath, indexReader);
 		openDocLengthStores.put(indexPath, docLengthStore);
+		openForwardIndexes.put(indexPath, forwardIndex);
+		openAttributeStores.put(indexPath, attributeStore);
+		openSnapshots.put(indexPath, snapshot);
 
 		// The current index defaults to the first open index.
 
 		if (Idx.INDEXREADER == null) {
 			Idx.INDEXREADER = indexReader;
 			Idx.DOCLENGTHSTORE = docLengthStore;
+			Idx.FORWARDINDEX = forwardIndex;
+			Idx.ATTRIBUTESTORE = attributeStore;
+			Idx.SNAPSHOT = snapshot;
+		}
+	}
+
+	/**
+	 * Get the version of an index, which changes whenever the index does.
+	 * Files that are built from an index (e.g., the AttributeStore) record
+	 * it, so that they can be rejected if the index changes.
+	 * 
+	 * @param reader
+	 *            An index.
+	 * @return The version, or -1 if the index doesn't have one.
+	 */
+	public static long getIndexVersion(IndexReader reader) {
+		return (reader instanceof DirectoryReader) ? ((DirectoryReader) reader).getVersion() : -1;
+	}
+
+	/**
+	 * Is an index open?
+	 * 
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return True if the index has been opened.
+	 */
+	public static boolean isOpen(String indexPath) {
+		return openIndexReaders.containsKey(indexPath);
+	}
+
+	/**
+	 * Warm up the current index, so that the first queries don't pay for
+	 * loading it: load the document lengths of every field and the external
+	 * id ordinals (unless the snapshot has them), and read the postings of
+	 * hot terms, so that their term dictionary blocks and postings are in
+	 * the operating system's file cache.
+	 * 
+	 * @param hotTermsPath
+	 *            A file of hot terms, one per line, in query syntax (e.g.,
+	 *            apple or apple.title), or null.
+	 * @throws IOException
+	 *             Error accessing the Lucene index or reading the file.
+	 */
+	public static void warmUp(String hotTermsPath) throws IOException {
+
+		Idx.DOCLENGTHSTORE.loadAll();
+		Idx.getExternalDocidOrdinals();
+
+		if (hotTermsPath == null) {
+			return;
+		}
+
+		BufferedReader input = new BufferedReader(new FileReader(hotTermsPath));
+
+		try {
+			String line;
+
+			while ((line = input.readLine()) != null) {
+				line = line.trim();
+
+				if (line.length() == 0) {
+					continue;
+				}
+
+				// .body is the default field, as in queries.
+
+				int delimiter = line.indexOf('.');
+				String field = (delimiter < 0) ? "body" : line.substring(delimiter + 1).toLowerCase();
+				String term = (delimiter < 0) ? line : line.substring(0, delimiter);
+
+				for (String t : QryParser.tokenizeString(term)) {
+					new InvList(t, field);
+				}
+			}
+		} finally {
+			input.close();
 		}
 	}
 
@@ -229,8 +625,16 @@ public class Idx {
 			throw new IllegalArgumentException("An index must be open before it can be the current index");
 		}
 
+		if (Idx.INDEXREADER != indexReader) {
+			DocSetCache.clear();
+			InvListCache.clear();
+		}
+
 		Idx.INDEXREADER = indexReader;
 		Idx.DOCLENGTHSTORE = docLengthStore;
+		Idx.FORWARDINDEX = openForwardIndexes.get(indexPath);
+		Idx.ATTRIBUTESTORE = openAttributeStores.get(indexPath);
+		Idx.SNAPSHOT = openSnapshots.get(indexPath);
 	}
 
 	/**
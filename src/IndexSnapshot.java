@@ -0,0 +1,302 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * A snapshot of the index data that a process needs before it can evaluate
+ * queries at full speed: the collection statistics of each field, the
+ * document lengths of each field, and the external id ordinals (see
+ * Idx.getExternalDocidOrdinals). Without a snapshot they are computed from
+ * the norms, terms and stored fields of the index when they are first
+ * used, which makes the first queries after a restart slow.
+ * <p>
+ * The snapshot is a file named <i>indexPath</i>.snapshot. It records the
+ * version of the index that it was built from; Idx.open rejects a snapshot
+ * of a different version. Use the main method to build a snapshot.
+ * </p>
+ *
+ * <pre>
+ *    magic (a long), index version (a long), maxDoc (an int)
+ *    the number of fields (an int), then for each field:
+ *        name (a short length and UTF-8 bytes)
+ *        docCount (an int), sumTotalTermFreq (a long)
+ *        hasLengths (a byte), then maxDoc ints if it is 1
+ *    hasOrdinals (a byte), then maxDoc ints if it is 1
+ * </pre>
+ */
+public class IndexSnapshot {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final String USAGE = "Usage:  java IndexSnapshot -index INDEX_PATH\n\n";
+
+	private static final long MAGIC = 0x534E4150L; // "SNAP"
+
+	private static final String SUFFIX = ".snapshot";
+
+	/**
+	 * The size of the buffer that arrays are read through.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private long version;
+	private int maxDoc;
+
+	private Map<String, Integer> docCounts = new HashMap<String, Integer>();
+	private Map<String, Long> sumTotalTermFreqs = new HashMap<String, Long>();
+	private Map<String, int[]> docLengths = new HashMap<String, int[]>();
+	private int[] externalDocidOrdinals = null;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Get the number of documents that contain a field.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return The number of documents, or null if the snapshot doesn't have
+	 *         the field.
+	 */
+	public Integer getDocCount(String fieldName) {
+		return this.docCounts.get(fieldName);
+	}
+
+	/**
+	 * Get the total length of a field in the collection.
+	 *
+	 * @param fieldName
+	 *            The field name.
+	 * @return The sum of the field's lengths, or null if the snapshot
+	 *         doesn't have the field.
+	 */
+	public Long getSumOfFieldLengths(String fieldName) {
+		return this.sumTotalTermFreqs.get(fieldName);
+	}
+
+	/**
+	 * Get the lengths of each field in every document.
+	 *
+	 * @return The lengths of each field that has them, indexed by docid.
+	 */
+	public Map<String, int[]> getDocLengths() {
+		return this.docLengths;
+	}
+
+	/**
+	 * Get the external id ordinals.
+	 *
+	 * @return The ordinal of each document's external id, or null if the
+	 *         snapshot doesn't have them.
+	 */
+	public int[] getExternalDocidOrdinals() {
+		return this.externalDocidOrdinals;
+	}
+
+	/**
+	 * Load the snapshot of a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @param reader
+	 *            The open index.
+	 * @return The snapshot, or null if the index doesn't have one.
+	 * @throws IllegalArgumentException
+	 *             The snapshot was built from a different version of the
+	 *             index.
+	 * @throws IOException
+	 *             Error reading the snapshot.
+	 */
+	public static IndexSnapshot load(String indexPath, IndexReader reader)
+			throws IllegalArgumentException, IOException {
+
+		File file = getFile(indexPath);
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+		try {
+			if (in.readLong() != MAGIC) {
+				throw new IOException("Not an index snapshot: " + file);
+			}
+
+			IndexSnapshot snapshot = new IndexSnapshot();
+
+			snapshot.version = in.readLong();
+			snapshot.maxDoc = in.readInt();
+
+			if ((snapshot.version != Idx.getIndexVersion(reader)) || (snapshot.maxDoc != reader.maxDoc())) {
+				throw new IllegalArgumentException("The snapshot of " + indexPath
+						+ " doesn't match the index.  Rebuild it with IndexSnapshot.main.");
+			}
+
+			int numFields = in.readInt();
+			byte[] buffer = new byte[BUFFER_SIZE];
+
+			for (int i = 0; i < numFields; i++) {
+				byte[] name = new byte[in.readUnsignedShort()];
+
+				in.readFully(name);
+
+				String fieldName = new String(name, StandardCharsets.UTF_8);
+
+				snapshot.docCounts.put(fieldName, in.readInt());
+				snapshot.sumTotalTermFreqs.put(fieldName, in.readLong());
+
+				if (in.readByte() == 1) {
+					snapshot.docLengths.put(fieldName, readInts(in, snapshot.maxDoc, buffer));
+				}
+			}
+
+			if (in.readByte() == 1) {
+				snapshot.externalDocidOrdinals = readInts(in, snapshot.maxDoc, buffer);
+			}
+
+			return snapshot;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the snapshot file of a Lucene index.
+	 *
+	 * @param indexPath
+	 *            A directory that contains a Lucene index.
+	 * @return The snapshot file.
+	 */
+	public static File getFile(String indexPath) {
+		return new File(new File(indexPath).getPath() + SUFFIX);
+	}
+
+	/**
+	 * Write a snapshot of the current index (see Idx.open).
+	 *
+	 * @param file
+	 *            The snapshot file.
+	 * @throws IOException
+	 *             Error accessing the Lucene index or writing the snapshot.
+	 */
+	public static void build(File file) throws IOException {
+
+		IndexReader reader = Idx.INDEXREADER;
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+
+		try {
+			out.writeLong(MAGIC);
+			out.writeLong(Idx.getIndexVersion(reader));
+			out.writeInt(reader.maxDoc());
+
+			Collection<String> fields = MultiFields.getIndexedFields(reader);
+
+			out.writeInt(fields.size());
+
+			for (String fieldName : fields) {
+				byte[] name = fieldName.getBytes(StandardCharsets.UTF_8);
+
+				out.writeShort(name.length);
+				out.write(name);
+				out.writeInt(reader.getDocCount(fieldName));
+				out.writeLong(reader.getSumTotalTermFreq(fieldName));
+				writeInts(out, Idx.getAllFieldLengths(fieldName));
+			}
+
+			writeInts(out, Idx.getExternalDocidOrdinals());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read an array of ints.
+	 *
+	 * @param in
+	 *            The input.
+	 * @param n
+	 *            The length of the array.
+	 * @param buffer
+	 *            A scratch buffer; its length is a multiple of 4.
+	 * @return The array.
+	 * @throws IOException
+	 *             Error reading the input.
+	 */
+	private static int[] readInts(DataInputStream in, int n, byte[] buffer) throws IOException {
+
+		int[] values = new int[n];
+		ByteBuffer bytes = ByteBuffer.wrap(buffer);
+
+		for (int i = 0; i < n;) {
+			int count = Math.min(n - i, buffer.length / 4);
+
+			in.readFully(buffer, 0, 4 * count);
+			bytes.clear();
+			bytes.asIntBuffer().get(values, i, count);
+			i += count;
+		}
+
+		return values;
+	}
+
+	/**
+	 * Write an optional array of ints: a byte that is 1 if it is present,
+	 * then its values.
+	 *
+	 * @param out
+	 *            The output.
+	 * @param values
+	 *            The array, or null.
+	 * @throws IOException
+	 *             Error writing the output.
+	 */
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+
+		out.writeByte((values == null) ? 0 : 1);
+
+		if (values != null) {
+			for (int value : values) {
+				out.writeInt(value);
+			}
+		}
+	}
+
+	/**
+	 * Build a snapshot of a Lucene index.
+	 *
+	 * @param args
+	 *            -index INDEX_PATH
+	 * @throws IOException
+	 *             Error accessing the Lucene index or writing the snapshot.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if ((args.length != 2) || !"-index".equals(args[0])) {
+			throw new IllegalArgumentException(USAGE);
+		}
+
+		String indexPath = args[1];
+		File file = getFile(indexPath);
+
+		// Build the snapshot from the index, not from an older snapshot.
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Can't replace " + file);
+		}
+
+		Timer timer = new Timer();
+		timer.start();
+		Idx.open(indexPath);
+		build(file);
+		timer.stop();
+		System.out.println(file + ":  " + timer);
+	}
+}
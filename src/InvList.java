@@ -42,6 +42,12 @@ public class InvList {
    */
   public Vector<DocPosting> postings = new Vector<DocPosting>();
 
+  /**
+   *  The docids of the postings, as a primitive array, or null if
+   *  they haven't been requested since the list last changed.
+   */
+  private int[] docids = null;
+
   //  --------------- Nested classes --------------------------------
 
   /**
@@ -105,6 +111,21 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, with or without positions.
+   *  Most leaves of a query only need term frequencies, and decoding
+   *  positions is the most expensive part of reading postings, so
+   *  postings without positions have tf but an empty positions list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions If false, positions are not read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean readPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -118,29 +139,57 @@ public class InvList {
     if (Idx.INDEXREADER.docFreq(term) < 1)
       return;
 
-    //  Lookup the inverted list.
+    //  Read the postings of each leaf (segment) of the index
+    //  directly, rather than through a merged MultiFields view.  Leaf
+    //  docids are relative to the leaf's docBase, and leaves are in
+    //  docid order, so the inverted list is in docid order.
+
+    for (AtomicReaderContext leaf : Idx.INDEXREADER.leaves()) {
+
+      TermsEnum termsEnum = Idx.getTermsEnum(leaf, fieldString, termBytes);
+
+      if (termsEnum == null)
+        continue;
 
-    DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
-				       fieldString, termBytes);
+      int docBase = leaf.docBase;
+      Bits liveDocs = leaf.reader().getLiveDocs();
 
-    //  Copy from Lucene inverted list format to our inverted list
-    //  format. This is a little inefficient, but allows query
-    //  operators such as #SYN and #NEAR/n to be insulated from the
-    //  details of Lucene inverted list implementations.
+      //  Without positions, read docids and term frequencies only.
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      if (! readPositions) {
+        DocsEnum dList = termsEnum.docs(liveDocs, null, DocsEnum.FLAG_FREQS);
 
-      int tf = iList.freq();
-      int[] positions = new int[tf];
+        while (dList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          DocPosting p = new DocPosting(docBase + dList.docID());
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+          p.tf = dList.freq();
+          this.postings.add(p);
+          this.df++;
+          this.ctf += p.tf;
+        }
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+        continue;
+      }
+
+      DocsAndPositionsEnum iList = termsEnum.docsAndPositions(liveDocs, null);
+
+      //  Copy from Lucene inverted list format to our inverted list
+      //  format. This is a little inefficient, but allows query
+      //  operators such as #SYN and #NEAR/n to be insulated from the
+      //  details of Lucene inverted list implementations.
+
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+        int tf = iList.freq();
+        int[] positions = new int[tf];
+
+        for (int j = 0; j < tf; j++)
+          positions[j] = iList.nextPosition();
+
+        this.postings.add(new DocPosting(docBase + iList.docID(), positions));
+        this.df++;
+        this.ctf += tf;
+      }
     }
   }
 
@@ -164,6 +213,31 @@ public class InvList {
 
     this.postings.add (p);
     this.df ++;
+    this.docids = null;
+    this.ctf += p.tf;
+    return true;
+  }
+
+  /**
+   *  Append a posting that has a term frequency but no positions.
+   *  Posting must be appended in docid order, otherwise this method
+   *  fails.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The number of times the term occurs in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.postings.get(this.df-1).docid >= docid))
+      return false;
+
+    DocPosting p = new DocPosting (docid);
+
+    p.tf = tf;
+    this.postings.add (p);
+    this.df ++;
+    this.docids = null;
     this.ctf += p.tf;
     return true;
   }
@@ -177,6 +251,26 @@ public class InvList {
     return this.postings.get(docid).docid;
   }
 
+  /**
+   *  Get the docids of the inverted list as a sorted array, which
+   *  query operators can search and intersect quickly (see {@link
+   *  DocidKernels}).  The array is built the first time that it is
+   *  requested.  Don't modify it.
+   *  @return The docids, in inverted list order.
+   */
+  public int[] getDocids() {
+    if (this.docids == null) {
+      int[] d = new int[this.df];
+
+      for (int i = 0; i < this.df; i++)
+        d[i] = this.postings.get(i).docid;
+
+      this.docids = d;
+    }
+
+    return this.docids;
+  }
+
   /**
    *  Get the term frequency in the n'th document of the inverted list.
    *  @param n The index of the requested document term frequency.
@@ -186,6 +280,21 @@ public class InvList {
     return this.postings.get(n).tf;
   }
 
+  /**
+   *  Estimate the memory that the inverted list uses, for caches
+   *  that are bounded by size (see {@link InvListCache}).  Each
+   *  posting is an object with a Vector of boxed locations.
+   *  @return The estimated size, in bytes.
+   */
+  public long sizeInBytes() {
+    long bytes = 64 + 8L * this.postings.capacity() + 4L * this.df;
+
+    for (int i = 0; i < this.df; i++)
+      bytes += 80 + 20L * this.postings.get(i).positions.size();
+
+    return bytes;
+  }
+
   /**
    *  Print the inverted list.  This is handy for debugging.
    */
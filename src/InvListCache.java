@@ -0,0 +1,93 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ * A bounded, least-recently-used cache of the inverted lists that #SYN,
+ * #NEAR/n and #WINDOW/n operators produce (see QryIop.initialize). These
+ * lists are merged from the positions of their arguments, which is much more
+ * expensive than reading a term's inverted list, and SDM-style query sets and
+ * parameter sweeps evaluate the same subqueries many times. The bound is the
+ * estimated size of the cached lists (see InvList.sizeInBytes and
+ * SizeBoundedCache). Inverted lists are only valid for the index that they
+ * were read from, so the cache is cleared when the current index changes.
+ * <p>
+ * Cached inverted lists are shared by every query that uses them, so they
+ * must not be modified.
+ * </p>
+ */
+public class InvListCache {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The default capacity, in bytes.
+	 */
+	public static final long DEFAULT_CAPACITY = 64L << 20;
+
+	private static final SizeBoundedCache<InvList> cache = new SizeBoundedCache<InvList>("InvListCache",
+			"inverted lists", DEFAULT_CAPACITY) {
+		protected long sizeOf(InvList list) {
+			return list.sizeInBytes();
+		}
+	};
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Get a cached inverted list.
+	 *
+	 * @param key
+	 *            The canonical form of the query operator (see
+	 *            QryIop.getInvListCacheKey).
+	 * @return The inverted list, or null if it isn't cached.
+	 */
+	public static InvList get(String key) {
+		return cache.get(key);
+	}
+
+	/**
+	 * Cache an inverted list, and evict the least recently used lists if the
+	 * cache is full. A list that is larger than the capacity isn't cached.
+	 *
+	 * @param key
+	 *            The canonical form of the query operator.
+	 * @param list
+	 *            The inverted list.
+	 */
+	public static void put(String key, InvList list) {
+
+		// Build the docid array now, so that queries that share the list
+		// never write to it.
+
+		list.getDocids();
+		cache.put(key, list);
+	}
+
+	/**
+	 * Remove every inverted list from the cache.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Set the capacity of the cache.
+	 *
+	 * @param bytes
+	 *            The maximum total size of the cached inverted lists. 0
+	 *            disables the cache.
+	 */
+	public static void setCapacity(long bytes) {
+		cache.setCapacity(bytes);
+	}
+
+	/**
+	 * Get a string that describes the use of the cache.
+	 *
+	 * @return Cache statistics.
+	 */
+	public static String getStatistics() {
+		return cache.getStatistics();
+	}
+}
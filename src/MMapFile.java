@@ -0,0 +1,144 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, random access to a memory-mapped file. Java can only map 2GB at
+ * a time, so large files are mapped as a sequence of fixed-size chunks and
+ * addressed with long offsets. Values are big-endian, which matches the
+ * format written by DataOutputStream.
+ * <p>
+ * None of the accessors allocate, and the mapping is shared by all threads, so
+ * an MMapFile may be used concurrently.
+ * </p>
+ */
+public class MMapFile {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * Chunks are 1GB. The chunk size is a multiple of 8, so aligned ints and
+	 * longs never straddle two chunks.
+	 */
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final File file;
+	private final long length;
+	private final MappedByteBuffer[] chunks;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Map a file into memory.
+	 *
+	 * @param file
+	 *            The file to map.
+	 * @throws IOException
+	 *             Error accessing the file.
+	 */
+	public MMapFile(File file) throws IOException {
+
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			this.length = channel.size();
+			this.chunks = new MappedByteBuffer[(int) ((this.length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+
+			for (int i = 0; i < this.chunks.length; i++) {
+				long start = (long) i << CHUNK_BITS;
+				long size = Math.min(CHUNK_SIZE, this.length - start);
+				this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		} finally {
+			raf.close(); // The mapping remains valid after the file is closed.
+		}
+	}
+
+	/**
+	 * Get the byte at the specified offset.
+	 *
+	 * @param pos
+	 *            A byte offset in the file.
+	 * @return The byte.
+	 */
+	public byte getByte(long pos) {
+		return this.chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+	}
+
+	/**
+	 * Copy bytes that start at the specified offset into an array.
+	 *
+	 * @param pos
+	 *            A byte offset in the file.
+	 * @param dst
+	 *            The destination array.
+	 * @param off
+	 *            The first index in dst to fill.
+	 * @param len
+	 *            The number of bytes to copy.
+	 */
+	public void getBytes(long pos, byte[] dst, int off, int len) {
+
+		while (len > 0) {
+			ByteBuffer chunk = this.chunks[(int) (pos >>> CHUNK_BITS)].duplicate();
+			int start = (int) (pos & CHUNK_MASK);
+			int n = Math.min(len, chunk.limit() - start);
+
+			chunk.position(start);
+			chunk.get(dst, off, n);
+
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Get the int at the specified offset. The offset must be a multiple of 4.
+	 *
+	 * @param pos
+	 *            A byte offset in the file.
+	 * @return The int.
+	 */
+	public int getInt(long pos) {
+		return this.chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+	}
+
+	/**
+	 * Get the long at the specified offset. The offset must be a multiple of 8.
+	 *
+	 * @param pos
+	 *            A byte offset in the file.
+	 * @return The long.
+	 */
+	public long getLong(long pos) {
+		return this.chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+	}
+
+	/**
+	 * Get the file that is mapped.
+	 *
+	 * @return The file.
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Get the length of the mapped file.
+	 *
+	 * @return The length in bytes.
+	 */
+	public long length() {
+		return this.length;
+	}
+}
@@ -98,6 +98,16 @@ public abstract class Qry {
 	 */
 	private int docIteratorMatchCache = Qry.INVALID_DOCID;
 
+	/**
+	 * The docids that all query arguments match, computed the first time
+	 * that docIteratorHasMatchAll is called (see docIteratorIntersectArgs),
+	 * and the position of the docIterator in them. matchAllDocids is null if
+	 * the arguments can't be intersected in advance.
+	 */
+	private int[] matchAllDocids = null;
+	private int matchAllIndex = 0;
+	private boolean matchAllReady = false;
+
 	private boolean matchStored = false; // Operators can cache matches
 	private int matchingDocid;
 	protected double term_frequency;
@@ -212,7 +222,7 @@ public abstract class Qry {
 	 * Clear the docIterator's matching docid cache. The cache should be cleared
 	 * whenever a docIterator is advanced.
 	 */
-	private void docIteratorClearMatchCache() {
+	protected void docIteratorClearMatchCache() {
 		this.docIteratorMatchCache = Qry.INVALID_DOCID;
 	}
 
@@ -263,6 +273,16 @@ public abstract class Qry {
 	 */
 	protected boolean docIteratorHasMatchAll(RetrievalModel r) {
 
+		if (!this.matchAllReady) {
+			this.matchAllDocids = this.docIteratorIntersectArgs();
+			this.matchAllIndex = 0;
+			this.matchAllReady = true;
+		}
+
+		if (this.matchAllDocids != null) {
+			return this.docIteratorHasMatchAllIntersected(r);
+		}
+
 		boolean matchFound = false;
 
 		// Keep trying until a match is found or no match is possible.
@@ -316,6 +336,249 @@ public abstract class Qry {
 		return true;
 	}
 
+	/**
+	 * docIteratorHasMatchAll for query arguments whose docids were
+	 * intersected in advance. The next match is the first intersected docid
+	 * that the first argument hasn't passed. The arguments are advanced to
+	 * it, so that they can be scored (or their locations iterated) as usual.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return True if the query matches, otherwise false.
+	 */
+	private boolean docIteratorHasMatchAllIntersected(RetrievalModel r) {
+
+		Qry q_0 = this.args.get(0);
+
+		if (!q_0.docIteratorHasMatch(r)) {
+			return false;
+		}
+
+		int[] docids = this.matchAllDocids;
+
+		this.matchAllIndex = DocidKernels.INSTANCE.advance(docids, this.matchAllIndex, docids.length,
+				q_0.docIteratorGetMatch());
+
+		if (this.matchAllIndex >= docids.length) {
+			return false;
+		}
+
+		int docid = docids[this.matchAllIndex];
+
+		for (int i = 0; i < this.args.size(); i++) {
+			Qry q_i = this.args.get(i);
+
+			if (!q_i.docIteratorHasMatch(r) || (q_i.docIteratorGetMatch() != docid)) {
+				q_i.docIteratorAdvanceTo(docid);
+				q_i.docIteratorHasMatch(r);
+			}
+		}
+
+		docIteratorSetMatchCache(docid);
+		term_frequency = q_0.getTF();
+		for (int i = 1; i < this.args.size(); i++) {
+			term_frequency = Math.min(term_frequency, this.args.get(i).getTF());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Intersect the docids of the query arguments, shortest first, with
+	 * {@link DocidKernels}. This is possible only if every argument has a
+	 * materialized inverted list (see getDocids).
+	 * 
+	 * @return The docids that all arguments match, or null if some argument
+	 *         doesn't have a materialized inverted list.
+	 */
+	private int[] docIteratorIntersectArgs() {
+
+		if (this.args.size() < 2) {
+			return null;
+		}
+
+		int[][] lists = new int[this.args.size()][];
+
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = this.args.get(i).getDocids();
+
+			if (lists[i] == null) {
+				return null;
+			}
+		}
+
+		Arrays.sort(lists, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a.length, b.length);
+			}
+		});
+
+		int[] docids = Arrays.copyOf(lists[0], lists[0].length);
+		int n = docids.length;
+
+		for (int i = 1; (i < lists.length) && (n > 0); i++) {
+			n = DocidKernels.INSTANCE.intersect(docids, n, lists[i], lists[i].length, docids);
+		}
+
+		return Arrays.copyOf(docids, n);
+	}
+
+	/**
+	 * Clear the docids that docIteratorHasMatchAll intersected, so that they
+	 * are recomputed from the arguments. Call this when the query operator is
+	 * initialized.
+	 */
+	protected void docIteratorClearMatchAll() {
+		this.matchAllDocids = null;
+		this.matchAllIndex = 0;
+		this.matchAllReady = false;
+	}
+
+	/**
+	 * Get the docids of the query operator's materialized inverted list, if
+	 * it has one. Operators that have one override this method.
+	 * 
+	 * @return The sorted docids, or null.
+	 */
+	public int[] getDocids() {
+		return null;
+	}
+
+	/**
+	 * Get the set of documents that the query matches, as a compressed bitmap,
+	 * without iterating over inverted lists. This is all that retrieval models
+	 * that don't rank documents (e.g., UnrankedBoolean) need, and docsets make
+	 * good filters. The query does not need to be initialized. Docsets of
+	 * terms and subqueries are cached (see {@link DocSetCache}), so a subquery
+	 * that occurs again, in this query or a later one, isn't evaluated again.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if the query can't be evaluated as docsets.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public DocSet getDocSet(RetrievalModel r) throws IOException {
+
+		String key = r.getClass().getSimpleName() + " " + this.getDocSetKey();
+		DocSet docs = DocSetCache.get(key);
+
+		if (docs == null) {
+			docs = this.evaluateDocSet(r);
+
+			if (docs != null) {
+				DocSetCache.put(key, docs);
+			}
+		}
+
+		return docs;
+	}
+
+	/**
+	 * Get a canonical form of the query that identifies its docset. Operator
+	 * parameters that affect matching (e.g., the n of #NEAR/n) are part of
+	 * the display name; weights don't affect matching.
+	 *
+	 * @return The canonical form of the query.
+	 */
+	protected String getDocSetKey() {
+
+		StringBuilder key = new StringBuilder(this.displayName.toLowerCase());
+
+		key.append('(');
+
+		for (int i = 0; i < this.args.size(); i++) {
+			key.append(this.args.get(i).getDocSetKey()).append(' ');
+		}
+
+		return key.append(')').toString();
+	}
+
+	/**
+	 * Evaluate the query operator as docsets. Operators that support docset
+	 * evaluation override this method.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if the operator can't be evaluated as
+	 *         docsets.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	protected DocSet evaluateDocSet(RetrievalModel r) throws IOException {
+		return null;
+	}
+
+	/**
+	 * The docset counterpart of docIteratorHasMatchAll: the documents that
+	 * all query arguments match. The smallest docsets are intersected first.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if some argument can't be evaluated as
+	 *         docsets.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	protected DocSet docSetMatchAll(RetrievalModel r) throws IOException {
+
+		if (this.args.size() == 0) {
+			return DocSet.EMPTY;
+		}
+
+		DocSet[] sets = new DocSet[this.args.size()];
+
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = this.args.get(i).getDocSet(r);
+
+			if (sets[i] == null) {
+				return null;
+			}
+		}
+
+		Arrays.sort(sets, new Comparator<DocSet>() {
+			public int compare(DocSet a, DocSet b) {
+				return Integer.compare(a.cardinality(), b.cardinality());
+			}
+		});
+
+		DocSet docs = sets[0];
+
+		for (int i = 1; (i < sets.length) && (docs.cardinality() > 0); i++) {
+			docs = docs.and(sets[i]);
+		}
+
+		return docs;
+	}
+
+	/**
+	 * The docset counterpart of docIteratorHasMatchMin: the documents that
+	 * at least one query argument matches.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if some argument can't be evaluated as
+	 *         docsets.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	protected DocSet docSetMatchMin(RetrievalModel r) throws IOException {
+
+		DocSet docs = DocSet.EMPTY;
+
+		for (int i = 0; i < this.args.size(); i++) {
+			DocSet docs_i = this.args.get(i).getDocSet(r);
+
+			if (docs_i == null) {
+				return null;
+			}
+
+			docs = docs.or(docs_i);
+		}
+
+		return docs;
+	}
+
 	/**
 	 * An instantiation of docIteratorHasMatch that is true if the query has a
 	 * document that matches the first query argument; some subclasses may
@@ -401,7 +664,7 @@ public abstract class Qry {
 	 * @param docid
 	 *            The internal document id to store in the cache.
 	 */
-	private void docIteratorSetMatchCache(int docid) {
+	protected void docIteratorSetMatchCache(int docid) {
 		this.docIteratorMatchCache = docid;
 	}
 
@@ -448,6 +711,21 @@ public abstract class Qry {
 		this.args.remove(i);
 	};
 
+	/**
+	 * Declare whether the query operator's results need locations. A query
+	 * tree is marked once, from its root, after it is parsed (see
+	 * QryParser.getQuery). Score operators only use the term frequencies of
+	 * their arguments; QryIop operators override this method.
+	 * 
+	 * @param needed
+	 *            True if the operator's parent uses its locations.
+	 */
+	public void setNeedsPositions(boolean needed) {
+		for (Qry q_i : this.args) {
+			q_i.setNeedsPositions(false);
+		}
+	}
+
 	/**
 	 * Every operator must have a display name that can be used by toString for
 	 * debugging or other user feedback.
@@ -0,0 +1,604 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.*;
+import java.net.URI;
+import java.util.*;
+
+import javax.tools.*;
+
+/**
+ * An optional code-generation backend for query scoring. It generates,
+ * compiles and loads a plan class that is specialized for the shape of a
+ * compiled scorer tree (see {@link QryScorer}), e.g., an Indri #wand of
+ * #and operators of terms. The scoring formulas of the SCORE operators are
+ * inlined into the operators that use them, and each operator is one static
+ * method with no virtual calls to its arguments.
+ * <p>
+ * A plan depends only on the shape of the query, not on its terms, weights
+ * or collection statistics, which are read from the compiled scorer tree
+ * that the plan is instantiated with. When all of the arguments of an
+ * operator have the same shape, the plan loops over them, so the shape
+ * doesn't depend on the number of arguments: every sequential dependency
+ * model query, whatever its length, has the shape
+ * WAnd(IndriAnd(IndriTerm*)*). Operators whose arguments have different
+ * shapes are unrolled. Scores are computed with the same arithmetic as the
+ * compiled scorers, so they are identical.
+ * </p>
+ * <p>
+ * Plans are cached by shape in a small least-recently-used cache, and
+ * shapes longer than MAX_SHAPE_LENGTH aren't generated, so the number of
+ * compiles and the size of generated code are bounded. Plans are loaded as
+ * hidden classes where the JVM supports them (Java 15), so evicted plans
+ * can be unloaded.
+ * </p>
+ * <p>
+ * Code generation requires a JDK (javax.tools) and Java 9 or later
+ * (MethodHandles.Lookup). If either is missing, or the query uses a
+ * retrieval model or shape that has no generated form, compile returns the
+ * ordinary compiled scorer. Operators that don't have a generated form are
+ * called through their compiled scorers.
+ * </p>
+ */
+public class QryCodegen {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The maximum number of cached plans (and shapes that could not be
+	 * generated).
+	 */
+	private static final int MAX_PLANS = 64;
+
+	/**
+	 * The longest shape that is generated. Longer shapes, which have many
+	 * arguments with different shapes, are scored by the compiled scorer.
+	 */
+	private static final int MAX_SHAPE_LENGTH = 1024;
+
+	private static final String PLAN_PREFIX = "QryPlan";
+
+	/**
+	 * Plan constructors, indexed by query shape, least recently used first.
+	 * A null constructor means that the shape could not be generated, so it
+	 * is not tried again while it is cached.
+	 */
+	private static final LinkedHashMap<String, Constructor<?>> PLANS = new LinkedHashMap<String, Constructor<?>>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Constructor<?>> eldest) {
+			return this.size() > MAX_PLANS;
+		}
+	};
+
+	/**
+	 * The number of plan classes that have been generated, which is used to
+	 * give each one a unique name.
+	 */
+	private static int numPlans = 0;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Compile an initialized query tree into a generated scorer, if
+	 * possible, otherwise into an ordinary compiled scorer.
+	 *
+	 * @param q
+	 *            An initialized QrySop query tree.
+	 * @param r
+	 *            The retrieval model that determines how scores are
+	 *            calculated.
+	 * @return The scorer.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public static QryScorer compile(Qry q, RetrievalModel r) throws IOException {
+		return generate(QryScorer.compile(q, r));
+	}
+
+	/**
+	 * Wrap a compiled scorer in a generated plan, if possible.
+	 *
+	 * @param compiled
+	 *            A compiled scorer.
+	 * @return The generated scorer, or compiled if the plan can't be
+	 *         generated.
+	 */
+	public static QryScorer generate(QryScorer compiled) {
+
+		// Only the Indri and BM25 scorers have generated forms. Boolean
+		// scoring is too cheap to benefit.
+
+		if (!(compiled.r instanceof RetrievalModelIndri) && !(compiled.r instanceof RetrievalModelBM25)) {
+			return compiled;
+		}
+
+		String shape = getShape(compiled);
+
+		if ((getArgs(compiled) == null) || (shape.length() > MAX_SHAPE_LENGTH)) {
+			return compiled;
+		}
+
+		Constructor<?> plan = getPlan(compiled.r.getClass().getSimpleName() + ":" + shape, compiled);
+
+		if (plan == null) {
+			return compiled;
+		}
+
+		try {
+			return (QryScorer) plan.newInstance(compiled);
+		} catch (Exception ex) {
+			return compiled;
+		}
+	}
+
+	/**
+	 * Describe the shape of a compiled scorer tree. Nodes that don't have a
+	 * generated form are shown as "*". If the arguments of an operator all
+	 * have the same shape, it is shown once, followed by "*".
+	 *
+	 * @param s
+	 *            A compiled scorer.
+	 * @return The shape of the tree.
+	 */
+	private static String getShape(QryScorer s) {
+
+		QryScorer[] args = getArgs(s);
+		String kind = getKind(s);
+
+		if (args == null) {
+			return kind;
+		}
+
+		String[] shapes = new String[args.length];
+
+		for (int i = 0; i < args.length; i++) {
+			shapes[i] = getShape(args[i]);
+		}
+
+		if (isUniform(shapes)) {
+			return kind + "(" + shapes[0] + "*)";
+		}
+
+		StringBuilder shape = new StringBuilder(kind).append('(');
+
+		for (int i = 0; i < shapes.length; i++) {
+			if (i > 0) {
+				shape.append(',');
+			}
+			shape.append(shapes[i]);
+		}
+
+		return shape.append(')').toString();
+	}
+
+	/**
+	 * Indicates whether the arguments of an operator all have the same
+	 * shape, so that the plan can loop over them.
+	 *
+	 * @param shapes
+	 *            The shapes of the arguments.
+	 * @return True if every shape is the same.
+	 */
+	private static boolean isUniform(String[] shapes) {
+
+		for (int i = 1; i < shapes.length; i++) {
+			if (!shapes[i].equals(shapes[0])) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the kind of a compiled scorer.
+	 *
+	 * @param s
+	 *            A compiled scorer.
+	 * @return The name of its compiled scorer class, or "*" if it doesn't
+	 *         have a generated form. Operators without arguments are scored
+	 *         by their compiled scorers.
+	 */
+	private static String getKind(QryScorer s) {
+
+		if (s.q.args.size() == 0) {
+			return "*";
+		}
+
+		if ((s instanceof QryScorer.IndriTerm) || (s instanceof QryScorer.BM25Term)
+				|| (s instanceof QryScorer.IndriAnd) || (s instanceof QryScorer.Sum)
+				|| (s instanceof QryScorer.WAnd) || (s instanceof QryScorer.WSum)) {
+			return s.getClass().getSimpleName();
+		}
+
+		return "*";
+	}
+
+	/**
+	 * Get the arguments of a compiled scorer.
+	 *
+	 * @param s
+	 *            A compiled scorer.
+	 * @return The compiled arguments, or null if s is a leaf (or doesn't
+	 *         have a generated form).
+	 */
+	private static QryScorer[] getArgs(QryScorer s) {
+
+		if (getKind(s).equals("*")) {
+			return null;
+		} else if (s instanceof QryScorer.IndriAnd) {
+			return ((QryScorer.IndriAnd) s).args;
+		} else if (s instanceof QryScorer.Sum) {
+			return ((QryScorer.Sum) s).args;
+		} else if (s instanceof QryScorer.WAnd) {
+			return ((QryScorer.WAnd) s).args;
+		} else if (s instanceof QryScorer.WSum) {
+			return ((QryScorer.WSum) s).args;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Get the plan constructor for a query shape, generating it if
+	 * necessary.
+	 *
+	 * @param shape
+	 *            The query shape.
+	 * @param root
+	 *            A compiled scorer tree that has this shape.
+	 * @return The plan constructor, or null if the plan can't be
+	 *         generated.
+	 */
+	private static synchronized Constructor<?> getPlan(String shape, QryScorer root) {
+
+		if (PLANS.containsKey(shape)) {
+			return PLANS.get(shape);
+		}
+
+		String className = PLAN_PREFIX + (numPlans++);
+		Constructor<?> plan = null;
+
+		try {
+			Class<?> c = define(compileSource(className, generateSource(className, root)));
+
+			plan = c.getConstructor(QryScorer.class);
+		} catch (Exception ex) {
+			System.err.println("Code generation failed for " + shape + ":  " + ex);
+		} catch (LinkageError ex) {
+			System.err.println("Code generation failed for " + shape + ":  " + ex);
+		}
+
+		PLANS.put(shape, plan);
+		return plan;
+	}
+
+	// --------------- Source generation -----------------------------
+
+	/**
+	 * Generate the source of a plan class for a compiled scorer tree.
+	 *
+	 * @param className
+	 *            The name of the plan class.
+	 * @param root
+	 *            The compiled scorer tree.
+	 * @return The source code.
+	 */
+	private static String generateSource(String className, QryScorer root) {
+
+		StringBuilder methods = new StringBuilder();
+		String type = getType(root);
+
+		generate(root, new int[] { 0 }, methods);
+
+		return "import java.io.*;\n\n" + "public final class " + className + " extends QryScorer {\n\n"
+				+ "  private final " + type + " s;\n\n" + "  public " + className + "(QryScorer root) {\n"
+				+ "    super(root.q, root.r);\n" + "    this.s = (" + type + ") root;\n" + "  }\n\n"
+				+ "  public boolean isCompiled() {\n" + "    return this.s.isCompiled();\n" + "  }\n\n"
+				+ "  public double score() throws IOException {\n" + "    return score0(this.s);\n" + "  }\n\n"
+				+ "  public double defaultScore(int docid) throws IOException {\n"
+				+ "    return default0(this.s, docid);\n" + "  }\n" + methods + "}\n";
+	}
+
+	/**
+	 * Generate the score and default score methods of an operator, and of
+	 * the operators among its arguments. Leaves are inlined into their
+	 * parent's methods.
+	 *
+	 * @param s
+	 *            A compiled operator that has a generated form.
+	 * @param next
+	 *            The number of the next method pair.
+	 * @param methods
+	 *            Generated methods.
+	 * @return The number of the operator's method pair.
+	 */
+	private static int generate(QryScorer s, int[] next, StringBuilder methods) {
+
+		int n = next[0]++;
+		String kind = getKind(s);
+		QryScorer[] args = getArgs(s);
+		String[] shapes = new String[args.length];
+
+		for (int i = 0; i < args.length; i++) {
+			shapes[i] = getShape(args[i]);
+		}
+
+		// A uniform operator loops over its arguments with the methods of
+		// the first one. Otherwise each argument has its own.
+
+		boolean loop = isUniform(shapes);
+		int[] ids = new int[loop ? 1 : args.length];
+
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = (getArgs(args[i]) == null) ? -1 : generate(args[i], next, methods);
+		}
+
+		String type = "QryScorer." + kind;
+		boolean weighted = kind.equals("WAnd") || kind.equals("WSum");
+		boolean geometric = !kind.equals("Sum") && !kind.equals("WSum");
+		StringBuilder score = new StringBuilder();
+		StringBuilder deflt = new StringBuilder();
+
+		// The guards, accumulators and results are those of the compiled
+		// scorers, so the arithmetic is the same.
+
+		String guard = "    if (!s.q.docIteratorHasMatchCache()" + (geometric ? " || s.args.length == 0" : "")
+				+ ")\n      return 0;\n";
+		String acc = geometric ? "logScore" : "score";
+
+		score.append(guard);
+		score.append("    int docId = s.q.docIteratorGetMatch();\n");
+		score.append("    double " + acc + " = 0;\n");
+
+		deflt.append(kind.equals("WAnd") ? "    if (!s.q.docIteratorHasMatchCache())\n      return 0;\n" : guard);
+		deflt.append("    double " + acc + " = 0;\n");
+
+		for (int i = 0; i < ids.length; i++) {
+			QryScorer arg = args[i];
+			String argType = getType(arg);
+			String index = loop ? "i" : Integer.toString(i);
+			String indent = loop ? "      " : "    ";
+			String a = loop ? "a" : "a" + i;
+			String weight = weighted ? "s.weights[" + index + "] * " : "";
+			String argScore = getScoreExpr(arg, a, ids[i]);
+			String argDefault;
+
+			if (loop) {
+				score.append("    for (int i = 0; i < s.args.length; i++) {\n");
+				deflt.append("    for (int i = 0; i < s.args.length; i++) {\n");
+			}
+
+			String local = indent + argType + " " + a + " = " + cast(argType) + "s.args[" + index + "];\n";
+
+			score.append(local);
+			deflt.append(local);
+
+			if (kind.equals("Sum")) {
+				score.append(indent + "if (" + a + ".matches(docId))\n");
+				score.append(indent + "  score += " + argScore + ";\n");
+			} else {
+				argDefault = getDefaultExpr(arg, a, ids[i], "docId");
+
+				String value = "(" + a + ".matches(docId) ? " + argScore + " : " + argDefault + ")";
+
+				if (geometric) {
+					value = "Math.log" + value;
+				}
+
+				score.append(indent + acc + " += " + weight + value + ";\n");
+
+				argDefault = getDefaultExpr(arg, a, ids[i], "docid");
+				deflt.append(indent + acc + " += " + weight
+						+ (geometric ? "Math.log(" + argDefault + ")" : argDefault) + ";\n");
+			}
+
+			if (loop) {
+				score.append("    }\n");
+				deflt.append("    }\n");
+			}
+		}
+
+		if (kind.equals("IndriAnd")) {
+			score.append("    return Math.exp(logScore / s.numArgs);\n");
+			deflt.append("    return Math.exp(logScore / s.numArgs);\n");
+		} else if (kind.equals("WAnd")) {
+			score.append("    return Math.exp(logScore / s.weightSum);\n");
+			deflt.append("    return Math.exp(logScore / s.weightSum);\n");
+		} else if (kind.equals("WSum")) {
+			score.append("    return score / s.weightSum;\n");
+			deflt.append("    return score / s.weightSum;\n");
+		} else {
+			score.append("    return score;\n");
+			deflt.setLength(0);
+			deflt.append("    return 0;\n");
+		}
+
+		methods.append("\n  static double score" + n + "(" + type + " s) throws IOException {\n" + score + "  }\n");
+		methods.append("\n  static double default" + n + "(" + type + " s, int docid) throws IOException {\n" + deflt
+				+ "  }\n");
+
+		return n;
+	}
+
+	/**
+	 * Generate an expression for the score of an argument that matches the
+	 * document.
+	 *
+	 * @param s
+	 *            The compiled argument.
+	 * @param var
+	 *            The name of the local variable that holds it.
+	 * @param id
+	 *            The number of its method pair, if it is an operator.
+	 * @return The expression.
+	 */
+	private static String getScoreExpr(QryScorer s, String var, int id) {
+
+		String kind = getKind(s);
+
+		if (kind.equals("IndriTerm")) {
+			return var + ".postingScores[" + var + ".iop.docIteratorGetMatchIndex()]";
+		} else if (kind.equals("BM25Term")) {
+			return "(" + var + ".iop.docIteratorHasMatch(" + var + ".r) ? " + var + ".postingScores[" + var
+					+ ".iop.docIteratorGetMatchIndex()] : 0)";
+		} else if (kind.equals("*")) {
+			return var + ".score()";
+		} else {
+			return "score" + id + "(" + var + ")";
+		}
+	}
+
+	/**
+	 * Generate an expression for the default score of an argument.
+	 *
+	 * @param s
+	 *            The compiled argument.
+	 * @param var
+	 *            The name of the local variable that holds it.
+	 * @param id
+	 *            The number of its method pair, if it is an operator.
+	 * @param docid
+	 *            The name of the docid variable.
+	 * @return The expression.
+	 */
+	private static String getDefaultExpr(QryScorer s, String var, int id, String docid) {
+
+		String kind = getKind(s);
+
+		if (kind.equals("IndriTerm")) {
+			return var + ".defaultScores.get(Idx.getFieldLength(" + var + ".field, " + docid + "))";
+		} else if (kind.equals("BM25Term")) {
+			return var + ".sop.getDefaultScore(" + var + ".r, " + docid + ")";
+		} else if (kind.equals("*")) {
+			return var + ".defaultScore(" + docid + ")";
+		} else {
+			return "default" + id + "(" + var + ", " + docid + ")";
+		}
+	}
+
+	/**
+	 * Get the type that generated code uses for a compiled scorer.
+	 *
+	 * @param s
+	 *            A compiled scorer.
+	 * @return The name of its class, or QryScorer if it doesn't have a
+	 *         generated form.
+	 */
+	private static String getType(QryScorer s) {
+		String kind = getKind(s);
+		return kind.equals("*") ? "QryScorer" : "QryScorer." + kind;
+	}
+
+	/**
+	 * Generate a cast to a compiled scorer type.
+	 *
+	 * @param type
+	 *            The type.
+	 * @return The cast, or "" if no cast is needed.
+	 */
+	private static String cast(String type) {
+		return type.equals("QryScorer") ? "" : "(" + type + ") ";
+	}
+
+	// --------------- Compiling and loading -------------------------
+
+	/**
+	 * Compile generated source code in memory.
+	 *
+	 * @param className
+	 *            The name of the class.
+	 * @param source
+	 *            The source code.
+	 * @return The class file.
+	 * @throws IllegalStateException
+	 *             There is no Java compiler, or the source didn't compile.
+	 */
+	private static byte[] compileSource(String className, final String source) throws IllegalStateException {
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+		if (compiler == null) {
+			throw new IllegalStateException("No Java compiler is available (a JDK is required)");
+		}
+
+		final ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+				JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(
+				compiler.getStandardFileManager(null, null, null)) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+					FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						return classFile;
+					}
+				};
+			}
+		};
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none",
+				"-proc:none");
+		Boolean ok = compiler.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sourceFile))
+				.call();
+
+		if (!ok) {
+			throw new IllegalStateException(diagnostics.getDiagnostics().toString());
+		}
+
+		return classFile.toByteArray();
+	}
+
+	/**
+	 * Load a generated class into the package and class loader of
+	 * QryCodegen, so that it can use package-private members of the query
+	 * classes. It is defined as a hidden class if the JVM supports them, so
+	 * that it can be unloaded when its plan is evicted, otherwise as an
+	 * ordinary class. The Lookup methods are called reflectively because
+	 * they don't exist in older JVMs.
+	 *
+	 * @param classFile
+	 *            The class file.
+	 * @return The class.
+	 * @throws Exception
+	 *             The class can't be defined.
+	 */
+	private static Class<?> define(byte[] classFile) throws Exception {
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+		try {
+			Class<?> options;
+
+			try {
+				options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			} catch (ClassNotFoundException ex) {
+				Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+
+				return (Class<?>) defineClass.invoke(lookup, classFile);
+			}
+
+			Object noOptions = Array.newInstance(options, 0);
+			Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+					boolean.class, noOptions.getClass());
+			Object hidden = defineHiddenClass.invoke(lookup, classFile, true, noOptions);
+
+			return (Class<?>) MethodHandles.Lookup.class.getMethod("lookupClass").invoke(hidden);
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : ex;
+		}
+	}
+}
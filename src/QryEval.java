@@ -32,6 +32,35 @@ public class QryEval {
 
 	private static final String[] TEXT_FIELDS = { "body", "title", "url", "inlink" };
 
+	/**
+	 * If true, queries are scored by generated code (see {@link QryCodegen}).
+	 * Set by the codegen parameter.
+	 */
+	private static boolean codegen = false;
+
+	/**
+	 * If true, the plan of each query is printed (see {@link QryPlanner}). Set
+	 * by the showPlan parameter.
+	 */
+	private static boolean showPlan = false;
+
+	/**
+	 * The number of results of each query that are written to the run file.
+	 */
+	private static final int MAX_RESULTS = 100;
+
+	/**
+	 * Writes the results of the current experiment (see {@link RunWriter}).
+	 */
+	private static RunWriter output = null;
+
+	/**
+	 * The parameters that may differ between the experiments of a sweep (see
+	 * processQueryFileSweep).
+	 */
+	private static final Set<String> SWEEP_PARAMETERS = new HashSet<String>(Arrays.asList("BM25:k_1", "BM25:b",
+			"BM25:k_3", "Indri:lambda", "Indri:mu", "trecEvalOutputPath", "binaryOutputPath"));
+
 	// --------------- Methods ---------------------------------------
 
 	/**
@@ -54,15 +83,34 @@ public class QryEval {
 //		for(;i<18;i++)
 //			exp[i] = "exp4_"+(i-12);
 		BufferedWriter bw = new BufferedWriter(new FileWriter("Time"));
+		List<Map<String, String>> experiments = new ArrayList<Map<String, String>>();
 		for(i=0;i<exp.length;i++){
+			experiments.add(readParameterFile(exp[i]));
+		}
+
+		// Consecutive experiments that differ only in the parameters of
+		// their retrieval model are run as one sweep.
+
+		for (int first = 0; first < experiments.size();) {
+			int last = first + 1;
+			while ((last < experiments.size()) && isSweep(experiments.get(first), experiments.get(last))) {
+				last++;
+			}
 			Timer timer = new Timer();
 			timer.start();
-			Map<String, String> parameters = readParameterFile(exp[i]);
-			Idx.open(parameters.get("indexPath"));
-			RetrievalModel model = initializeRetrievalModel(parameters);
-			processQueryFile(parameters, model);
+			List<Map<String, String>> sweep = experiments.subList(first, last);
+			openIndex(sweep.get(0));
+			if (sweep.size() == 1) {
+				RetrievalModel model = initializeRetrievalModel(sweep.get(0));
+				processQueryFile(sweep.get(0), model);
+			} else {
+				processQueryFileSweep(sweep);
+			}
 			timer.stop();
-			bw.write(exp[i]+" Time:  " + timer+"\n");
+			for (i = first; i < last; i++) {
+				bw.write(exp[i] + " Time:  " + timer + ((last - first > 1) ? " (sweep of " + (last - first) + ")" : "") + "\n");
+			}
+			first = last;
 		}
 		bw.close();
 		
@@ -104,6 +152,74 @@ public class QryEval {
 		
 	}
 
+	/**
+	 * Open the index of an experiment and make it the current index. The
+	 * first time an index is opened, it may be warmed up (see Idx.warmUp):
+	 * the warmupTermsPath parameter names a file of hot terms, and the
+	 * queries of the warmupQueryFilePath parameter (qid:query lines, e.g., a
+	 * log of recent queries) are evaluated with the experiment's retrieval
+	 * model, and their results discarded. Without either parameter, the
+	 * index isn't warmed up, and its norms are loaded as queries need them.
+	 * The time that the index took to be ready for fast queries (opening
+	 * plus warm-up) is printed.
+	 * 
+	 * @param parameters
+	 *            The parameters of the experiment.
+	 * @throws IOException
+	 *             Error accessing the Lucene index or the warm-up files.
+	 */
+	static void openIndex(Map<String, String> parameters) throws IOException {
+
+		String indexPath = parameters.get("indexPath");
+
+		if (Idx.isOpen(indexPath)) {
+			Idx.setCurrentIndex(indexPath);
+			return;
+		}
+
+		Timer openTimer = new Timer();
+		openTimer.start();
+		Idx.open(indexPath);
+		Idx.setCurrentIndex(indexPath);
+		openTimer.stop();
+
+		String warmupTermsPath = parameters.get("warmupTermsPath");
+		String warmupQueryFilePath = parameters.get("warmupQueryFilePath");
+		Timer warmupTimer = new Timer();
+		warmupTimer.start();
+
+		if ((warmupTermsPath != null) || (warmupQueryFilePath != null)) {
+			Idx.warmUp(warmupTermsPath);
+		}
+
+		if (warmupQueryFilePath != null) {
+			RetrievalModel model = initializeRetrievalModel(parameters);
+			BufferedReader input = new BufferedReader(new FileReader(warmupQueryFilePath));
+
+			try {
+				String qLine;
+
+				while ((qLine = input.readLine()) != null) {
+					int d = qLine.indexOf(':');
+
+					if (d < 0) {
+						throw new IllegalArgumentException("Syntax error:  Missing ':' in warm-up query line.");
+					}
+
+					processQuery(qLine.substring(d + 1), model);
+				}
+			} finally {
+				input.close();
+			}
+		}
+
+		warmupTimer.stop();
+
+		System.out.println("Index " + indexPath + " ready for fast queries in "
+				+ String.format("%.3f", (openTimer.getNanos() + warmupTimer.getNanos()) / 1e6) + " ms:  open "
+				+ openTimer + ", warm-up " + warmupTimer);
+	}
+
 	/**
 	 * Allocate the retrieval model and initialize it using parameters from the
 	 * parameter file.
@@ -112,7 +228,7 @@ public class QryEval {
 	 * @throws IOException
 	 *             Error accessing the Lucene index.
 	 */
-	private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws IOException {
+	static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws IOException {
 
 		RetrievalModel model = null;
 		String modelString = parameters.get("retrievalAlgorithm").toLowerCase();
@@ -173,6 +289,33 @@ public class QryEval {
 		qString = defaultOp + "(" + qString + ")";
 		Qry q = QryParser.getQuery(qString);
 
+		return processQuery(q, model);
+	}
+
+	/**
+	 * Process one query that has already been parsed (or built without a
+	 * query string, e.g., by {@link QryJsonParser}).
+	 * 
+	 * @param q
+	 *            The query tree, or null if the query is empty.
+	 * @param model
+	 *            The retrieval model determines how matching and scoring is
+	 *            done.
+	 * @return Search results
+	 * @throws IOException
+	 *             Error accessing the index
+	 */
+	static ScoreList processQuery(Qry q, RetrievalModel model) throws IOException {
+
+		// A structured query may be a bare inverted list (e.g., a single
+		// term). Score it with the model's default operator.
+
+		if (q instanceof QryIop) {
+			Qry defaultOp = QryParser.createOperator(model.defaultQrySopName());
+			defaultOp.appendArg(q);
+			q = defaultOp;
+		}
+
 		// Show the query that is evaluated
 
 		System.out.println("    --> " + q);
@@ -181,13 +324,51 @@ public class QryEval {
 
 			ScoreList r = new ScoreList();
 
+			// The planner only changes how Boolean queries are evaluated
+			// (BM25 and Indri keep the parsed order), so other models only
+			// pay for it when the plan is shown.
+
+			boolean isBoolean = (model instanceof RetrievalModelUnrankedBoolean)
+					|| (model instanceof RetrievalModelRankedBoolean);
+
+			if ((q.args.size() > 0) && (isBoolean || showPlan)) {
+				QryPlanner planner = new QryPlanner(model);
+
+				planner.plan(q);
+
+				if (showPlan) {
+					System.out.print(planner);
+				}
+			}
+
+			if ((q.args.size() > 0) && (model instanceof RetrievalModelUnrankedBoolean)) {
+
+				// Only set membership matters, so evaluate the query on
+				// docsets if its operators support them.
+
+				DocSet docs = q.getDocSet(model);
+
+				if (docs != null) {
+					int[] docids = docs.toArray();
+
+					for (int i = 0; i < docids.length; i++) {
+						r.add(docids[i], 1.0);
+					}
+
+					r.sort();
+					return r;
+				}
+			}
+
 			if (q.args.size() > 0) { // Ignore empty queries
 
 				q.initialize(model);
 
+				QryScorer scorer = codegen ? QryCodegen.compile(q, model) : QryScorer.compile(q, model);
+
 				while (q.docIteratorHasMatch(model)) {
 					int docid = q.docIteratorGetMatch();
-					double score = ((QrySop) q).getScore(model);
+					double score = scorer.score();
 					r.add(docid, score);
 					q.docIteratorAdvancePast(docid);
 				}
@@ -199,7 +380,11 @@ public class QryEval {
 	}
 
 	/**
-	 * Process the query file.
+	 * Process the query file. By default each line is qid:query. If the
+	 * queryFileFormat parameter is json, each line is a structured query (see
+	 * {@link QryJsonParser}). The queries are parsed, evaluated and written
+	 * by a {@link QueryPipeline}; the evaluatorThreads parameter sets the
+	 * number of evaluator threads (default 1).
 	 * 
 	 * @param queryFilePath
 	 * @param model
@@ -208,7 +393,10 @@ public class QryEval {
 	 */
 	static void processQueryFile(Map<String, String> parameters, RetrievalModel model) throws IOException {
 		String queryFilePath = parameters.get("queryFilePath");
-		SEWriter.intialize(parameters.get("trecEvalOutputPath"));
+		setOptions(parameters);
+		TrecEval evaluation = parameters.containsKey("trecEvalQrelsPath")
+				? new TrecEval(parameters.get("trecEvalQrelsPath")) : null;
+		output = new RunWriter(parameters.get("trecEvalOutputPath"), parameters.get("binaryOutputPath"), evaluation);
 		BufferedReader input = null;
 		try {
 			String qLine = null;
@@ -238,7 +426,6 @@ public class QryEval {
 					if (d < 0) {
 						throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
 					}
-					printMemoryUsage(false);
 					String qid = qLine.substring(0, d);
 					String query = qLine.substring(d + 1);
 					System.out.println("Query " + qLine);
@@ -259,37 +446,226 @@ public class QryEval {
 				if (fbInitialRankingFile != null && fbInitialRankingFile.length() > 0)
 					rankingInput.close();
 			} else {
-				while ((qLine = input.readLine()) != null) {
-					int d = qLine.indexOf(':');
 
-					if (d < 0) {
-						throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
-					}
+				// Parse, evaluate and write the queries concurrently.
 
-					printMemoryUsage(false);
+				int evaluators = parameters.containsKey("evaluatorThreads")
+						? Integer.parseInt(parameters.get("evaluatorThreads")) : 1;
+				QueryPipeline pipeline = new QueryPipeline(model, "json".equals(parameters.get("queryFileFormat")),
+						evaluators);
 
-					String qid = qLine.substring(0, d);
-					String query = qLine.substring(d + 1);
+				pipeline.run(input, output, MAX_RESULTS);
+			}
 
-					System.out.println("Query " + qLine);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			input.close();
+		}
+		output.close();
+		if (evaluation != null) {
+			writeEvaluation(evaluation, parameters.get("trecEvalOutputPath"));
+		}
+	}
 
-					r = processQuery(query, model);
-					// write results to file in trec_eval format
-					writeResults(qid, r);
+	/**
+	 * Set the query processing options of an experiment.
+	 * 
+	 * @param parameters
+	 *            The parameters of the experiment.
+	 */
+	private static void setOptions(Map<String, String> parameters) {
+		codegen = "true".equalsIgnoreCase(parameters.get("codegen"));
+		showPlan = "true".equalsIgnoreCase(parameters.get("showPlan"));
+		if (parameters.containsKey("docSetCacheMB")) {
+			DocSetCache.setCapacity(Long.parseLong(parameters.get("docSetCacheMB")) << 20);
+		}
+		if (parameters.containsKey("invListCacheMB")) {
+			InvListCache.setCapacity(Long.parseLong(parameters.get("invListCacheMB")) << 20);
+		}
+	}
 
-					// if (r != null) {
-					// printResults(qid, r);
-					// System.out.println();
-					// }
-				}
+	/**
+	 * Indicates whether two experiments can be run as one sweep: they use
+	 * the BM25 or Indri retrieval model and the same queries, and they
+	 * differ only in the parameters of the retrieval model and in their
+	 * output files.
+	 * 
+	 * @param a
+	 *            The parameters of an experiment.
+	 * @param b
+	 *            The parameters of another experiment.
+	 * @return True if the experiments can be run as one sweep.
+	 */
+	static boolean isSweep(Map<String, String> a, Map<String, String> b) {
+
+		String model = a.get("retrievalAlgorithm").toLowerCase();
+
+		if (!(model.equals("bm25") || model.equals("indri")) || "true".equalsIgnoreCase(a.get("fb"))
+				|| "json".equals(a.get("queryFileFormat"))
+				|| a.get("trecEvalOutputPath").equals(b.get("trecEvalOutputPath"))
+				|| ((a.get("binaryOutputPath") != null)
+						&& a.get("binaryOutputPath").equals(b.get("binaryOutputPath")))) {
+			return false;
+		}
+
+		Set<String> keys = new HashSet<String>(a.keySet());
+
+		keys.addAll(b.keySet());
+
+		for (String key : keys) {
+			if (!SWEEP_PARAMETERS.contains(key) && !Objects.equals(a.get(key), b.get(key))) {
+				return false;
 			}
+		}
 
-		} catch (Exception ex) {
-			ex.printStackTrace();
+		return true;
+	}
+
+	/**
+	 * Process the query file of a sweep: experiments that differ only in the
+	 * parameters of their retrieval model (see isSweep). Each query is parsed,
+	 * its inverted lists are evaluated and its documents are matched once.
+	 * Each matching document is scored by one compiled scorer per parameter
+	 * setting, and each experiment's results are written to its own
+	 * trecEvalOutputPath. The rankings are the same as those of separate
+	 * runs.
+	 * 
+	 * @param sweep
+	 *            The parameters of the experiments.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	static void processQueryFileSweep(List<Map<String, String>> sweep) throws IOException {
+
+		List<RetrievalModel> models = new ArrayList<RetrievalModel>();
+		RunWriter[] outputs = new RunWriter[sweep.size()];
+		TrecEval[] evaluations = new TrecEval[sweep.size()];
+		String qrelsPath = sweep.get(0).get("trecEvalQrelsPath");
+
+		setOptions(sweep.get(0));
+
+		for (int k = 0; k < sweep.size(); k++) {
+			models.add(initializeRetrievalModel(sweep.get(k)));
+			evaluations[k] = (qrelsPath == null) ? null : new TrecEval(qrelsPath);
+			outputs[k] = new RunWriter(sweep.get(k).get("trecEvalOutputPath"), sweep.get(k).get("binaryOutputPath"),
+					evaluations[k]);
+		}
+
+		BufferedReader input = new BufferedReader(new FileReader(sweep.get(0).get("queryFilePath")));
+
+		try {
+			String qLine = null;
+
+			while ((qLine = input.readLine()) != null) {
+				int d = qLine.indexOf(':');
+
+				if (d < 0) {
+					throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+				}
+
+				String qid = qLine.substring(0, d);
+				String query = qLine.substring(d + 1);
+
+				System.out.println("Query " + qLine);
+
+				ScoreList[] r = processQuerySweep(query, models);
+
+				for (int k = 0; k < outputs.length; k++) {
+					outputs[k].write(qid, r[k], MAX_RESULTS);
+				}
+			}
 		} finally {
 			input.close();
+
+			for (RunWriter output : outputs) {
+				output.close();
+			}
+		}
+
+		for (int k = 0; k < evaluations.length; k++) {
+			if (evaluations[k] != null) {
+				writeEvaluation(evaluations[k], sweep.get(k).get("trecEvalOutputPath"));
+			}
 		}
-		SEWriter.close();
+	}
+
+	/**
+	 * Process one query with several parameter settings of a retrieval
+	 * model. The query is initialized once; QrySop.initializeScores prepares
+	 * it for each of the other settings, and a scorer is compiled for each
+	 * setting. If every scorer is compiled, the matching documents are found
+	 * once and scored by every scorer. Otherwise, interpreted operators
+	 * would score with the last setting, so the query is processed
+	 * separately for each setting.
+	 * 
+	 * @param qString
+	 *            A string that contains a query.
+	 * @param models
+	 *            The parameter settings, which are all of the same retrieval
+	 *            model.
+	 * @return Search results for each setting.
+	 * @throws IOException
+	 *             Error accessing the index
+	 */
+	static ScoreList[] processQuerySweep(String qString, List<RetrievalModel> models) throws IOException {
+
+		RetrievalModel first = models.get(0);
+		Qry q = QryParser.getQuery(first.defaultQrySopName() + "(" + qString + ")");
+		ScoreList[] results = new ScoreList[models.size()];
+
+		System.out.println("    --> " + q);
+
+		if (q == null) {
+			return results;
+		}
+
+		for (int k = 0; k < results.length; k++) {
+			results[k] = new ScoreList();
+		}
+
+		if (q.args.size() == 0) {
+			return results;
+		}
+
+		QryScorer[] scorers = new QryScorer[results.length];
+
+		q.initialize(first);
+
+		for (int k = 0; k < scorers.length; k++) {
+			if (k > 0) {
+				((QrySop) q).initializeScores(models.get(k));
+			}
+
+			scorers[k] = QryScorer.compile(q, models.get(k));
+
+			if (!scorers[k].isCompiled()) {
+				for (int j = 0; j < results.length; j++) {
+					results[j] = processQuery(qString, models.get(j));
+				}
+				return results;
+			}
+
+			if (codegen) {
+				scorers[k] = QryCodegen.generate(scorers[k]);
+			}
+		}
+
+		while (q.docIteratorHasMatch(first)) {
+			int docid = q.docIteratorGetMatch();
+
+			for (int k = 0; k < scorers.length; k++) {
+				results[k].add(docid, scorers[k].score());
+			}
+
+			q.docIteratorAdvancePast(docid);
+		}
+
+		for (int k = 0; k < results.length; k++) {
+			results[k].sort();
+		}
+
+		return results;
 	}
 
 	/**
@@ -298,27 +674,34 @@ public class QryEval {
 	 * @param qid
 	 *            query id
 	 * @param r
-	 *            scoreList of query
-	 * @param path
-	 *            file's path
+	 *            scoreList of query, or null if the query is empty
 	 * 
 	 */
 	static void writeResults(String qid, ScoreList r) throws IOException {
-		StringBuilder sb = new StringBuilder();
+		output.write(qid, r, MAX_RESULTS);
+	}
 
-		if (r == null) {
-			sb.append(qid).append("\t").append("Q0\t").append("dummy\t").append(1).append("\t").append(0).append("\t")
-					.append("run-1\n");
-		} else {
-			int size = Math.min(100, r.size());
-			for (int i = 0; i < size; i++) {
-				sb.append(qid).append("\t").append("Q0\t").append(r.getExternalDocid(i)).append("\t").append(i + 1)
-						.append("\t").append(r.getDocidScore(i)).append("\t").append("run-1\n");
-			}
+	/**
+	 * Write the trec_eval report of an experiment next to its run file
+	 * (trecEvalOutputPath + ".eval"), and print the aggregate measures.
+	 * 
+	 * @param evaluation
+	 *            The evaluator.
+	 * @param trecEvalOutputPath
+	 *            The run file.
+	 * @throws IOException
+	 *             Error writing the report.
+	 */
+	private static void writeEvaluation(TrecEval evaluation, String trecEvalOutputPath) throws IOException {
+		Writer output = new BufferedWriter(new FileWriter(trecEvalOutputPath + ".eval"));
+		try {
+			output.write(evaluation.getReport());
+		} finally {
+			output.close();
 		}
-		// System.out.println(sb.toString());
-		SEWriter.write(sb.toString());
-
+		Map<String, Double> all = evaluation.getAggregate();
+		System.out.println(trecEvalOutputPath + ":  map " + all.get("map") + ", P_10 " + all.get("P_10")
+				+ ", ndcg_cut_10 " + all.get("ndcg_cut_10"));
 	}
 
 	/**
@@ -356,7 +739,7 @@ public class QryEval {
 	 * 
 	 * @return The parameters, in <key, value> format.
 	 */
-	private static Map<String, String> readParameterFile(String parameterFileName) throws IOException {
+	static Map<String, String> readParameterFile(String parameterFileName) throws IOException {
 
 		Map<String, String> parameters = new HashMap<String, String>();
 
@@ -48,12 +48,35 @@ public abstract class QryIop extends Qry {
 	 */
 	protected String field = null;
 
+	/**
+	 * Whether the inverted list must have locations. Only proximity operators
+	 * (and #SYN operators that are their arguments) use locations; the other
+	 * inverted lists only need term frequencies. It is set for the whole query
+	 * by setNeedsPositions; without it, locations are read.
+	 */
+	protected boolean needsPositions = true;
+
 	/**
 	 * The inverted list that is produced when the query operator is
 	 * initialized; use the docIterator to access this list.
 	 */
 	protected InvList invertedList = null;
 
+	/**
+	 * Operators of a query that have the same canonical form share one
+	 * evaluated inverted list (see QryParser.getQuery); null if the operator
+	 * evaluates its own list.
+	 */
+	private SharedList sharedList = null;
+
+	/**
+	 * If true, the inverted list is evaluated one document at a time, as the
+	 * docIterator advances, instead of when the operator is initialized (see
+	 * setStreaming). streamDone is set when there are no more documents.
+	 */
+	private boolean streaming = false;
+	private boolean streamDone = false;
+
 	/**
 	 * The index of the document that the docIterator points to now.
 	 */
@@ -73,9 +96,18 @@ public abstract class QryIop extends Qry {
 	 */
 	public void docIteratorAdvancePast(int docid) {
 
-		while ((this.docIteratorIndex < this.invertedList.df)
-				&& (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-			this.docIteratorIndex++;
+		if (this.streaming) {
+			if (docid == Integer.MAX_VALUE) {
+				this.docIteratorIndex = this.invertedList.df;
+				this.streamDone = true;
+			} else {
+				this.docIteratorAdvanceTo(docid + 1);
+			}
+		} else if (docid == Integer.MAX_VALUE) {
+			this.docIteratorIndex = Math.max(this.docIteratorIndex, this.invertedList.df);
+		} else {
+			this.docIteratorIndex = DocidKernels.INSTANCE.advance(this.invertedList.getDocids(),
+					this.docIteratorIndex, this.invertedList.df, docid + 1);
 		}
 
 		this.locIteratorIndex = 0;
@@ -90,9 +122,24 @@ public abstract class QryIop extends Qry {
 	 */
 	public void docIteratorAdvanceTo(int docid) {
 
-		while ((this.docIteratorIndex < this.invertedList.df)
-				&& (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-			this.docIteratorIndex++;
+		if (this.streaming) {
+
+			// Skip the arguments; the next match is evaluated when
+			// docIteratorHasMatch asks for it.
+
+			if ((this.docIteratorIndex >= this.invertedList.df)
+					|| (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
+				this.docIteratorIndex = this.invertedList.df;
+
+				for (Qry q_i : this.args) {
+					q_i.docIteratorAdvanceTo(docid);
+				}
+
+				this.docIteratorClearMatchCache();
+			}
+		} else {
+			this.docIteratorIndex = DocidKernels.INSTANCE.advance(this.invertedList.getDocids(),
+					this.docIteratorIndex, this.invertedList.df, docid);
 		}
 
 		this.locIteratorIndex = 0;
@@ -128,6 +175,45 @@ public abstract class QryIop extends Qry {
 		return this.invertedList.postings.get(docIteratorIndex);
 	}
 
+	/**
+	 * Return the index in the inverted list of the posting that the
+	 * docIterator points to now. Per-posting values that are computed in
+	 * bulk (e.g., by QrySopScore) are stored in this order.
+	 * 
+	 * @return The index of the current posting.
+	 */
+	public int docIteratorGetMatchIndex() {
+		return this.docIteratorIndex;
+	}
+
+	/**
+	 * Get the docids of the inverted list.
+	 * 
+	 * @return The sorted docids.
+	 */
+	@Override
+	public int[] getDocids() {
+		return this.streaming ? null : this.invertedList.getDocids();
+	}
+
+	/**
+	 * Evaluate the query operator as a docset. By default the operator is
+	 * initialized and the docids of its inverted list are converted, because
+	 * operators such as #NEAR/n need locations to decide what matches.
+	 * 
+	 * @param r
+	 *            A retrieval model (that is ignored)
+	 * @return The docset.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	protected DocSet evaluateDocSet(RetrievalModel r) throws IOException {
+		this.streaming = false;
+		this.initialize(r);
+		return DocSet.fromSorted(this.invertedList.getDocids(), this.invertedList.df);
+	}
+
 	/**
 	 * Indicates whether the query has a matching document.
 	 * 
@@ -136,6 +222,12 @@ public abstract class QryIop extends Qry {
 	 * @return True if the query matches a document, otherwise false.
 	 */
 	public boolean docIteratorHasMatch(RetrievalModel r) {
+
+		if ((this.docIteratorIndex >= this.invertedList.df) && this.streaming && !this.streamDone) {
+			this.streamDone = !this.evaluateNext();
+			this.locIteratorIndex = 0;
+		}
+
 		return (this.docIteratorIndex < this.invertedList.df);
 	}
 
@@ -179,6 +271,80 @@ public abstract class QryIop extends Qry {
 	 */
 	protected abstract void evaluate() throws IOException;
 
+	/**
+	 * Evaluate the operator on the next document that it matches, from the
+	 * current documents of its arguments, and append the posting to the
+	 * inverted list. Operators that support streaming evaluation override
+	 * this method.
+	 * 
+	 * @return True if a posting was appended, false if there are no more
+	 *         matches.
+	 */
+	protected boolean evaluateNext() {
+		return false;
+	}
+
+	/**
+	 * Choose streaming or materialized evaluation (the default). A streaming
+	 * operator doesn't evaluate its inverted list when it is initialized; it
+	 * evaluates one document at a time as its docIterator advances, so
+	 * documents that its parent skips are never evaluated. A streaming
+	 * operator doesn't know its df and ctf, so only retrieval models that
+	 * don't use them can use streaming operators. Set by {@link QryPlanner}.
+	 * 
+	 * @param streaming
+	 *            True for streaming evaluation.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Indicates whether the operator is evaluated as a stream.
+	 * 
+	 * @return True for streaming evaluation, false for materialized.
+	 */
+	public boolean isStreaming() {
+		return this.streaming;
+	}
+
+	/**
+	 * Share the evaluated inverted list of an identical operator. Each time
+	 * the query is initialized, whichever operator is initialized first
+	 * evaluates the list, and the others use it with their own docIterators
+	 * and locIterators. Operators that stream evaluate their own lists.
+	 *
+	 * @param q
+	 *            An operator with the same canonical form (see
+	 *            Qry.getDocSetKey) and the same needsPositions, or null to
+	 *            stop sharing.
+	 */
+	public void shareInvertedList(QryIop q) {
+
+		if (this.sharedList != null) {
+			this.sharedList.operators--;
+			this.sharedList = null;
+		}
+
+		if (q != null) {
+			if (q.sharedList == null) {
+				q.sharedList = new SharedList();
+			}
+
+			this.sharedList = q.sharedList;
+			this.sharedList.operators++;
+		}
+	}
+
+	/**
+	 * Indicates whether the operator supports streaming evaluation.
+	 * 
+	 * @return True if the operator implements evaluateNext.
+	 */
+	public boolean supportsStreaming() {
+		return false;
+	}
+
 	/**
 	 * Initialize the query operator (and its arguments), including any internal
 	 * iterators; this method must be called before iteration can begin.
@@ -188,15 +354,59 @@ public abstract class QryIop extends Qry {
 	 */
 	public void initialize(RetrievalModel r) throws IOException {
 
+		// If an identical operator already evaluated the inverted list, use
+		// it; the arguments aren't needed.
+
+		if (!this.streaming && (this.sharedList != null) && (this.sharedList.unused > 0)
+				&& (this.sharedList.reader == Idx.INDEXREADER)) {
+			this.sharedList.unused--;
+			this.invertedList = this.sharedList.list;
+			this.docIteratorClearMatchAll();
+			this.docIteratorIndex = 0;
+			this.locIteratorIndex = 0;
+			return;
+		}
+
+		// Inverted lists that are merged from the arguments may be cached
+		// from an earlier query.
+
+		String cacheKey = null;
+
+		if (!this.streaming && this.usesInvListCache()) {
+			cacheKey = this.getInvListCacheKey();
+			InvList list = InvListCache.get(cacheKey);
+
+			if (list != null) {
+				this.invertedList = list;
+				this.shareEvaluatedList();
+				this.docIteratorClearMatchAll();
+				this.docIteratorIndex = 0;
+				this.locIteratorIndex = 0;
+				return;
+			}
+		}
+
 		// Initialize the query arguments (if any).
 
 		for (Qry q_i : this.args) {
 			((QryIop) q_i).initialize(r);
 		}
 
-		// Evaluate the operator.
+		this.docIteratorClearMatchAll();
+
+		// Evaluate the operator, unless it is streaming.
 
-		this.evaluate();
+		if (this.streaming) {
+			this.invertedList = new InvList(this.field);
+			this.streamDone = false;
+		} else {
+			this.evaluate();
+			this.shareEvaluatedList();
+
+			if (cacheKey != null) {
+				InvListCache.put(cacheKey, this.invertedList);
+			}
+		}
 
 		// Initialize the internal iterators.
 
@@ -204,6 +414,78 @@ public abstract class QryIop extends Qry {
 		this.locIteratorIndex = 0;
 	}
 
+	/**
+	 * Give the operators that share this operator's inverted list (see
+	 * shareInvertedList) the list that it just evaluated.
+	 */
+	private void shareEvaluatedList() {
+		if (this.sharedList != null) {
+			this.sharedList.reader = Idx.INDEXREADER;
+			this.sharedList.list = this.invertedList;
+			this.sharedList.unused = this.sharedList.operators - 1;
+		}
+	}
+
+	/**
+	 * Indicates whether the inverted list is cached across queries (see
+	 * InvListCache). Lists that are merged from the arguments are; term
+	 * operators override this method.
+	 * 
+	 * @return True if the inverted list is cached.
+	 */
+	protected boolean usesInvListCache() {
+		return true;
+	}
+
+	/**
+	 * Get the key of the operator's inverted list in the InvListCache: the
+	 * canonical form of the operator (see Qry.getDocSetKey), and whether the
+	 * list has locations.
+	 * 
+	 * @return The key.
+	 */
+	public String getInvListCacheKey() {
+		return (this.needsPositions ? "" : "(docs) ") + this.getDocSetKey();
+	}
+
+	/**
+	 * Record whether the inverted list must have locations, and pass it on to
+	 * the query arguments. The arguments need locations if this operator
+	 * needs them, or if it uses them to decide what matches (see
+	 * matchesOnPositions).
+	 * 
+	 * @param needed
+	 *            True if the operator's parent uses its locations.
+	 */
+	@Override
+	public void setNeedsPositions(boolean needed) {
+
+		this.needsPositions = needed;
+
+		for (Qry q_i : this.args) {
+			q_i.setNeedsPositions(needed || this.matchesOnPositions());
+		}
+	}
+
+	/**
+	 * Indicates whether the inverted list must have locations.
+	 * 
+	 * @return True if locations are read.
+	 */
+	public boolean getNeedsPositions() {
+		return this.needsPositions;
+	}
+
+	/**
+	 * Indicates whether the operator uses the locations of its arguments to
+	 * decide what matches. Proximity operators override this method.
+	 * 
+	 * @return True if the arguments need locations, otherwise false.
+	 */
+	protected boolean matchesOnPositions() {
+		return false;
+	}
+
 	/**
 	 * Advance the query operator's internal iterator to the next location.
 	 */
@@ -267,4 +549,15 @@ public abstract class QryIop extends Qry {
 		return this.invertedList.getTf(this.docIteratorIndex);
 	}
 
+	/**
+	 * An inverted list that identical operators share, the index that it was
+	 * evaluated from, the number of operators that share it, and the number
+	 * of them that haven't used it since it was evaluated.
+	 */
+	private static class SharedList {
+		Object reader = null;
+		InvList list = null;
+		int operators = 1;
+		int unused = 0;
+	}
 }
@@ -26,6 +26,26 @@ public class QryIopNear extends QryIop {
 		this.distance = distance;
 	}
 
+	/**
+	 * The operator matches on the locations of its arguments.
+	 * 
+	 * @return True.
+	 */
+	@Override
+	protected boolean matchesOnPositions() {
+		return true;
+	}
+
+	/**
+	 * The operator can be evaluated one document at a time.
+	 * 
+	 * @return True.
+	 */
+	@Override
+	public boolean supportsStreaming() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the query operator; the result is an internal inverted list that
 	 * may be accessed via the internal iterators.
@@ -35,8 +55,21 @@ public class QryIopNear extends QryIop {
 	 */
 	protected void evaluate() throws IOException {
 		this.invertedList = new InvList(this.field);
-		if (args == null || args.size() == 0 || !this.docIteratorHasMatchAll(null))
-			return;
+		while (this.evaluateNext()) {
+		}
+	}
+
+	/**
+	 * Find the next document, from the current documents of the arguments,
+	 * that the operator matches, and append its posting to the inverted list.
+	 * 
+	 * @return True if a posting was appended, false if there are no more
+	 *         matches.
+	 */
+	@Override
+	protected boolean evaluateNext() {
+		if (args == null || args.size() == 0)
+			return false;
 		while (this.docIteratorHasMatchAll(null)) {
 			int docid = this.getCachedDoc();
 //			System.out.println("+++++++++++++++++++++++++++++++"+docid);
@@ -73,12 +106,15 @@ public class QryIopNear extends QryIop {
 					}
 				}
 			}
-			if(positions.size()!=0)
-				this.invertedList.appendPosting(docid, positions);
 			for(Qry q:this.args){
 				q.docIteratorAdvancePast(docid);
 			}
+			if(positions.size()!=0) {
+				this.invertedList.appendPosting(docid, positions);
+				return true;
+			}
 		}
+		return false;
 	}
 
 	/**
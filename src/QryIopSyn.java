@@ -53,6 +53,24 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
+      //  If locations aren't needed, the arguments don't have them,
+      //  and the term frequency is the sum of the argument tfs.
+
+      if (! this.needsPositions) {
+        int tf = 0;
+
+        for (Qry q_i: this.args) {
+          if (q_i.docIteratorHasMatch (null) &&
+              (q_i.docIteratorGetMatch () == minDocid)) {
+            tf += ((QryIop) q_i).docIteratorGetMatchPosting().tf;
+            q_i.docIteratorAdvancePast (minDocid);
+          }
+        }
+
+        this.invertedList.appendPosting (minDocid, tf);
+        continue;
+      }
+
       List<Integer> positions = new ArrayList<Integer>();
 
       for (Qry q_i: this.args) {
@@ -70,4 +88,17 @@ public class QryIopSyn extends QryIop {
     }
   }
 
+  /**
+   *  Evaluate the query operator as a docset:  the documents that
+   *  any argument matches.
+   *  @param r A retrieval model (that is ignored)
+   *  @return The docset, or null if an argument can't be evaluated
+   *  as a docset.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  protected DocSet evaluateDocSet (RetrievalModel r) throws IOException {
+    return this.docSetMatchMin (r);
+  }
+
 }
@@ -41,7 +41,46 @@ public class QryIopTerm extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.invertedList = new InvList(this.term, this.field, this.needsPositions);
+  }
+
+  /**
+   *  Evaluate the query operator as a docset.  The docset is read
+   *  from the index without positions.
+   *  @param r A retrieval model (that is ignored)
+   *  @return The documents that contain the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  protected DocSet evaluateDocSet (RetrievalModel r) throws IOException {
+    return DocSet.forTerm (this.term, this.field);
+  }
+
+  /**
+   *  The term and field identify the docset of a term.
+   *  @return The canonical form of the term.
+   */
+  @Override
+  protected String getDocSetKey () {
+    return this.toString ();
+  }
+
+  /**
+   *  Term inverted lists are read from the index, which is cheap
+   *  enough that they aren't cached.
+   *  @return False.
+   */
+  @Override
+  protected boolean usesInvListCache () {
+    return false;
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
   }
 
   /**
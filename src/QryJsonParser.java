@@ -0,0 +1,402 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * QryJsonParser converts structured queries in JSON into query trees, without
+ * building and re-parsing an Indri-style query string. Services that build
+ * queries programmatically can use it to submit operators, weights, terms and
+ * fields directly. The tree is built with QryParser.createOperator,
+ * createTerms and appendArg, so it is checked by the same rules as a parsed
+ * query (see {@link Qry#appendArg}).
+ * <p>
+ * A query node is a JSON object. Operator nodes have an operator name and a
+ * list of arguments. Term nodes have a term, an optional field (default
+ * "body") and an optional "stemmed" flag; a stemmed term is used as is, so the
+ * analyzer is skipped entirely. Each argument of a weighted operator (#wand,
+ * #wsum) must have a numeric weight; the arguments of other operators must
+ * not have one.
+ * </p>
+ *
+ * <pre>
+ *    {"op": "#wand", "args": [
+ *        {"weight": 0.7, "op": "#and", "args": [{"term": "obama"}, {"term": "family"}]},
+ *        {"weight": 0.3, "term": "genealogy", "field": "title", "stemmed": true}]}
+ * </pre>
+ * <p>
+ * A query file has one query per line: {"qid": "10", "query": {...}}.
+ * </p>
+ */
+public class QryJsonParser {
+
+	// --------------- Constants and variables ---------------------
+
+	private final String s;
+	private int pos = 0;
+
+	// --------------- Methods ---------------------------------------
+
+	private QryJsonParser(String s) {
+		this.s = s;
+	}
+
+	/**
+	 * Convert a JSON query node into an optimized query tree.
+	 *
+	 * @param json
+	 *            A JSON query node.
+	 * @return Qry The query tree, or null if the query is empty (e.g., all
+	 *         stopwords).
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 * @throws IllegalArgumentException
+	 *             Syntax error.
+	 */
+	public static Qry getQuery(String json) throws IOException, IllegalArgumentException {
+		Qry q = createQry(asObject(parseJson(json)));
+
+		if (q != null) {
+			q = QryParser.getQuery(q);
+		}
+
+		return q;
+	}
+
+	/**
+	 * Parse one line of a JSON query file.
+	 *
+	 * @param line
+	 *            A line of the form {"qid": "...", "query": {...}}.
+	 * @return The query id and the optimized query tree. The tree is null if
+	 *         the query is empty.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 * @throws IllegalArgumentException
+	 *             Syntax error.
+	 */
+	public static Map.Entry<String, Qry> parseQueryLine(String line) throws IOException, IllegalArgumentException {
+
+		Map<String, Object> object = asObject(parseJson(line));
+		Object qid = object.get("qid");
+
+		if (qid == null) {
+			syntaxError("Missing qid");
+		}
+
+		Qry q = createQry(asObject(object.get("query")));
+
+		if (q != null) {
+			q = QryParser.getQuery(q);
+		}
+
+		return new AbstractMap.SimpleImmutableEntry<String, Qry>(qid.toString(), q);
+	}
+
+	/**
+	 * Create the query tree for a JSON query node.
+	 *
+	 * @param node
+	 *            A parsed JSON object.
+	 * @return Qry The query tree, or null if the node is a term that has no
+	 *         terms after analysis (e.g., a stopword).
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static Qry createQry(Map<String, Object> node) throws IOException {
+
+		Object op = node.get("op");
+
+		if (op == null) {
+			Qry[] terms = createTerms(node);
+
+			if (terms.length == 0) {
+				return null; // A stopword
+			} else if (terms.length == 1) {
+				return terms[0];
+			}
+
+			// A term that analyzes into several terms (e.g., near-death)
+			// is only valid as an argument of an operator.
+
+			syntaxError("Term " + node.get("term") + " must be an argument of a query operator");
+		}
+
+		Qry operator = QryParser.createOperator(op.toString());
+		boolean weighted = (operator instanceof QrySopWAnd) || (operator instanceof QrySopWSum);
+		Object args = node.get("args");
+
+		if (!(args instanceof List)) {
+			syntaxError("Missing args for operator " + op);
+		}
+
+		for (Object arg : (List<?>) args) {
+			Map<String, Object> argNode = asObject(arg);
+			double weight = getWeight(argNode, op, weighted);
+
+			if (argNode.get("op") != null) {
+				QryParser.appendArg(operator, createQry(argNode), weight);
+			} else {
+				for (Qry term : createTerms(argNode)) {
+					QryParser.appendArg(operator, term, weight);
+				}
+			}
+		}
+
+		return operator;
+	}
+
+	/**
+	 * Create the terms for a JSON term node.
+	 *
+	 * @param node
+	 *            A parsed JSON object.
+	 * @return The terms.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static Qry[] createTerms(Map<String, Object> node) throws IOException {
+
+		Object term = node.get("term");
+		Object field = node.get("field");
+		Object stemmed = node.get("stemmed");
+
+		if (!(term instanceof String)) {
+			syntaxError("A query node must have an op or a term");
+		}
+
+		return QryParser.createTerms((String) term, (field == null) ? "body" : field.toString().toLowerCase(),
+				Boolean.TRUE.equals(stemmed));
+	}
+
+	/**
+	 * Get the weight of an argument of a JSON operator node.
+	 *
+	 * @param node
+	 *            A parsed JSON object.
+	 * @param op
+	 *            The name of the operator that the node is an argument of.
+	 * @param weighted
+	 *            True if the operator is weighted (#wand, #wsum).
+	 * @return The weight, or 0 if the operator isn't weighted.
+	 */
+	private static double getWeight(Map<String, Object> node, Object op, boolean weighted) {
+
+		Object weight = node.get("weight");
+
+		if (!weighted) {
+			if (weight != null) {
+				syntaxError("Unexpected weight " + weight + " for an argument of " + op);
+			}
+
+			return 0;
+		}
+
+		if (weight == null) {
+			syntaxError("Missing weight for an argument of " + op);
+		} else if (!(weight instanceof Double)) {
+			syntaxError("Weight must be a number: " + weight);
+		}
+
+		return (Double) weight;
+	}
+
+	/**
+	 * Cast a parsed JSON value to an object.
+	 *
+	 * @param value
+	 *            A parsed JSON value.
+	 * @return The object.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asObject(Object value) {
+
+		if (!(value instanceof Map)) {
+			syntaxError("Expected a JSON object");
+		}
+
+		return (Map<String, Object>) value;
+	}
+
+	/**
+	 * Parse a JSON string into Maps, Lists, Strings, Doubles, Booleans and
+	 * nulls.
+	 *
+	 * @param json
+	 *            The JSON string.
+	 * @return The parsed value.
+	 */
+	private static Object parseJson(String json) {
+
+		QryJsonParser p = new QryJsonParser(json);
+		Object value = p.parseValue();
+
+		p.skipWhitespace();
+
+		if (p.pos != json.length()) {
+			syntaxError("Unexpected text after JSON value at offset " + p.pos);
+		}
+
+		return value;
+	}
+
+	private Object parseValue() {
+
+		skipWhitespace();
+
+		if (this.pos >= this.s.length()) {
+			syntaxError("Unexpected end of JSON");
+		}
+
+		char c = this.s.charAt(this.pos);
+
+		if (c == '{') {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+
+			this.pos++;
+
+			if (!consume('}')) {
+				do {
+					skipWhitespace();
+					String key = parseString();
+					expect(':');
+					object.put(key, parseValue());
+				} while (consume(','));
+
+				expect('}');
+			}
+
+			return object;
+		} else if (c == '[') {
+			List<Object> array = new ArrayList<Object>();
+
+			this.pos++;
+
+			if (!consume(']')) {
+				do {
+					array.add(parseValue());
+				} while (consume(','));
+
+				expect(']');
+			}
+
+			return array;
+		} else if (c == '"') {
+			return parseString();
+		} else if (this.s.startsWith("true", this.pos)) {
+			this.pos += 4;
+			return Boolean.TRUE;
+		} else if (this.s.startsWith("false", this.pos)) {
+			this.pos += 5;
+			return Boolean.FALSE;
+		} else if (this.s.startsWith("null", this.pos)) {
+			this.pos += 4;
+			return null;
+		}
+
+		// Otherwise it must be a number.
+
+		int start = this.pos;
+
+		while ((this.pos < this.s.length()) && ("+-0123456789.eE".indexOf(this.s.charAt(this.pos)) >= 0)) {
+			this.pos++;
+		}
+
+		try {
+			return Double.parseDouble(this.s.substring(start, this.pos));
+		} catch (NumberFormatException ex) {
+			syntaxError("Unexpected character in JSON at offset " + start);
+			return null;
+		}
+	}
+
+	private String parseString() {
+
+		if ((this.pos >= this.s.length()) || (this.s.charAt(this.pos) != '"')) {
+			syntaxError("Expected a JSON string at offset " + this.pos);
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		for (this.pos++; this.pos < this.s.length(); this.pos++) {
+			char c = this.s.charAt(this.pos);
+
+			if (c == '"') {
+				this.pos++;
+				return sb.toString();
+			} else if ((c == '\\') && (this.pos + 1 < this.s.length())) {
+				c = this.s.charAt(++this.pos);
+
+				switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (this.pos + 4 >= this.s.length()) {
+						syntaxError("Bad unicode escape in JSON string");
+					}
+					sb.append((char) Integer.parseInt(this.s.substring(this.pos + 1, this.pos + 5), 16));
+					this.pos += 4;
+					break;
+				default:
+					sb.append(c); // \" \\ \/
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+
+		syntaxError("Unterminated JSON string");
+		return null;
+	}
+
+	private boolean consume(char c) {
+
+		skipWhitespace();
+
+		if ((this.pos < this.s.length()) && (this.s.charAt(this.pos) == c)) {
+			this.pos++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!consume(c)) {
+			syntaxError("Expected '" + c + "' in JSON at offset " + this.pos);
+		}
+	}
+
+	private void skipWhitespace() {
+		while ((this.pos < this.s.length()) && Character.isWhitespace(this.s.charAt(this.pos))) {
+			this.pos++;
+		}
+	}
+
+	/**
+	 * Throw an error specialized for query syntax errors.
+	 *
+	 * @param errorString
+	 *            A description of the error.
+	 * @throws IllegalArgumentException
+	 *             The query contained a syntax error
+	 */
+	private static void syntaxError(String errorString) throws IllegalArgumentException {
+		throw new IllegalArgumentException("Syntax Error: " + errorString);
+	}
+}
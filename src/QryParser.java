@@ -5,8 +5,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.util.Version;
@@ -24,13 +24,22 @@ import org.apache.lucene.util.Version;
  * <li>createOperator: Use a string (e.g., #and) to create a node (e.g.,
  * QrySopAnd).
  *
- * <li>parseString: If the operator supports term weights (e.g., #wsum (0.5
+ * <li>parseOperator: If the operator supports term weights (e.g., #wsum (0.5
  * apple 1 pie)), you must modify this method. For these operators, two
- * substrings (weight and term) are popped from the query string at each step,
+ * tokens (weight and term) are consumed from the query string at each step,
  * instead of one.
  * </ul>
  * <p>
- * Add new document fields to the parser by modifying createTerms.
+ * Add new document fields to the parser by modifying isField.
+ * </p>
+ * <p>
+ * Callers that already have a structured query can skip the query string:
+ * build the tree with createOperator, createTerms and appendArg (or use
+ * {@link QryJsonParser}), and pass it to getQuery(Qry).
+ * </p>
+ * <p>
+ * QryParser has no mutable state other than a cache of analyzed tokens, which
+ * is safe for concurrent use, so it may be called from many threads.
  * </p>
  */
 
@@ -40,6 +49,15 @@ public class QryParser {
 
 	private static final EnglishAnalyzerConfigurable ANALYZER = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
 
+	/**
+	 * Analyzed forms of recently tokenized strings. Expansion queries repeat
+	 * the same terms many times, so most lookups are hits. When the cache is
+	 * full it is cleared, which bounds its size without the bookkeeping of
+	 * an LRU policy.
+	 */
+	private static final int TOKEN_CACHE_SIZE = 100000;
+	private static final ConcurrentHashMap<String, String[]> TOKEN_CACHE = new ConcurrentHashMap<String, String[]>();
+
 	// -------------------- Initialization -------------------------
 
 	static {
@@ -71,12 +89,39 @@ public class QryParser {
 		return count;
 	}
 
+	/**
+	 * Add an argument to a query operator. If the operator uses weighted
+	 * arguments (e.g., #wsum), the weight is recorded, otherwise it is
+	 * ignored.
+	 * 
+	 * @param operator
+	 *            The query operator.
+	 * @param arg
+	 *            The argument.
+	 * @param weight
+	 *            The weight of the argument.
+	 * @throws IllegalArgumentException
+	 *             arg is not a valid argument of operator.
+	 */
+	public static void appendArg(Qry operator, Qry arg, double weight) throws IllegalArgumentException {
+
+		if (operator instanceof QrySopWAnd) {
+			((QrySopWAnd) operator).addWeight(weight);
+		} else if (operator instanceof QrySopWSum) {
+			((QrySopWSum) operator).addWeight(weight);
+		}
+
+		operator.appendArg(arg);
+	}
+
 	/**
 	 * Create the desired query operator.
 	 * 
-	 * @parameter operator The operator name.
+	 * @parameter operator The operator name, e.g., #and or #near/3.
+	 * @throws IllegalArgumentException
+	 *             Unknown query operator.
 	 */
-	private static Qry createOperator(String operatorName) {
+	public static Qry createOperator(String operatorName) {
 
 		Qry operator = null;
 		int operatorDistance = 0;
@@ -122,6 +167,14 @@ public class QryParser {
 			case "#wsum":
 				operator = new QrySopWSum();
 				break;
+
+			case "#filreq":
+				operator = new QrySopFilter(true);
+				break;
+
+			case "#filrej":
+				operator = new QrySopFilter(false);
+				break;
 				
 			default:
 				syntaxError("Unknown query operator " + operatorName);
@@ -160,11 +213,40 @@ public class QryParser {
 
 		// Confirm that the field is a known field.
 
-		if ((field.compareTo("url") != 0) && (field.compareTo("keywords") != 0) && (field.compareTo("title") != 0)
-				&& (field.compareTo("body") != 0) && (field.compareTo("inlink") != 0)) {
+		if (!isField(field)) {
 			syntaxError("Unknown field " + token);
 		}
 
+		return createTerms(term, field, false);
+	}
+
+	/**
+	 * Create one or more terms from a term string and a field. If the term
+	 * string is already stemmed, it becomes a single term; otherwise it gets
+	 * the same lexical processing as terms in a query string.
+	 * 
+	 * @param term
+	 *            The term string.
+	 * @param field
+	 *            The field name.
+	 * @param stemmed
+	 *            If true, term is used as is, without lexical processing.
+	 * @return The terms; there may be none, e.g., if term is a stopword.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 * @throws IllegalArgumentException
+	 *             Unknown field.
+	 */
+	public static Qry[] createTerms(String term, String field, boolean stemmed) throws IOException {
+
+		if (!isField(field)) {
+			syntaxError("Unknown field " + term + "." + field);
+		}
+
+		if (stemmed) {
+			return new Qry[] { new QryIopTerm(term, field) };
+		}
+
 		// Lexical processing, stopwords, stemming. A loop is used
 		// just in case a term (e.g., "near-death") gets tokenized into
 		// multiple terms (e.g., "near" and "death").
@@ -193,10 +275,123 @@ public class QryParser {
 	public static Qry getQuery(String queryString) throws IOException, IllegalArgumentException {
 
 		Qry q = parseString(queryString); // An exact parse
-		q = optimizeQuery(q); // An optimized parse
+		return getQuery(q);
+	}
+
+	/**
+	 * Convert a query tree that was built without a query string (e.g., by
+	 * {@link QryJsonParser}) into an optimized query tree. The tree must be
+	 * built with createOperator, createTerms and appendArg, so that it gets
+	 * the same checks as a parsed query.
+	 * 
+	 * The tree is also marked so that only the inverted lists that
+	 * proximity operators use have locations (see Qry.setNeedsPositions).
+	 * Identical inverted list operators (e.g., the terms that an SDM query
+	 * repeats in its #AND, #NEAR and #WINDOW parts) share one evaluated
+	 * inverted list (see QryIop.shareInvertedList).
+	 * 
+	 * @param queryTree
+	 *            The query tree.
+	 * @return Qry The optimized query tree.
+	 */
+	public static Qry getQuery(Qry queryTree) {
+
+		Qry q = optimizeQuery(queryTree); // An optimized parse
+
+		if (q != null) {
+			q.setNeedsPositions(false);
+			shareInvertedLists(q);
+		}
+
 		return q;
 	}
 
+	/**
+	 * Find the inverted list operators of a query tree, grouped by canonical
+	 * form (see Qry.getDocSetKey).
+	 * 
+	 * @param q
+	 *            The query tree.
+	 * @param groups
+	 *            Output: the operators of each canonical form, in tree order.
+	 */
+	private static void findInvertedLists(Qry q, Map<String, List<QryIop>> groups) {
+
+		if (q instanceof QryIop) {
+			String key = q.getDocSetKey();
+			List<QryIop> group = groups.get(key);
+
+			if (group == null) {
+				group = new ArrayList<QryIop>();
+				groups.put(key, group);
+			}
+
+			group.add((QryIop) q);
+		}
+
+		for (Qry q_i : q.args) {
+			findInvertedLists(q_i, groups);
+		}
+	}
+
+	/**
+	 * Make the inverted list operators of a query tree that have the same
+	 * canonical form share one evaluated inverted list.
+	 * 
+	 * @param q
+	 *            The query tree.
+	 */
+	private static void shareInvertedLists(Qry q) {
+
+		Map<String, List<QryIop>> groups = new LinkedHashMap<String, List<QryIop>>();
+
+		findInvertedLists(q, groups);
+
+		// The operators of a group share one list, so if one of them needs
+		// locations, they all read them. Marking an operator also marks its
+		// arguments, which may affect other groups, so repeat until nothing
+		// changes.
+
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+
+			for (List<QryIop> group : groups.values()) {
+				int positions = 0;
+
+				for (QryIop iop : group) {
+					positions += iop.getNeedsPositions() ? 1 : 0;
+				}
+
+				if ((positions > 0) && (positions < group.size())) {
+					for (QryIop iop : group) {
+						iop.setNeedsPositions(true);
+					}
+					changed = true;
+				}
+			}
+		}
+
+		for (List<QryIop> group : groups.values()) {
+			for (int i = 1; i < group.size(); i++) {
+				group.get(i).shareInvertedList(group.get(0));
+			}
+		}
+	}
+
+	/**
+	 * Indicates whether a field name is a known document field.
+	 * 
+	 * @param field
+	 *            A field name.
+	 * @return True if the field is known, otherwise false.
+	 */
+	private static boolean isField(String field) {
+		return (field.compareTo("url") == 0) || (field.compareTo("keywords") == 0) || (field.compareTo("title") == 0)
+				|| (field.compareTo("body") == 0) || (field.compareTo("inlink") == 0);
+	}
+
 	/**
 	 * Get the index of the right parenenthesis that balances the left-most
 	 * parenthesis. Return -1 if it doesn't exist.
@@ -296,119 +491,156 @@ public class QryParser {
 		}
 
 		// The query language is prefix-oriented, so the query string can
-		// be processed left to right. At each step, a substring is
-		// popped from the head (left) of the string, and is converted to
-		// a Qry object that is added to the query tree. Subqueries are
+		// be processed left to right in a single pass. A cursor marks the
+		// part of the query that hasn't been processed yet. Each operator
+		// consumes its arguments and its terminating ')'. Subqueries are
 		// handled via recursion.
 
-		// Find the left-most query operator and start the query tree.
+		int[] cursor = { 0 };
+		Qry queryTree = parseOperator(queryString, cursor);
+
+		if (cursor[0] != queryString.length()) {
+			syntaxError("Missing, unbalanced, or misplaced parentheses");
+		}
+
+		return queryTree;
+	}
+
+	/**
+	 * Parse the query operator that starts at the cursor, including its
+	 * arguments and its terminating ')'. On return, the cursor points just
+	 * past the ')'.
+	 * 
+	 * @param s
+	 *            The query string.
+	 * @param cursor
+	 *            A one-element array that holds the position in s.
+	 * @return Qry The query tree for the operator.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 * @throws IllegalArgumentException
+	 *             Query syntax error.
+	 */
+	private static Qry parseOperator(String s, int[] cursor) throws IOException, IllegalArgumentException {
+
+		// The operator name is everything up to the next '('.
+
+		int open = s.indexOf('(', cursor[0]);
+
+		if (open < 0) {
+			syntaxError("Missing, unbalanced, or misplaced parentheses");
+		}
+
+		Qry queryTree = createOperator(s.substring(cursor[0], open).trim());
+		boolean weighted = (queryTree instanceof QrySopWAnd) || (queryTree instanceof QrySopWSum);
 
-		String[] substrings = queryString.split("[(]", 2);
-		Qry queryTree = createOperator(substrings[0].trim());
+		cursor[0] = open + 1;
 
-		// Start consuming queryString by removing the query operator and
-		// its terminating ')'. queryString is always the part of the
-		// query that hasn't been processed yet.
+		// Parentheses that appear inside term tokens (e.g., "(apple") must
+		// be balanced before the operator's terminating ')'.
 
-		queryString = substrings[1];
-		queryString = queryString.substring(0, queryString.lastIndexOf(")")).trim();
+		int[] depth = { 0 };
 
 		// Each pass below handles one argument to the query operator.
 		// Note: An argument can be a token that produces multiple terms
 		// (e.g., "near-death") or a subquery (e.g., "#and (a b c)").
-		// Recurse on subqueries.
 
-		while (queryString.length() > 0) {
+		while (true) {
+
+			skipWhitespace(s, cursor);
+
+			if (cursor[0] >= s.length()) {
+				syntaxError("Missing, unbalanced, or misplaced parentheses");
+			}
+
+			if ((s.charAt(cursor[0]) == ')') && (depth[0] == 0)) { // End of the operator
+				cursor[0]++;
+				return queryTree;
+			}
 
 			// If the operator uses weighted query arguments, each pass of
 			// this loop must handle "weight arg". Handle the weight first.
-			Qry[] qargs = null;
-			PopData<String, String> p;
-			
-			// STUDENT HW2 CODE GOES HERE
+
 			double weight = 0;
-			if(queryTree instanceof QrySopWAnd || queryTree instanceof QrySopWSum){
-				p = popTerm(queryString);
-				weight = Double.parseDouble(p.getPopped());
-				queryString = p.getRemaining().trim();
+
+			if (weighted) {
+				weight = Double.parseDouble(nextToken(s, cursor, depth));
+				skipWhitespace(s, cursor);
+
+				if ((cursor[0] >= s.length()) || ((s.charAt(cursor[0]) == ')') && (depth[0] == 0))) {
+					syntaxError("Missing argument after weight " + weight);
+				}
 			}
+
 			// Now handle the argument (which could be a subquery).
 
-			if (queryString.charAt(0) == '#') { // Subquery
-				p = popSubquery(queryString);
-				qargs = new Qry[1];
-				qargs[0] = parseString(p.getPopped());
+			Qry[] qargs = null;
+
+			if (s.charAt(cursor[0]) == '#') { // Subquery
+				qargs = new Qry[] { parseOperator(s, cursor) };
 			} else { // Term
-				p = popTerm(queryString);
-				qargs = createTerms(p.getPopped());
+				qargs = createTerms(nextToken(s, cursor, depth));
 			}
 
-			queryString = p.getRemaining().trim(); // Consume the arg
-
 			// Add the argument(s) to the query tree.
 
 			for (int i = 0; i < qargs.length; i++) {
-
-				// STUDENTS WILL NEED TO ADJUST THIS BLOCK TO HANDLE WEIGHTS IN
-				// HW2
-				if(queryTree instanceof QrySopWAnd){
-					((QrySopWAnd) queryTree).addWeight(weight);
-				}
-				else if(queryTree instanceof QrySopWSum){
-					((QrySopWSum) queryTree).addWeight(weight);
-				}
-				
-				queryTree.appendArg(qargs[i]);
+				appendArg(queryTree, qargs[i], weight);
 			}
 		}
-
-		return queryTree;
 	}
 
 	/**
-	 * Remove a subQuery from an argument string. Return the subquery and the
-	 * modified argument string.
+	 * Consume a term or weight token. A token ends at whitespace or at the
+	 * ')' that terminates the enclosing operator. Other parentheses (e.g.,
+	 * "(apple") are part of the token, and are removed later by the
+	 * tokenizer; depth counts the ones that are still open.
 	 * 
-	 * @param String
-	 *            A partial query argument string, e.g., "#and(a b) c d".
-	 * @return PopData<String,String> The subquery string and the modified
-	 *         argString (e.g., "#and(a b)" and "c d".
+	 * @param s
+	 *            The query string.
+	 * @param cursor
+	 *            A one-element array that holds the position in s.
+	 * @param depth
+	 *            A one-element array that holds the enclosing operator's
+	 *            count of open parentheses in term tokens.
+	 * @return The token.
 	 */
-	static private PopData<String, String> popSubquery(String argString) {
+	private static String nextToken(String s, int[] cursor, int[] depth) {
 
-		int i = indexOfBalencingParen(argString);
+		int start = cursor[0];
+		int i = start;
 
-		if (i < 0) { // Query syntax error. The parser
-			i = argString.length(); // handles it. Here, just don't fail.
-		}
+		for (; i < s.length(); i++) {
+			char c = s.charAt(i);
 
-		String subquery = argString.substring(0, i + 1);
-		argString = argString.substring(i + 1);
+			if ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r')) {
+				break;
+			} else if (c == '(') {
+				depth[0]++;
+			} else if (c == ')') {
+				if (depth[0] == 0) {
+					break;
+				}
+				depth[0]--;
+			}
+		}
 
-		return new PopData<String, String>(subquery, argString);
+		cursor[0] = i;
+		return s.substring(start, i);
 	}
 
 	/**
-	 * Remove a term from an argument string. Return the term and the modified
-	 * argument string.
+	 * Advance the cursor past whitespace.
 	 * 
-	 * @param String
-	 *            A partial query argument string, e.g., "a b c d".
-	 * @return PopData<String,String> The term string and the modified argString
-	 *         (e.g., "a" and "b c d".
+	 * @param s
+	 *            The query string.
+	 * @param cursor
+	 *            A one-element array that holds the position in s.
 	 */
-	static private PopData<String, String> popTerm(String argString) {
-
-		String[] substrings = argString.split("[ \t\n\r]+", 2);
-		String token = substrings[0];
-
-		if (substrings.length < 2) { // Is this the last argument?
-			argString = "";
-		} else {
-			argString = substrings[1];
+	private static void skipWhitespace(String s, int[] cursor) {
+		while ((cursor[0] < s.length()) && (s.charAt(cursor[0]) <= ' ')) {
+			cursor[0]++;
 		}
-
-		return new PopData<String, String>(substrings[0], argString);
 	}
 
 	/**
@@ -427,6 +659,10 @@ public class QryParser {
 	 * Given part of a query string, returns an array of terms with stopwords
 	 * removed and the terms stemmed using the Krovetz stemmer. Use this method
 	 * to process raw query terms.
+	 * <p>
+	 * Results are cached. The analyzer reuses its tokenizer and filter chain
+	 * within each thread, so a cache miss doesn't construct a new pipeline.
+	 * </p>
 	 * 
 	 * @param query
 	 *            String containing query.
@@ -436,20 +672,51 @@ public class QryParser {
 	 */
 	public static String[] tokenizeString(String query) throws IOException {
 
-		TokenStreamComponents comp = ANALYZER.createComponents("dummy", new StringReader(query));
-		TokenStream tokenStream = comp.getTokenStream();
+		String[] tokens = TOKEN_CACHE.get(query);
 
-		CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-		tokenStream.reset();
+		if (tokens == null) {
+			tokens = analyze(query);
 
-		List<String> tokens = new ArrayList<String>();
+			if (TOKEN_CACHE.size() >= TOKEN_CACHE_SIZE) {
+				TOKEN_CACHE.clear();
+			}
 
-		while (tokenStream.incrementToken()) {
-			String term = charTermAttribute.toString();
-			tokens.add(term);
+			TOKEN_CACHE.put(query, tokens);
 		}
 
-		return tokens.toArray(new String[tokens.size()]);
+		return tokens.clone(); // Callers may modify the array
+	}
+
+	/**
+	 * Run a string through the analyzer.
+	 * 
+	 * @param query
+	 *            String containing query.
+	 * @return Array of query tokens
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static String[] analyze(String query) throws IOException {
+
+		TokenStream tokenStream = ANALYZER.tokenStream("dummy", new StringReader(query));
+
+		try {
+			CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+			tokenStream.reset();
+
+			List<String> tokens = new ArrayList<String>();
+
+			while (tokenStream.incrementToken()) {
+				String term = charTermAttribute.toString();
+				tokens.add(term);
+			}
+
+			tokenStream.end();
+
+			return tokens.toArray(new String[tokens.size()]);
+		} finally {
+			tokenStream.close(); // Releases the stream for reuse
+		}
 	}
 
 }
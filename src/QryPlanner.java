@@ -0,0 +1,270 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * A cost-based planner for query trees. It estimates the number of documents
+ * that each query operator matches from the document frequencies of the
+ * terms:
+ * <ul>
+ * <li>a term matches df documents;</li>
+ * <li>conjunctions (#AND in the Boolean retrieval models, #NEAR/n,
+ * #WINDOW/n, #FILREQ) match at most as many documents as their rarest
+ * argument;</li>
+ * <li>disjunctions (#OR, #SYN, #SUM, Indri #AND, ...) match at most the sum
+ * of their arguments, and no more than the number of documents.</li>
+ * </ul>
+ * It uses the estimates to make two decisions.
+ * <p>
+ * Conjunctions are driven by their first argument (see
+ * Qry.docIteratorHasMatchAll), so the arguments of Boolean #AND operators
+ * are reordered rarest first. Other operators keep their order, because it
+ * affects their scores (e.g., the order in which Indri adds log
+ * probabilities) or their meaning (#NEAR/n).
+ * </p>
+ * <p>
+ * Proximity operators are materialized when they are initialized by
+ * default. If a proximity operator is an argument of a Boolean #AND that has
+ * a rarer argument, it streams instead (see QryIop.setStreaming): it is only
+ * evaluated on the documents that the rarer argument lets through. BM25 and
+ * Indri need the df and ctf of proximity operators, so they always
+ * materialize them.
+ * </p>
+ * <p>
+ * toString describes the plan: the estimates and the decisions.
+ * </p>
+ */
+public class QryPlanner {
+
+	// --------------- Constants and variables ---------------------
+
+	private final RetrievalModel model;
+
+	private final long numDocs;
+
+	private Qry root = null;
+
+	/**
+	 * The estimated number of matching documents of each operator.
+	 */
+	private final Map<Qry, Long> estimates = new IdentityHashMap<Qry, Long>();
+
+	/**
+	 * Operators whose arguments were reordered.
+	 */
+	private final Set<Qry> reordered = Collections.newSetFromMap(new IdentityHashMap<Qry, Boolean>());
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param model
+	 *            The retrieval model that the queries will be evaluated with.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public QryPlanner(RetrievalModel model) throws IOException {
+		this.model = model;
+		this.numDocs = Idx.getNumDocs();
+	}
+
+	/**
+	 * Plan a query: estimate the number of documents that each operator
+	 * matches, reorder the arguments of conjunctions, and choose how
+	 * proximity operators are evaluated. The query is modified in place; call
+	 * this before the query is initialized.
+	 *
+	 * @param q
+	 *            The query.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public void plan(Qry q) throws IOException {
+		this.root = q;
+		this.estimate(q);
+		this.choose(q);
+	}
+
+	/**
+	 * Get the estimated number of documents that a planned operator matches.
+	 *
+	 * @param q
+	 *            An operator of the planned query.
+	 * @return The estimate.
+	 */
+	public long getEstimate(Qry q) {
+		Long estimate = this.estimates.get(q);
+
+		return (estimate == null) ? this.numDocs : estimate;
+	}
+
+	/**
+	 * Indicates whether an operator matches only documents that all of its
+	 * arguments match, in the planner's retrieval model.
+	 *
+	 * @param q
+	 *            A query operator.
+	 * @return True if the operator is a conjunction.
+	 */
+	private boolean isConjunction(Qry q) {
+		return ((q instanceof QrySopAnd) && !(this.model instanceof RetrievalModelIndri))
+				|| (q instanceof QryIopNear) || (q instanceof QryIopWindow);
+	}
+
+	/**
+	 * Estimate the number of documents that an operator and its arguments
+	 * match.
+	 *
+	 * @param q
+	 *            A query operator.
+	 * @return The estimate.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private long estimate(Qry q) throws IOException {
+
+		long estimate;
+
+		if (q instanceof QryIopTerm) {
+			QryIopTerm term = (QryIopTerm) q;
+
+			estimate = Idx.getDocFreq(term.getField(), term.getTerm());
+		} else if (this.isConjunction(q)) {
+			estimate = this.numDocs;
+
+			for (Qry q_i : q.args) {
+				estimate = Math.min(estimate, this.estimate(q_i));
+			}
+		} else if ((q instanceof QrySopFilter) && (q.args.size() == 2)) {
+			long filter = this.estimate(q.args.get(0));
+			long ranked = this.estimate(q.args.get(1));
+
+			estimate = ((QrySopFilter) q).isRequired() ? Math.min(filter, ranked) : ranked;
+		} else {
+
+			// Disjunctions, and the SCORE operator.
+
+			estimate = 0;
+
+			for (Qry q_i : q.args) {
+				estimate += this.estimate(q_i);
+			}
+
+			estimate = Math.min(estimate, this.numDocs);
+		}
+
+		this.estimates.put(q, estimate);
+		return estimate;
+	}
+
+	/**
+	 * Reorder the arguments of Boolean #AND operators rarest first, and
+	 * choose streaming or materialized evaluation for proximity operators.
+	 *
+	 * @param q
+	 *            A query operator.
+	 */
+	private void choose(Qry q) {
+
+		if ((q instanceof QrySopAnd) && this.isConjunction(q)) {
+			List<Qry> before = new ArrayList<Qry>(q.args);
+
+			Collections.sort(q.args, new Comparator<Qry>() {
+				public int compare(Qry a, Qry b) {
+					return Long.compare(getEstimate(a), getEstimate(b));
+				}
+			});
+
+			if (!before.equals(q.args)) {
+				this.reordered.add(q);
+			}
+
+			long rarest = this.getEstimate(q.args.get(0));
+
+			for (int i = 0; i < q.args.size(); i++) {
+				QryIop proximity = this.getProximityArg(q.args.get(i));
+
+				if (proximity != null) {
+					proximity.setStreaming((i > 0) && (rarest < this.getEstimate(proximity))
+							&& !(this.model instanceof RetrievalModelBM25)
+							&& !(this.model instanceof RetrievalModelIndri));
+				}
+			}
+		}
+
+		for (Qry q_i : q.args) {
+			this.choose(q_i);
+		}
+	}
+
+	/**
+	 * Get the proximity operator that a #AND argument scores, if it is one.
+	 *
+	 * @param q
+	 *            An argument of a #AND operator.
+	 * @return The proximity operator, or null.
+	 */
+	private QryIop getProximityArg(Qry q) {
+
+		if ((q instanceof QrySopScore) && (q.args.get(0) instanceof QryIop)) {
+			QryIop iop = (QryIop) q.args.get(0);
+
+			if (iop.supportsStreaming()) {
+				return iop;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Describe the plan: each operator with its estimate and the planner's
+	 * decisions, one operator per line.
+	 *
+	 * @return The plan.
+	 */
+	@Override
+	public String toString() {
+
+		StringBuilder plan = new StringBuilder();
+
+		if (this.root != null) {
+			this.describe(this.root, "    ", plan);
+		}
+
+		return plan.toString();
+	}
+
+	/**
+	 * Describe an operator and its arguments.
+	 *
+	 * @param q
+	 *            A query operator.
+	 * @param indent
+	 *            The indentation of the operator.
+	 * @param plan
+	 *            Output: the description.
+	 */
+	private void describe(Qry q, String indent, StringBuilder plan) {
+
+		plan.append(indent).append((q instanceof QryIopTerm) ? q.toString() : q.getDisplayName());
+		plan.append("  [est ").append(this.getEstimate(q)).append(']');
+
+		if (this.reordered.contains(q)) {
+			plan.append(" args reordered rarest first");
+		}
+
+		if ((q instanceof QryIop) && ((QryIop) q).supportsStreaming()) {
+			plan.append(((QryIop) q).isStreaming() ? " streaming" : " materialized");
+		}
+
+		plan.append('\n');
+
+		for (Qry q_i : q.args) {
+			this.describe(q_i, indent + "  ", plan);
+		}
+	}
+}
@@ -0,0 +1,545 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ * A compiled form of the scoring side of a QrySop query tree.
+ * <p>
+ * QrySop.getScore selects a scoring method with an instanceof test on the
+ * retrieval model, for every document at every node, and fetches model
+ * parameters and collection statistics on each call. compile does that work
+ * once per query, after the query is initialized: it turns the query tree and
+ * the retrieval model into a tree of final, model-specific scorers whose
+ * parameters and per-query constants are bound as fields. Scores are
+ * computed with the same arithmetic as QrySop.getScore, so they are
+ * identical.
+ * </p>
+ * <p>
+ * Matching is still done by the query tree. Use a compiled scorer the same
+ * way as QrySop.getScore:
+ * </p>
+ *
+ * <pre>
+ *    q.initialize (model);
+ *    QryScorer scorer = QryScorer.compile (q, model);
+ *
+ *    while (q.docIteratorHasMatch (model)) {
+ *      int docid = q.docIteratorGetMatch ();
+ *      double score = scorer.score ();
+ *      q.docIteratorAdvancePast (docid);
+ *    }
+ * </pre>
+ * <p>
+ * Query operators that don't have a compiled form are scored by calling
+ * their getScore and getDefaultScore methods. The fields of the compiled
+ * scorers are package-private so that {@link QryCodegen} can read them from
+ * generated code.
+ * </p>
+ */
+public abstract class QryScorer {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The query operator that this scorer scores.
+	 */
+	protected final Qry q;
+
+	/**
+	 * The retrieval model, which is needed for matching.
+	 */
+	protected final RetrievalModel r;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param q
+	 *            The query operator that this scorer scores.
+	 * @param r
+	 *            The retrieval model.
+	 */
+	protected QryScorer(Qry q, RetrievalModel r) {
+		this.q = q;
+		this.r = r;
+	}
+
+	/**
+	 * Compile an initialized query tree into a scorer.
+	 *
+	 * @param q
+	 *            An initialized QrySop query tree.
+	 * @param r
+	 *            The retrieval model that determines how scores are
+	 *            calculated.
+	 * @return The compiled scorer.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 * @throws IllegalArgumentException
+	 *             The retrieval model doesn't support an operator in q.
+	 */
+	public static QryScorer compile(Qry q, RetrievalModel r) throws IOException {
+
+		if (q instanceof QrySopScore) {
+			if (r instanceof RetrievalModelUnrankedBoolean) {
+				return new UnrankedBoolean(q, r);
+			} else if (r instanceof RetrievalModelRankedBoolean) {
+				return new RankedBoolean(q, r);
+			} else if (r instanceof RetrievalModelBM25) {
+				return new BM25Term(q, (RetrievalModelBM25) r);
+			} else if (r instanceof RetrievalModelIndri) {
+				return new IndriTerm(q, (RetrievalModelIndri) r);
+			} else {
+				throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the SCORE operator.");
+			}
+		} else if ((q instanceof QrySopAnd) || (q instanceof QrySopOr)) {
+			if (r instanceof RetrievalModelUnrankedBoolean) {
+				return new UnrankedBoolean(q, r);
+			} else if (r instanceof RetrievalModelRankedBoolean) {
+				return new RankedBoolean(q, r);
+			} else if ((r instanceof RetrievalModelIndri) && (q instanceof QrySopAnd)) {
+				return new IndriAnd(q, r, compileArgs(q, r));
+			} else {
+				throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the OR operator.");
+			}
+		} else if (q instanceof QrySopSum) {
+			return new Sum(q, r, compileArgs(q, r));
+		} else if (q instanceof QrySopWAnd) {
+			return new WAnd(q, r, compileArgs(q, r));
+		} else if (q instanceof QrySopWSum) {
+			return new WSum(q, r, compileArgs(q, r));
+		} else {
+			return new Interpreted(q, r);
+		}
+	}
+
+	/**
+	 * Compile the arguments of a query operator.
+	 *
+	 * @param q
+	 *            An initialized query operator.
+	 * @param r
+	 *            The retrieval model.
+	 * @return The compiled arguments.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private static QryScorer[] compileArgs(Qry q, RetrievalModel r) throws IOException {
+
+		QryScorer[] scorers = new QryScorer[q.args.size()];
+
+		for (int i = 0; i < scorers.length; i++) {
+			scorers[i] = compile(q.args.get(i), r);
+		}
+
+		return scorers;
+	}
+
+	/**
+	 * Get a score for the document that the query operator matched.
+	 *
+	 * @return The document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public abstract double score() throws IOException;
+
+	/**
+	 * Get a default score for a document that the query operator didn't
+	 * match.
+	 *
+	 * @param docid
+	 *            The internal document id.
+	 * @return The document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public abstract double defaultScore(int docid) throws IOException;
+
+	/**
+	 * Indicates whether the scorer and its arguments are all compiled, so
+	 * that it keeps scoring with the parameters that it was compiled with
+	 * even if the query is prepared for another parameter setting (see
+	 * QrySop.initializeScores). Interpreted operators score with the query's
+	 * current state.
+	 *
+	 * @return True if no part of the scorer is interpreted.
+	 */
+	public boolean isCompiled() {
+		return true;
+	}
+
+	/**
+	 * Indicates whether all of the scorers are compiled.
+	 *
+	 * @param scorers
+	 *            Compiled scorers.
+	 * @return True if isCompiled is true for each scorer.
+	 */
+	protected static boolean isCompiled(QryScorer[] scorers) {
+
+		for (QryScorer s : scorers) {
+			if (!s.isCompiled()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Indicates whether the query operator matches a document.
+	 *
+	 * @param docid
+	 *            The internal document id.
+	 * @return True if the query operator matches docid, otherwise false.
+	 */
+	protected final boolean matches(int docid) {
+		return this.q.docIteratorHasMatch(this.r) && (this.q.docIteratorGetMatch() == docid);
+	}
+
+	/**
+	 * Get a string version of the compiled scorer, which is handy for
+	 * debugging.
+	 *
+	 * @return The string version of this scorer.
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName() + "(" + this.q.getDisplayName() + ")";
+	}
+
+	// --------------- Compiled scorers ------------------------------
+
+	/**
+	 * Any query operator in the UnrankedBoolean retrieval model.
+	 */
+	static final class UnrankedBoolean extends QryScorer {
+
+		UnrankedBoolean(Qry q, RetrievalModel r) {
+			super(q, r);
+		}
+
+		public double score() {
+			return this.q.docIteratorHasMatchCache() ? 1.0 : 0.0;
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return ((QrySop) this.q).getDefaultScore(this.r, docid);
+		}
+	}
+
+	/**
+	 * Any query operator in the RankedBoolean retrieval model.
+	 */
+	static final class RankedBoolean extends QryScorer {
+
+		RankedBoolean(Qry q, RetrievalModel r) {
+			super(q, r);
+		}
+
+		public double score() {
+			return this.q.docIteratorHasMatchCache() ? this.q.getTF() : 0.0;
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return ((QrySop) this.q).getDefaultScore(this.r, docid);
+		}
+	}
+
+	/**
+	 * The SCORE operator in the BM25 retrieval model. The postings were
+	 * scored by QrySopScore.initialize.
+	 */
+	static final class BM25Term extends QryScorer {
+
+		final QrySopScore sop;
+		final QryIop iop;
+		final double[] postingScores;
+
+		BM25Term(Qry q, RetrievalModelBM25 r) {
+			super(q, r);
+			this.sop = (QrySopScore) q;
+			this.iop = (QryIop) q.args.get(0);
+			this.postingScores = this.sop.postingScores;
+		}
+
+		public double score() {
+			if (!this.iop.docIteratorHasMatch(this.r))
+				return 0;
+
+			return this.postingScores[this.iop.docIteratorGetMatchIndex()];
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return this.sop.getDefaultScore(this.r, docid);
+		}
+	}
+
+	/**
+	 * The SCORE operator in the Indri retrieval model. The postings were
+	 * scored by QrySopScore.initialize, and default scores are looked up by
+	 * document length.
+	 */
+	static final class IndriTerm extends QryScorer {
+
+		final QrySopScore sop;
+		final QryIop iop;
+		final String field;
+		final double[] postingScores;
+		final QrySopScore.IndriDefaultScores defaultScores;
+
+		IndriTerm(Qry q, RetrievalModelIndri r) {
+			super(q, r);
+			this.sop = (QrySopScore) q;
+			this.iop = (QryIop) q.args.get(0);
+			this.field = this.sop.field;
+			this.postingScores = this.sop.postingScores;
+			this.defaultScores = this.sop.defaultScores;
+		}
+
+		public double score() {
+			return this.postingScores[this.iop.docIteratorGetMatchIndex()];
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return this.defaultScores.get(Idx.getFieldLength(this.field, docid));
+		}
+	}
+
+	/**
+	 * The AND operator in the Indri retrieval model. The geometric mean is
+	 * computed in log space.
+	 */
+	static final class IndriAnd extends QryScorer {
+
+		final QryScorer[] args;
+		final double numArgs;
+
+		IndriAnd(Qry q, RetrievalModel r, QryScorer[] args) {
+			super(q, r);
+			this.args = args;
+			this.numArgs = args.length;
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return isCompiled(this.args);
+		}
+
+		public double score() throws IOException {
+			if (!this.q.docIteratorHasMatchCache() || this.args.length == 0)
+				return 0;
+
+			double logScore = 0;
+			int docId = this.q.docIteratorGetMatch();
+
+			for (int i = 0; i < this.args.length; i++) {
+				QryScorer arg = this.args[i];
+
+				if (arg.matches(docId)) {
+					logScore += Math.log(arg.score());
+				} else {
+					logScore += Math.log(arg.defaultScore(docId));
+				}
+			}
+
+			return Math.exp(logScore / this.numArgs);
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			if (!this.q.docIteratorHasMatchCache() || this.args.length == 0)
+				return 0;
+
+			double logScore = 0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				logScore += Math.log(this.args[i].defaultScore(docid));
+			}
+
+			return Math.exp(logScore / this.numArgs);
+		}
+	}
+
+	/**
+	 * The SUM operator, which adds the scores of the arguments that match.
+	 */
+	static final class Sum extends QryScorer {
+
+		final QryScorer[] args;
+
+		Sum(Qry q, RetrievalModel r, QryScorer[] args) {
+			super(q, r);
+			this.args = args;
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return isCompiled(this.args);
+		}
+
+		public double score() throws IOException {
+			if (!this.q.docIteratorHasMatchCache())
+				return 0;
+
+			double score = 0;
+			int docId = this.q.docIteratorGetMatch();
+
+			for (int i = 0; i < this.args.length; i++) {
+				if (this.args[i].matches(docId))
+					score += this.args[i].score();
+			}
+
+			return score;
+		}
+
+		public double defaultScore(int docid) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The WAND operator, a weighted geometric mean of argument scores,
+	 * computed in log space.
+	 */
+	static final class WAnd extends QryScorer {
+
+		final QryScorer[] args;
+		final double[] weights;
+		final double weightSum;
+
+		WAnd(Qry q, RetrievalModel r, QryScorer[] args) {
+			super(q, r);
+			this.args = args;
+			this.weights = new double[args.length];
+
+			for (int i = 0; i < args.length; i++) {
+				this.weights[i] = ((QrySopWAnd) q).getWeight(i);
+			}
+
+			this.weightSum = ((QrySopWAnd) q).weightSum();
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return isCompiled(this.args);
+		}
+
+		public double score() throws IOException {
+			if (!this.q.docIteratorHasMatchCache() || this.args.length == 0)
+				return 0;
+
+			int docId = this.q.docIteratorGetMatch();
+			double logScore = 0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				QryScorer arg = this.args[i];
+
+				if (arg.matches(docId)) {
+					logScore += this.weights[i] * Math.log(arg.score());
+				} else {
+					logScore += this.weights[i] * Math.log(arg.defaultScore(docId));
+				}
+			}
+
+			return Math.exp(logScore / this.weightSum);
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			if (!this.q.docIteratorHasMatchCache())
+				return 0;
+
+			double logScore = 0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				logScore += this.weights[i] * Math.log(this.args[i].defaultScore(docid));
+			}
+
+			return Math.exp(logScore / this.weightSum);
+		}
+	}
+
+	/**
+	 * The WSUM operator, a weighted arithmetic mean of argument scores.
+	 */
+	static final class WSum extends QryScorer {
+
+		final QryScorer[] args;
+		final double[] weights;
+		final double weightSum;
+
+		WSum(Qry q, RetrievalModel r, QryScorer[] args) {
+			super(q, r);
+			this.args = args;
+			this.weights = new double[args.length];
+
+			for (int i = 0; i < args.length; i++) {
+				this.weights[i] = ((QrySopWSum) q).getWeight(i);
+			}
+
+			this.weightSum = ((QrySopWSum) q).weightSum();
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return isCompiled(this.args);
+		}
+
+		public double score() throws IOException {
+			if (!this.q.docIteratorHasMatchCache())
+				return 0;
+
+			double score = 0;
+			int docId = this.q.docIteratorGetMatch();
+
+			for (int i = 0; i < this.args.length; i++) {
+				QryScorer arg = this.args[i];
+
+				if (arg.matches(docId)) {
+					score += this.weights[i] * arg.score();
+				} else {
+					score += this.weights[i] * arg.defaultScore(docId);
+				}
+			}
+
+			return score / this.weightSum;
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			if (!this.q.docIteratorHasMatchCache())
+				return 0;
+
+			double score = 0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				score += this.weights[i] * this.args[i].defaultScore(docid);
+			}
+
+			return score / this.weightSum;
+		}
+	}
+
+	/**
+	 * A query operator that doesn't have a compiled form. It is scored by
+	 * its own getScore and getDefaultScore methods.
+	 */
+	static final class Interpreted extends QryScorer {
+
+		Interpreted(Qry q, RetrievalModel r) {
+			super(q, r);
+		}
+
+		@Override
+		public boolean isCompiled() {
+			return false;
+		}
+
+		public double score() throws IOException {
+			return ((QrySop) this.q).getScore(this.r);
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return ((QrySop) this.q).getDefaultScore(this.r, docid);
+		}
+	}
+}
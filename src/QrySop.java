@@ -45,5 +45,24 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.docIteratorClearMatchAll ();
+  }
+
+  /**
+   *  Prepare an initialized query to be scored with another setting
+   *  of the parameters of its retrieval model (e.g., another mu),
+   *  without evaluating its inverted lists again.  Only SCORE
+   *  operators have model-dependent state; the others pass the call
+   *  on to their arguments.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initializeScores (RetrievalModel r) throws IOException {
+    for (Qry q_i: this.args) {
+      if (q_i instanceof QrySop) {
+        ((QrySop) q_i).initializeScores (r);
+      }
+    }
   }
 }
@@ -24,6 +24,25 @@ public class QrySopAnd extends QrySop {
 			return this.docIteratorHasMatchAll(r);
 	}
 
+	/**
+	 * Evaluate the query operator as a docset. As in docIteratorHasMatch, the
+	 * Indri AND matches documents that any argument matches.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if an argument can't be evaluated as a
+	 *         docset.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	@Override
+	protected DocSet evaluateDocSet(RetrievalModel r) throws IOException {
+		if (r instanceof RetrievalModelIndri)
+			return this.docSetMatchMin(r);
+		else
+			return this.docSetMatchAll(r);
+	}
+
 	/**
 	 * Get a score for the document that docIteratorHasMatch matched.
 	 * 
@@ -80,43 +99,43 @@ public class QrySopAnd extends QrySop {
 		}
 	}
 
+	/**
+	 * getScore for the Indri retrieval model. The geometric mean of the
+	 * argument scores is computed in log space: a sum of log-probabilities
+	 * and one exp. A product of many small probabilities would underflow.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
 	private double getScoreIndri(RetrievalModel r) throws IOException {
 		if (!this.docIteratorHasMatchCache() || args.size() == 0)
 			return 0;
-		double score = 1;
-//		double divisor = 1.0 / args.size();
+		double logScore = 0;
 		int docId = docIteratorGetMatch();
 		for (int i = 0; i < args.size(); i++) {
 			QrySop q = (QrySop) args.get(i);
-//			double tempScore;
 			if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docId) {
-				score *= q.getScore(r);
-				// tempScore = q.getScore(r);
+				logScore += Math.log(q.getScore(r));
 			} else {
-				score *= q.getDefaultScore(r, docId);
-				// tempScore = q.getDefaultScore(r, docId);
+				logScore += Math.log(q.getDefaultScore(r, docId));
 			}
-			// score *= Math.pow(tempScore, divisor);
 		}
-		return Math.pow(score, 1.0 / args.size());
-		// return score;
+		return Math.exp(logScore / args.size());
 	}
 
 	@Override
 	public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
-		// TODO Auto-generated method stub
 		if (!docIteratorHasMatchCache() || args.size() == 0)
 			return 0;
-		double score = 1;
-//		double divisor = 1.0 / args.size();
+		double logScore = 0;
 		for (int i = 0; i < args.size(); i++) {
 			QrySop q = (QrySop) args.get(i);
-			score *= q.getDefaultScore(r, docId);
-			// score *= Math.pow(q.getDefaultScore(r, docId), divisor);
-
+			logScore += Math.log(q.getDefaultScore(r, docId));
 		}
-		return Math.pow(score, 1.0 / args.size());
-		// return score;
+		return Math.exp(logScore / args.size());
 	}
 
 }
@@ -0,0 +1,251 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ * The FILREQ and FILREJ operators for all retrieval models. #FILREQ (f q)
+ * ranks the documents that q matches and f also matches; #FILREJ (f q) ranks
+ * the documents that q matches and f doesn't. For example, #FILREQ
+ * (nytimes.url #AND (obama family tree)) restricts a ranking to one site.
+ * <p>
+ * The filter f only decides membership, so it is evaluated once, as an
+ * unranked Boolean query, into a docset (see {@link Qry#getDocSet}). The
+ * docset is cached, so later queries that use the same filter don't
+ * evaluate it again. The ranked query q is scored as usual by the retrieval
+ * model; its docIterator skips directly to the next document that passes
+ * the filter.
+ * </p>
+ */
+public class QrySopFilter extends QrySop {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The retrieval model that filters are evaluated with.
+	 */
+	private static final RetrievalModel FILTER_MODEL = new RetrievalModelUnrankedBoolean();
+
+	/**
+	 * True for #FILREQ (documents must match the filter), false for #FILREJ
+	 * (documents must not match the filter).
+	 */
+	private boolean require;
+
+	/**
+	 * The documents that the filter matches; set by initialize.
+	 */
+	private DocSet filter = null;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param require
+	 *            True for #FILREQ, false for #FILREJ.
+	 */
+	public QrySopFilter(boolean require) {
+		this.require = require;
+	}
+
+	/**
+	 * Indicates whether documents must match the filter (#FILREQ) or must not
+	 * match it (#FILREJ).
+	 *
+	 * @return True for #FILREQ, false for #FILREJ.
+	 */
+	public boolean isRequired() {
+		return this.require;
+	}
+
+	/**
+	 * Advance the internal document iterator beyond the specified document.
+	 * Only the ranked query has a docIterator.
+	 *
+	 * @param docid
+	 *            An internal document id.
+	 */
+	@Override
+	public void docIteratorAdvancePast(int docid) {
+		this.args.get(1).docIteratorAdvancePast(docid);
+		this.docIteratorClearMatchCache();
+	}
+
+	/**
+	 * Advance the internal document iterator to the specified document, or
+	 * beyond if it doesn't.
+	 *
+	 * @param docid
+	 *            An internal document id.
+	 */
+	@Override
+	public void docIteratorAdvanceTo(int docid) {
+		this.args.get(1).docIteratorAdvanceTo(docid);
+		this.docIteratorClearMatchCache();
+	}
+
+	/**
+	 * Indicates whether the query has a match: the next document that the
+	 * ranked query matches and that passes the filter.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return True if the query matches, otherwise false.
+	 */
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+
+		Qry q = this.args.get(1);
+
+		while (q.docIteratorHasMatch(r)) {
+			int docid = q.docIteratorGetMatch();
+
+			if (this.require) {
+				int next = this.filter.next(docid);
+
+				if (next == Qry.INVALID_DOCID) {
+					q.docIteratorAdvancePast(Integer.MAX_VALUE);
+					return false;
+				} else if (next != docid) {
+					q.docIteratorAdvanceTo(next);
+					continue;
+				}
+			} else if (this.filter.contains(docid)) {
+				q.docIteratorAdvancePast(docid);
+				continue;
+			}
+
+			this.docIteratorSetMatchCache(docid);
+			this.term_frequency = q.getTF();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get a score for the document that docIteratorHasMatch matched: the
+	 * score of the ranked query.
+	 *
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	public double getScore(RetrievalModel r) throws IOException {
+		if (!this.docIteratorHasMatchCache()) {
+			return 0.0;
+		} else {
+			return ((QrySop) this.args.get(1)).getScore(r);
+		}
+	}
+
+	@Override
+	public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
+		return ((QrySop) this.args.get(1)).getDefaultScore(r, docId);
+	}
+
+	/**
+	 * Evaluate the query operator as a docset.
+	 *
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if the ranked query can't be evaluated as
+	 *         a docset.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	@Override
+	protected DocSet evaluateDocSet(RetrievalModel r) throws IOException {
+
+		this.checkArgs();
+
+		DocSet docs = this.args.get(1).getDocSet(r);
+
+		if (docs == null) {
+			return null;
+		} else if (this.require) {
+			return docs.and(this.getFilter());
+		} else {
+			return docs.andNot(this.getFilter());
+		}
+	}
+
+	/**
+	 * Initialize the query operator: evaluate the filter, and initialize the
+	 * ranked query.
+	 *
+	 * @param r
+	 *            A retrieval model that guides initialization
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	public void initialize(RetrievalModel r) throws IOException {
+
+		this.checkArgs();
+		this.filter = this.getFilter();
+		this.args.get(1).initialize(r);
+		this.docIteratorClearMatchAll();
+	}
+
+	/**
+	 * Prepare the ranked query to be scored with another parameter setting.
+	 * The filter isn't scored.
+	 *
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	public void initializeScores(RetrievalModel r) throws IOException {
+		((QrySop) this.args.get(1)).initializeScores(r);
+	}
+
+	/**
+	 * Check that the operator has a filter and a ranked query.
+	 *
+	 * @throws IllegalArgumentException
+	 *             The operator doesn't have two arguments.
+	 */
+	private void checkArgs() {
+		if (this.args.size() != 2) {
+			throw new IllegalArgumentException(
+					this.getDisplayName() + " requires two arguments: a filter and a ranked query.");
+		}
+	}
+
+	/**
+	 * Get the docset of the filter. Filters that contain operators that
+	 * don't support docsets are evaluated with docIterators.
+	 *
+	 * @return The documents that the filter matches.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	private DocSet getFilter() throws IOException {
+
+		Qry f = this.args.get(0);
+		DocSet docs = f.getDocSet(FILTER_MODEL);
+
+		if (docs == null) {
+			DocSet.Builder builder = new DocSet.Builder();
+
+			f.initialize(FILTER_MODEL);
+
+			while (f.docIteratorHasMatch(FILTER_MODEL)) {
+				int docid = f.docIteratorGetMatch();
+
+				builder.add(docid);
+				f.docIteratorAdvancePast(docid);
+			}
+
+			docs = builder.build();
+		}
+
+		return docs;
+	}
+}
@@ -18,6 +18,18 @@ public class QrySopOr extends QrySop {
     return this.docIteratorHasMatchMin (r);
   }
 
+  /**
+   *  Evaluate the query operator as a docset.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The docset, or null if an argument can't be evaluated
+   *  as a docset.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  @Override
+  protected DocSet evaluateDocSet (RetrievalModel r) throws IOException {
+    return this.docSetMatchMin (r);
+  }
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.lang.IllegalArgumentException;
+import java.util.Arrays;
 
 /**
  * The SCORE operator for all retrieval models.
@@ -16,6 +17,46 @@ public class QrySopScore extends QrySop {
 	 * retrieval models have these, some don't.
 	 */
 
+	/**
+	 * The number of slots in a full Indri default score table (16KB). Most
+	 * field lengths are shorter; longer documents are scored directly, so a
+	 * long query doesn't hold a large table for each of its terms.
+	 */
+	private static final int MAX_DEFAULT_SCORE_LENGTH = 1 << 11;
+
+	// BM25: the parts of the score that don't depend on the document. Set
+	// by initialize.
+
+	private double k1;
+	private double b;
+	private double avgDocLen;
+	private double idfWeight;
+	private double userWeight;
+
+	// Indri: the terms of the Dirichlet-smoothed, linearly interpolated score
+	// that don't depend on the document. Set by initialize. They are
+	// package-private so that QryScorer can bind them.
+
+	String field;
+	double mu;
+	double oneMinusLambda; // 1 - lambda
+	double muPMle; // mu * ctf / colLen
+	double lambdaPMle; // lambda * ctf / colLen
+	double defaultNumerator; // (1 - lambda) * mu * ctf / colLen
+
+	/**
+	 * Indri default scores, indexed by document length. A new table is made
+	 * for each parameter setting, so compiled scorers can keep the table of
+	 * the setting that they were compiled for.
+	 */
+	IndriDefaultScores defaultScores = null;
+
+	/**
+	 * BM25 or Indri scores of the postings of the argument's inverted list,
+	 * in inverted list order. Set by initialize.
+	 */
+	double[] postingScores = null;
+
 	/**
 	 * Indicates whether the query has a match.
 	 * 
@@ -27,6 +68,22 @@ public class QrySopScore extends QrySop {
 		return this.docIteratorHasMatchFirst(r);
 	}
 
+	/**
+	 * The SCORE operator matches the documents that its argument matches, so
+	 * it uses (and caches) its argument's docset.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines what is a match
+	 * @return The docset, or null if the argument can't be evaluated as a
+	 *         docset.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	@Override
+	public DocSet getDocSet(RetrievalModel r) throws IOException {
+		return this.args.get(0).getDocSet(r);
+	}
+
 	/**
 	 * Get a score for the document that docIteratorHasMatch matched.
 	 * 
@@ -80,9 +137,113 @@ public class QrySopScore extends QrySop {
 	 *             Error accessing the Lucene index.
 	 */
 	public void initialize(RetrievalModel r) throws IOException {
+		this.args.get(0).initialize(r);
+		this.initializeScores(r);
+	}
+
+	/**
+	 * Compute the parts of the score that don't depend on the document, and
+	 * score the postings of the argument's inverted list, for a retrieval
+	 * model. The argument isn't evaluated again.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	@Override
+	public void initializeScores(RetrievalModel r) throws IOException {
 
 		Qry q = this.args.get(0);
-		q.initialize(r);
+
+		this.postingScores = null;
+
+		if (r instanceof RetrievalModelBM25) {
+			RetrievalModelBM25 rb = (RetrievalModelBM25) r;
+			QryIop iop = (QryIop) q;
+			double df = iop.getDf();
+			double k3 = rb.getK3();
+			double qtf = 1.0;
+
+			this.field = iop.getField();
+			this.k1 = rb.getK1();
+			this.b = rb.getB();
+			this.avgDocLen = Idx.getAvgDocLen(this.field);
+			this.idfWeight = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5)); // RSJ weight
+			if (this.idfWeight < 0)
+				this.idfWeight = 0;
+			this.userWeight = (k3 + 1) * qtf / (k3 + qtf);
+			this.scorePostings(r);
+		} else if (r instanceof RetrievalModelIndri) {
+			RetrievalModelIndri ri = (RetrievalModelIndri) r;
+			double lambda = ri.getLambda();
+			QryIop iop = (QryIop) q;
+			double ctf = (double) iop.getCtf();
+
+			this.field = iop.getField();
+
+			double colLen = Idx.getSumOfFieldLengths(this.field);
+
+			this.mu = ri.getMu();
+			this.oneMinusLambda = 1 - lambda;
+			this.muPMle = this.mu * ctf / colLen;
+			this.lambdaPMle = lambda * ctf / colLen;
+			this.defaultNumerator = this.oneMinusLambda * this.muPMle;
+			this.defaultScores = new IndriDefaultScores(this.mu, this.defaultNumerator, this.lambdaPMle);
+			this.scorePostings(r);
+		}
+	}
+
+	/**
+	 * Get the docids of the argument's inverted list.
+	 * 
+	 * @return The sorted docids.
+	 */
+	@Override
+	public int[] getDocids() {
+		return this.args.get(0).getDocids();
+	}
+
+	/**
+	 * Score every posting of the argument's inverted list, in blocks, with
+	 * the batch scoring kernels. Most postings are scored eventually, because
+	 * the BM25 and Indri operators match documents that contain any of their
+	 * arguments.
+	 * 
+	 * @param r
+	 *            The BM25 or Indri retrieval model.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
+	private void scorePostings(RetrievalModel r) throws IOException {
+
+		InvList list = ((QryIop) this.args.get(0)).invertedList;
+		int[] docids = list.getDocids();
+		int df = list.df;
+		int blockSize = Math.min(df, ScoreKernels.BLOCK_SIZE);
+		double[] tf = new double[blockSize];
+		double[] docLen = new double[blockSize];
+		ScoreKernels kernels = ScoreKernels.INSTANCE;
+
+		this.postingScores = new double[df];
+
+		for (int start = 0; start < df; start += blockSize) {
+			int n = Math.min(blockSize, df - start);
+
+			for (int i = 0; i < n; i++) {
+				tf[i] = list.postings.get(start + i).tf;
+			}
+
+			Idx.getFieldLengths(this.field, docids, start, n, docLen);
+
+			if (r instanceof RetrievalModelBM25) {
+				kernels.bm25(tf, docLen, n, this.k1, this.b, this.avgDocLen, this.idfWeight, this.userWeight,
+						this.postingScores, start);
+			} else {
+				kernels.indri(tf, docLen, n, this.mu, this.oneMinusLambda, this.muPMle, this.lambdaPMle,
+						this.postingScores, start);
+			}
+		}
 	}
 
 	/**
@@ -103,7 +264,8 @@ public class QrySopScore extends QrySop {
 	}
 
 	/**
-	 * getScore for the BM25 retrieval model
+	 * getScore for the BM25 retrieval model. The postings were scored by
+	 * initialize.
 	 * 
 	 * @param r
 	 *            the retrieval model that determines how scores are calculated.
@@ -112,57 +274,118 @@ public class QrySopScore extends QrySop {
 	 *             Error accessing the Lucene index
 	 */
 	private double getScoreBM25(RetrievalModel r) throws IOException {
-		
-		RetrievalModelBM25 rb = (RetrievalModelBM25) r;
-		double k1 = rb.getK1();
-		double k3 = rb.getK3();
-		double b = rb.getB();
-
 		QryIop q = (QryIop) this.args.get(0);
-		if(!q.docIteratorHasMatch(r))
+		if (!q.docIteratorHasMatch(r))
 			return 0;
-		int docId = q.docIteratorGetMatch();
-		double tf = q.docIteratorGetMatchPosting().tf;
-		double df = q.getDf();
-
-		double avgDocLen = Idx.getAvgDocLen(q.getField());
-		double docLen = Idx.getFieldLength(q.getField(), docId);
-		double tfWeight = tf / (tf + k1 * (1 - b + b * (docLen / avgDocLen)));
-		double idfWeight = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));// RSJ weigh													// weight
-		if(idfWeight<0)
-			idfWeight = 0;
-		double qtf = 1.0;
-		double userWeight = (k3 + 1) * qtf / (k3 + qtf);
-		return idfWeight * tfWeight * userWeight;
+		return this.postingScores[q.docIteratorGetMatchIndex()];
 	}
 
+	/**
+	 * getScore for the Indri retrieval model. The postings were scored by
+	 * initialize.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @return The document score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
 	private double getScoreIndri(RetrievalModel r) throws IOException {
-		RetrievalModelIndri ri = (RetrievalModelIndri) r;
-		double lambda = ri.getLambda();
-		double mu = ri.getMu();
 		QryIop q = (QryIop) this.args.get(0);
-		String field = q.getField();
-		double colLen = Idx.getSumOfFieldLengths(field);
-		double tf = q.docIteratorGetMatchPosting().tf;
-		double ctf = (double) q.getCtf();
-		int docId = q.docIteratorGetMatch();
-		double docLen = Idx.getFieldLength(field, docId);
-		double score = (1 - lambda) * (tf + mu * ctf / colLen) / (docLen + mu) + lambda * ctf / colLen;
-		return score;
+		return this.postingScores[q.docIteratorGetMatchIndex()];
 	}
 
+	/**
+	 * Get the Indri score of a document that doesn't contain the term (the
+	 * background probability), which depends only on the document length.
+	 * 
+	 * @param r
+	 *            The retrieval model that determines how scores are calculated.
+	 * @param docId
+	 *            The internal document id.
+	 * @return The default score.
+	 * @throws IOException
+	 *             Error accessing the Lucene index
+	 */
 	@Override
 	public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
-		// TODO Auto-generated method stub
-		RetrievalModelIndri ri = (RetrievalModelIndri) r;
-		double lambda = ri.getLambda();
-		double mu = ri.getMu();
-		QryIop q = (QryIop) this.args.get(0);
-		double ctf = (double) q.getCtf();
-		double colLen = Idx.getSumOfFieldLengths(q.getField());
-		// int docId = q.docIteratorGetMatch();
-		double docLen = Idx.getFieldLength(q.getField(), docId);
-		double score = (1 - lambda) * (mu * ctf / colLen) / (docLen + mu) + lambda * ctf / colLen;
-		return score;
+		if (!(r instanceof RetrievalModelIndri)) {
+			throw new IllegalArgumentException(r.getClass().getName() + " doesn't support default scores.");
+		}
+		return this.getDefaultScoreIndri(Idx.getFieldLength(this.field, docId));
+	}
+
+	/**
+	 * Get the Indri default score for a document length.
+	 * 
+	 * @param docLen
+	 *            The length of the document field.
+	 * @return The default score.
+	 */
+	double getDefaultScoreIndri(int docLen) {
+		return this.defaultScores.get(docLen);
+	}
+
+	/**
+	 * The Indri default scores of a SCORE operator for one parameter
+	 * setting. Scores are computed the first time that a length is seen and
+	 * remembered in a table, so arguments that don't match a document are
+	 * cheap to score.
+	 */
+	static final class IndriDefaultScores {
+
+		private final double mu;
+		private final double defaultNumerator;
+		private final double lambdaPMle;
+
+		/**
+		 * Default scores, indexed by document length. Entries are NaN until
+		 * they are first needed. The table grows to fit the longest length
+		 * seen, up to MAX_DEFAULT_SCORE_LENGTH slots.
+		 */
+		private double[] scores = null;
+
+		IndriDefaultScores(double mu, double defaultNumerator, double lambdaPMle) {
+			this.mu = mu;
+			this.defaultNumerator = defaultNumerator;
+			this.lambdaPMle = lambdaPMle;
+		}
+
+		/**
+		 * Get the default score for a document length.
+		 * 
+		 * @param docLen
+		 *            The length of the document field.
+		 * @return The default score.
+		 */
+		double get(int docLen) {
+
+			if (docLen >= MAX_DEFAULT_SCORE_LENGTH) {
+				return this.defaultNumerator / ((double) docLen + this.mu) + this.lambdaPMle;
+			}
+
+			if ((this.scores == null) || (docLen >= this.scores.length)) {
+				int length = Integer.highestOneBit(Math.max(docLen, 128)) * 2;
+				int oldLength = 0;
+
+				if (this.scores == null) {
+					this.scores = new double[length];
+				} else {
+					oldLength = this.scores.length;
+					this.scores = Arrays.copyOf(this.scores, length);
+				}
+
+				Arrays.fill(this.scores, oldLength, length, Double.NaN);
+			}
+
+			double score = this.scores[docLen];
+
+			if (Double.isNaN(score)) {
+				score = this.defaultNumerator / ((double) docLen + this.mu) + this.lambdaPMle;
+				this.scores[docLen] = score;
+			}
+
+			return score;
+		}
 	}
 }
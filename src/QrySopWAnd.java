@@ -10,6 +10,17 @@ public class QrySopWAnd extends QrySop{
 		weights.add(weight);
 	}
 	
+	/**
+	 * Get the weight of the i'th argument.
+	 * 
+	 * @param i
+	 *            The index of the argument.
+	 * @return The weight.
+	 */
+	public double getWeight(int i){
+		return weights.get(i);
+	}
+	
 	public double weightSum(){
 		double sum = 0;
 		for(double weight:weights){
@@ -22,21 +33,21 @@ public class QrySopWAnd extends QrySop{
 		// TODO Auto-generated method stub
 		if(!this.docIteratorHasMatchCache()||args.size()==0)
 			return 0;
+		// Weighted geometric mean, in log space.
 		int docId = this.docIteratorGetMatch();
-		double score = 1;
+		double logScore = 0;
 		for(int i=0;i<args.size();i++){
 			QrySop q = (QrySop) args.get(i);
 			double weight = weights.get(i);
 			if(q.docIteratorHasMatch(r)&&q.docIteratorGetMatch()==docId){
-				score *= Math.pow(q.getScore(r), weight);
+				logScore += weight * Math.log(q.getScore(r));
 			}
 			else{
-				score *= Math.pow(q.getDefaultScore(r, docId), weight);
+				logScore += weight * Math.log(q.getDefaultScore(r, docId));
 			}
 			
 		}
-		score = Math.pow(score, 1/weightSum());
-		return score;
+		return Math.exp(logScore / weightSum());
 	}
 
 	@Override
@@ -49,14 +60,13 @@ public class QrySopWAnd extends QrySop{
 	public double getDefaultScore(RetrievalModel r, int docId) throws IOException{
 		if(!docIteratorHasMatchCache())
 			return 0;
-		double score = 1;
+		double logScore = 0;
 		for(int i=0;i<args.size();i++){
 			QrySop q = (QrySop)args.get(i);
 			double weight = weights.get(i);
-			score *= Math.pow(q.getDefaultScore(r, docId), weight);
+			logScore += weight * Math.log(q.getDefaultScore(r, docId));
 		}
-		score = Math.pow(score, 1/weightSum());
-		return score;
+		return Math.exp(logScore / weightSum());
 		
 	}
 }
@@ -9,6 +9,17 @@ public class QrySopWSum extends QrySop{
 		weights.add(weight);
 	}
 	
+	/**
+	 * Get the weight of the i'th argument.
+	 * 
+	 * @param i
+	 *            The index of the argument.
+	 * @return The weight.
+	 */
+	public double getWeight(int i){
+		return weights.get(i);
+	}
+	
 	public double weightSum(){
 		double sum = 0;
 		for(double weight:weights){
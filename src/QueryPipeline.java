@@ -0,0 +1,386 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Processes a query file as a pipeline of stages that run concurrently and
+ * are connected by bounded queues:
+ * <ol>
+ * <li>a parser thread reads the query file and parses each query;</li>
+ * <li>one or more evaluator threads evaluate the parsed queries (see
+ * QryEval.processQuery);</li>
+ * <li>the calling thread collects the results in query file order and hands
+ * them to a RunWriter, whose own thread formats and writes them.</li>
+ * </ol>
+ * Parsing and writing overlap with evaluation, so the throughput approaches
+ * that of the evaluators. A stage that gets ahead blocks when its output
+ * queue is full, so at most a few dozen queries are in flight.
+ * <p>
+ * Queries are independent, so their results don't depend on the number of
+ * evaluator threads, and the run file is written in the order of the query
+ * file. With several evaluators, the progress messages of different queries
+ * may interleave.
+ * </p>
+ */
+public class QueryPipeline {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The number of parsed queries that may wait for an evaluator, and the
+	 * number of queries that may wait to be written.
+	 */
+	private static final int QUEUE_CAPACITY = 32;
+
+	/**
+	 * Marks the end of a queue.
+	 */
+	private static final Query END = new Query(null, null, null);
+
+	private final RetrievalModel model;
+
+	/**
+	 * True if each line is a JSON query (see QryJsonParser), false if it is
+	 * qid:query.
+	 */
+	private final boolean json;
+
+	private final int numEvaluators;
+
+	/**
+	 * Queries in the order of the query file, for the calling thread.
+	 */
+	private final BlockingQueue<Query> ordered = new ArrayBlockingQueue<Query>(QUEUE_CAPACITY);
+
+	/**
+	 * Queries that haven't been evaluated yet, for the evaluators.
+	 */
+	private final BlockingQueue<Query> pending = new ArrayBlockingQueue<Query>(QUEUE_CAPACITY);
+
+	/**
+	 * The error that stopped the parser, if any.
+	 */
+	private volatile Throwable parseError = null;
+
+	/**
+	 * Set when a stage fails: the parser stops reading, and the evaluators
+	 * skip the queries that are still queued. Threads that read the index
+	 * must not be interrupted (an interrupt closes the NIO channels of the
+	 * Lucene index), so the stages are stopped this way instead.
+	 */
+	private volatile boolean stopped = false;
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Constructor.
+	 *
+	 * @param model
+	 *            The retrieval model that the queries are evaluated with.
+	 * @param json
+	 *            True if each line of the query file is a JSON query, false
+	 *            if it is qid:query.
+	 * @param numEvaluators
+	 *            The number of evaluator threads.
+	 */
+	public QueryPipeline(RetrievalModel model, boolean json, int numEvaluators) {
+
+		if (numEvaluators < 1) {
+			throw new IllegalArgumentException("A query pipeline needs at least one evaluator thread.");
+		}
+
+		this.model = model;
+		this.json = json;
+		this.numEvaluators = numEvaluators;
+	}
+
+	/**
+	 * Process the queries of a query file, and write their results. Returns
+	 * when every query is queued for the writer, or when a stage fails; the
+	 * queries before the failure are written.
+	 *
+	 * @param input
+	 *            The query file.
+	 * @param output
+	 *            Writes the results.
+	 * @param depth
+	 *            The number of results of each query to write.
+	 * @throws IOException
+	 *             Error reading the query file, accessing the Lucene index or
+	 *             writing the results.
+	 * @throws IllegalArgumentException
+	 *             Syntax error in the query file.
+	 */
+	public void run(final BufferedReader input, RunWriter output, int depth) throws IOException {
+
+		List<Thread> threads = new ArrayList<Thread>();
+
+		threads.add(new Thread(new Runnable() {
+			public void run() {
+				parse(input);
+			}
+		}, "QueryPipeline parser"));
+
+		for (int i = 0; i < this.numEvaluators; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					evaluate();
+				}
+			}, "QueryPipeline evaluator " + i));
+		}
+
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		boolean finished = false;
+
+		try {
+			Query query;
+
+			while ((query = take(this.ordered)) != END) {
+				output.write(query.qid, query.getResults(), depth);
+			}
+
+			finished = true;
+
+			if (this.parseError != null) {
+				rethrow(this.parseError);
+			}
+		} finally {
+			if (!finished) {
+				this.stop();
+			}
+
+			for (Thread thread : threads) {
+				joinUninterruptibly(thread);
+			}
+		}
+	}
+
+	/**
+	 * Stop the pipeline after a failure: tell the other stages to stop, and
+	 * discard the queries that wait to be written until the parser marks the
+	 * end of the queue.
+	 */
+	private void stop() {
+
+		this.stopped = true;
+
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				if (this.ordered.take() == END) {
+					break;
+				}
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for a thread to finish, even if the calling thread is
+	 * interrupted.
+	 *
+	 * @param thread
+	 *            The thread.
+	 */
+	private static void joinUninterruptibly(Thread thread) {
+
+		boolean interrupted = false;
+
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The parser thread: read and parse each query, and queue it for the
+	 * evaluators and for the calling thread.
+	 *
+	 * @param input
+	 *            The query file.
+	 */
+	private void parse(BufferedReader input) {
+
+		try {
+			String qLine = null;
+
+			while (!this.stopped && ((qLine = input.readLine()) != null)) {
+				Query query;
+
+				if (this.json) {
+					if (qLine.trim().length() == 0) {
+						continue;
+					}
+
+					Map.Entry<String, Qry> parsed = QryJsonParser.parseQueryLine(qLine);
+
+					query = new Query(parsed.getKey(), parsed.getKey(), parsed.getValue());
+				} else {
+					int d = qLine.indexOf(':');
+
+					if (d < 0) {
+						throw new IllegalArgumentException("Syntax error:  Missing ':' in query line.");
+					}
+
+					String qString = this.model.defaultQrySopName() + "(" + qLine.substring(d + 1) + ")";
+
+					query = new Query(qLine.substring(0, d), qLine, QryParser.getQuery(qString));
+				}
+
+				query.task = this.newTask(query);
+				this.ordered.put(query);
+				this.pending.put(query);
+			}
+		} catch (InterruptedException ex) {
+			return;
+		} catch (Throwable ex) {
+			this.parseError = ex;
+		}
+
+		try {
+			this.ordered.put(END);
+
+			for (int i = 0; i < this.numEvaluators; i++) {
+				this.pending.put(END);
+			}
+		} catch (InterruptedException ex) {
+			return;
+		}
+	}
+
+	/**
+	 * An evaluator thread: evaluate queries until the end of the queue.
+	 */
+	private void evaluate() {
+		try {
+			Query query;
+
+			while ((query = this.pending.take()) != END) {
+				if (!this.stopped) {
+					query.task.run();
+				}
+			}
+		} catch (InterruptedException ex) {
+			return;
+		}
+	}
+
+	/**
+	 * Create the task that evaluates a query.
+	 *
+	 * @param query
+	 *            A parsed query.
+	 * @return The task.
+	 */
+	private FutureTask<ScoreList> newTask(final Query query) {
+		return new FutureTask<ScoreList>(new Callable<ScoreList>() {
+			public ScoreList call() throws IOException {
+				System.out.println("Query " + query.label);
+				return QryEval.processQuery(query.q, model);
+			}
+		});
+	}
+
+	/**
+	 * Take the next element of a queue; block until there is one.
+	 *
+	 * @param queue
+	 *            The queue.
+	 * @return The element.
+	 * @throws IOException
+	 *             The calling thread was interrupted.
+	 */
+	private static Query take(BlockingQueue<Query> queue) throws IOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while processing queries.");
+		}
+	}
+
+	/**
+	 * Rethrow the error of another stage in the calling thread.
+	 *
+	 * @param error
+	 *            The error.
+	 * @throws IOException
+	 *             The error, if it is an IOException or a checked exception.
+	 */
+	private static void rethrow(Throwable error) throws IOException {
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error instanceof Error) {
+			throw (Error) error;
+		} else {
+			throw new IOException(error);
+		}
+	}
+
+	/**
+	 * A query that is moving through the pipeline.
+	 */
+	private static class Query {
+		private final String qid;
+
+		/**
+		 * How the query is shown in progress messages.
+		 */
+		private final String label;
+
+		private final Qry q;
+
+		/**
+		 * Evaluates the query; set by the parser.
+		 */
+		private FutureTask<ScoreList> task = null;
+
+		private Query(String qid, String label, Qry q) {
+			this.qid = qid;
+			this.label = label;
+			this.q = q;
+		}
+
+		/**
+		 * Wait for the query to be evaluated.
+		 *
+		 * @return The results, or null if the query is empty.
+		 * @throws IOException
+		 *             Error evaluating the query, or the calling thread was
+		 *             interrupted.
+		 */
+		private ScoreList getResults() throws IOException {
+			try {
+				return this.task.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while processing queries.");
+			} catch (ExecutionException ex) {
+				rethrow(ex.getCause());
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes the results of queries to a run file in trec_eval format, on its own
+ * thread. The query thread only copies the docids and scores of the top
+ * results of each query into a bounded queue; the writer thread reads their
+ * external ids, formats the rows into a reused byte buffer and writes the
+ * buffer through a FileChannel. If the writer falls
+ * behind, write blocks until the queue has room, so memory use is bounded.
+ * <p>
+ * Rows are formatted directly into the buffer; scores are formatted by
+ * {@link DoubleFormat}, in the format of Double.toString, so trec_eval reads
+ * back exactly the scores that were ranked, and no String is allocated per
+ * row.
+ * </p>
+ * <p>
+ * Optionally, the results are also written in a compact binary format for
+ * downstream tools. Values are big-endian, so the file can be read with
+ * DataInputStream:
+ * </p>
+ * <pre>
+ *   int    magic (BINARY_MAGIC)
+ *   for each query:
+ *     short  length of the query id, then its UTF-8 bytes
+ *     int    number of results (0 if the query had no results)
+ *     for each result, best first:
+ *       int    internal docid
+ *       double score
+ *       short  length of the external docid, then its UTF-8 bytes
+ * </pre>
+ * <p>
+ * If an evaluator is supplied, the writer thread also evaluates each query
+ * (see {@link TrecEval}).
+ * </p>
+ */
+public class RunWriter implements Closeable {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The first 4 bytes of a binary run file ("RUN1").
+	 */
+	public static final int BINARY_MAGIC = 0x52554E31;
+
+	/**
+	 * The number of queries that may wait for the writer thread.
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The end of each row: the run id.
+	 */
+	private static final String SUFFIX = "\trun-1\n";
+
+	/**
+	 * Marks the end of the queue.
+	 */
+	private static final Batch END = new Batch(null, 0);
+
+	private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_CAPACITY);
+
+	private final FileChannel text;
+	private final FileChannel binary;
+	private final TrecEval evaluation;
+	private final Thread thread;
+
+	/**
+	 * The first error of the writer thread; reported by write and close.
+	 */
+	private volatile IOException error = null;
+
+	private boolean closed = false;
+
+	// The writer thread's reused buffers.
+
+	private ByteBuffer textBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer binaryBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Open a run file, and start the writer thread.
+	 *
+	 * @param textPath
+	 *            The run file, in trec_eval format.
+	 * @param binaryPath
+	 *            The binary run file, or null.
+	 * @param evaluation
+	 *            Evaluates each query as it is written, or null.
+	 * @throws IOException
+	 *             Error opening the files.
+	 */
+	public RunWriter(String textPath, String binaryPath, TrecEval evaluation) throws IOException {
+
+		this.text = new FileOutputStream(textPath).getChannel();
+		this.evaluation = evaluation;
+
+		if (binaryPath == null) {
+			this.binary = null;
+		} else {
+			this.binary = new FileOutputStream(binaryPath).getChannel();
+			this.binaryBuffer.putInt(BINARY_MAGIC);
+		}
+
+		this.thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "RunWriter " + textPath);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue the results of a query to be written. A query that has no
+	 * results (r is null) is written as one "dummy" row with score 0, so that
+	 * trec_eval knows about it.
+	 *
+	 * @param qid
+	 *            The query id.
+	 * @param r
+	 *            The sorted results of the query, or null.
+	 * @param depth
+	 *            The maximum number of results to write.
+	 * @throws IOException
+	 *             The writer thread failed, or the caller was interrupted.
+	 */
+	public void write(String qid, ScoreList r, int depth) throws IOException {
+
+		this.checkError();
+
+		Batch batch;
+
+		if (r == null) {
+			batch = new Batch(qid, 0);
+			batch.dummy = true;
+		} else {
+			int n = Math.min(depth, r.size());
+
+			batch = new Batch(qid, n);
+
+			for (int i = 0; i < n; i++) {
+				batch.docids[i] = r.getDocid(i);
+				batch.scores[i] = r.getDocidScore(i);
+			}
+		}
+
+		this.put(batch);
+	}
+
+	/**
+	 * Wait until every queued query is written, and close the files.
+	 *
+	 * @throws IOException
+	 *             The writer thread failed, or the caller was interrupted.
+	 */
+	public void close() throws IOException {
+
+		if (this.closed) {
+			return;
+		}
+
+		this.closed = true;
+
+		try {
+			this.put(END);
+
+			try {
+				this.thread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while closing a run file.");
+			}
+		} finally {
+			this.text.close();
+
+			if (this.binary != null) {
+				this.binary.close();
+			}
+		}
+
+		this.checkError();
+	}
+
+	/**
+	 * Add a batch to the queue; block while it is full.
+	 *
+	 * @param batch
+	 *            The batch.
+	 * @throws IOException
+	 *             The caller was interrupted.
+	 */
+	private void put(Batch batch) throws IOException {
+		try {
+			this.queue.put(batch);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing a run file.");
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *             The error of the writer thread, if it failed.
+	 */
+	private void checkError() throws IOException {
+		if (this.error != null) {
+			throw new IOException("Error writing a run file.", this.error);
+		}
+	}
+
+	/**
+	 * The writer thread: write batches until the end of the queue. After an
+	 * error, batches are still taken from the queue, so that the query
+	 * thread doesn't block, but they are discarded.
+	 */
+	private void drain() {
+
+		while (true) {
+			Batch batch;
+
+			try {
+				batch = this.queue.take();
+			} catch (InterruptedException ex) {
+				this.error = new InterruptedIOException("The run writer was interrupted.");
+				return;
+			}
+
+			try {
+				if (batch == END) {
+					if (this.error == null) {
+						this.flush(this.text, this.textBuffer);
+
+						if (this.binary != null) {
+							this.flush(this.binary, this.binaryBuffer);
+						}
+					}
+					return;
+				}
+
+				if (this.error == null) {
+					for (int i = 0; i < batch.docids.length; i++) {
+						batch.docnos[i] = Idx.getExternalDocid(batch.docids[i]);
+					}
+
+					this.writeText(batch);
+
+					if (this.binary != null) {
+						this.writeBinary(batch);
+					}
+
+					if (this.evaluation != null) {
+						if (batch.dummy) {
+							this.evaluation.addQuery(batch.qid, new String[] { "dummy" }, new double[] { 0 });
+						} else {
+							this.evaluation.addQuery(batch.qid, batch.docnos, batch.scores);
+						}
+					}
+				}
+			} catch (IOException ex) {
+				this.error = ex;
+			} catch (RuntimeException ex) {
+				this.error = new IOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Format a batch in trec_eval format (qid Q0 docno rank score runid).
+	 *
+	 * @param batch
+	 *            The results of a query.
+	 * @throws IOException
+	 *             Error writing the file.
+	 */
+	private void writeText(Batch batch) throws IOException {
+
+		String prefix = batch.qid + "\tQ0\t";
+
+		if (batch.dummy) {
+			this.putText(prefix);
+			this.putText("dummy\t1\t0" + SUFFIX);
+			return;
+		}
+
+		for (int i = 0; i < batch.docnos.length; i++) {
+			this.putText(prefix);
+			this.putText(batch.docnos[i]);
+
+			// The rank and the score.
+
+			this.textBuffer = this.reserve(this.text, this.textBuffer, 12 + DoubleFormat.MAX_LENGTH);
+
+			byte[] bytes = this.textBuffer.array();
+			int pos = this.textBuffer.position();
+
+			bytes[pos++] = '\t';
+			pos = putInt(i + 1, bytes, pos);
+			bytes[pos++] = '\t';
+			pos = DoubleFormat.format(batch.scores[i], bytes, pos);
+
+			this.textBuffer.position(pos);
+			this.putText(SUFFIX);
+		}
+	}
+
+	/**
+	 * Write a non-negative int in decimal.
+	 *
+	 * @param n
+	 *            The int.
+	 * @param bytes
+	 *            Output.
+	 * @param pos
+	 *            The index of the first byte to write.
+	 * @return The index after the last byte written.
+	 */
+	private static int putInt(int n, byte[] bytes, int pos) {
+
+		int len = 1;
+
+		for (int x = n; x >= 10; x /= 10) {
+			len++;
+		}
+
+		for (int i = pos + len - 1; i >= pos; i--) {
+			bytes[i] = (byte) ('0' + n % 10);
+			n /= 10;
+		}
+
+		return pos + len;
+	}
+
+	/**
+	 * Copy text into the text buffer, flushing the buffer first if it is too
+	 * full. ASCII characters are copied directly into the buffer's array;
+	 * text that isn't ASCII (rare) is encoded as FileWriter would.
+	 *
+	 * @param s
+	 *            The text.
+	 * @throws IOException
+	 *             Error writing the file.
+	 */
+	private void putText(CharSequence s) throws IOException {
+
+		int n = s.length();
+
+		this.textBuffer = this.reserve(this.text, this.textBuffer, n);
+
+		byte[] bytes = this.textBuffer.array();
+		int pos = this.textBuffer.position();
+
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+
+			if (c >= 0x80) {
+				ByteBuffer encoded = this.encoder.encode(CharBuffer.wrap(s));
+
+				this.textBuffer = this.reserve(this.text, this.textBuffer, encoded.remaining());
+				this.textBuffer.put(encoded);
+				return;
+			}
+
+			bytes[pos + i] = (byte) c;
+		}
+
+		this.textBuffer.position(pos + n);
+	}
+
+	/**
+	 * Encode a batch in the binary format.
+	 *
+	 * @param batch
+	 *            The results of a query.
+	 * @throws IOException
+	 *             Error writing the file.
+	 */
+	private void writeBinary(Batch batch) throws IOException {
+
+		byte[] qid = batch.qid.getBytes(StandardCharsets.UTF_8);
+
+		this.binaryBuffer = this.reserve(this.binary, this.binaryBuffer, 2 + qid.length + 4);
+		this.binaryBuffer.putShort((short) qid.length).put(qid).putInt(batch.docnos.length);
+
+		for (int i = 0; i < batch.docnos.length; i++) {
+			byte[] docno = batch.docnos[i].getBytes(StandardCharsets.UTF_8);
+
+			this.binaryBuffer = this.reserve(this.binary, this.binaryBuffer, 4 + 8 + 2 + docno.length);
+			this.binaryBuffer.putInt(batch.docids[i]).putDouble(batch.scores[i]).putShort((short) docno.length)
+					.put(docno);
+		}
+	}
+
+	/**
+	 * Make room for n bytes in a buffer: flush it if it is too full, and
+	 * grow it if n is larger than the buffer.
+	 *
+	 * @param channel
+	 *            The file that the buffer is written to.
+	 * @param buffer
+	 *            The buffer.
+	 * @param n
+	 *            The number of bytes that will be added.
+	 * @return The buffer, which may be a new, larger buffer.
+	 * @throws IOException
+	 *             Error writing the file.
+	 */
+	private ByteBuffer reserve(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+
+		if (buffer.remaining() < n) {
+			this.flush(channel, buffer);
+
+			if (buffer.capacity() < n) {
+				buffer = ByteBuffer.allocate(n);
+			}
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Write the contents of a buffer to its file, and clear the buffer.
+	 *
+	 * @param channel
+	 *            The file.
+	 * @param buffer
+	 *            The buffer.
+	 * @throws IOException
+	 *             Error writing the file.
+	 */
+	private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.flip();
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		buffer.clear();
+	}
+
+	/**
+	 * The top results of one query, copied out of its ScoreList. The writer
+	 * thread fills in the external ids.
+	 */
+	private static class Batch {
+		private final String qid;
+		private final int[] docids;
+		private final String[] docnos;
+		private final double[] scores;
+		private boolean dummy = false;
+
+		private Batch(String qid, int n) {
+			this.qid = qid;
+			this.docids = new int[n];
+			this.docnos = new String[n];
+			this.scores = new double[n];
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.Arrays;
+
+/**
+ * Batch scoring kernels for the SCORE operator. BM25 tf normalization and
+ * Indri Dirichlet smoothing are the same arithmetic applied to every posting
+ * of an inverted list, so QrySopScore scores its postings in blocks of (tf,
+ * docLen) pairs when it is initialized.
+ * <p>
+ * INSTANCE is a SIMD implementation ({@link ScoreKernelsVector}) if the Java
+ * Vector API is available, otherwise the scalar implementation. The Vector
+ * API is an incubator module, so ScoreKernelsVector is compiled separately
+ * (see the Makefile) and is used only when the JVM is started with
+ * --add-modules jdk.incubator.vector. Set the scoreKernels system property to
+ * "scalar" to disable it. Both implementations do the same floating-point
+ * operations in the same order, so their scores are identical.
+ * </p>
+ */
+public abstract class ScoreKernels {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The number of postings that are scored by one kernel call.
+	 */
+	public static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * The scalar kernels.
+	 */
+	public static final ScoreKernels SCALAR = new Scalar();
+
+	/**
+	 * The fastest kernels that are available.
+	 */
+	public static final ScoreKernels INSTANCE = load();
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Select the kernel implementation.
+	 *
+	 * @return The SIMD kernels, if they can be loaded, otherwise the scalar
+	 *         kernels.
+	 */
+	private static ScoreKernels load() {
+
+		if ("scalar".equals(System.getProperty("scoreKernels"))) {
+			return SCALAR;
+		}
+
+		try {
+			ScoreKernels kernels = (ScoreKernels) Class.forName("ScoreKernelsVector").getDeclaredConstructor()
+					.newInstance();
+
+			return agreesWithScalar(kernels) ? kernels : SCALAR;
+		} catch (Throwable ex) {
+
+			// The class or the jdk.incubator.vector module is missing.
+
+			return SCALAR;
+		}
+	}
+
+	/**
+	 * Check that kernels compute the same scores as the scalar kernels. The
+	 * postings are long enough to fill several vectors and leave a tail, so
+	 * both the vector loop and the tail are checked.
+	 *
+	 * @param kernels
+	 *            The kernels to check.
+	 * @return True if every score is identical.
+	 */
+	private static boolean agreesWithScalar(ScoreKernels kernels) {
+
+		int n = 67;
+		int offset = 3;
+		double[] tf = new double[n];
+		double[] docLen = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			tf[i] = 1 + (i * 7) % 13;
+			docLen[i] = tf[i] + (i * 31) % 97;
+		}
+
+		double[] expected = new double[offset + n];
+		double[] actual = new double[offset + n];
+
+		SCALAR.bm25(tf, docLen, n, 1.2, 0.75, 41.5, 2.3, 1.0, expected, offset);
+		kernels.bm25(tf, docLen, n, 1.2, 0.75, 41.5, 2.3, 1.0, actual, offset);
+
+		if (!Arrays.equals(expected, actual)) {
+			return false;
+		}
+
+		SCALAR.indri(tf, docLen, n, 2500, 0.6, 0.013, 0.0000021, expected, offset);
+		kernels.indri(tf, docLen, n, 2500, 0.6, 0.013, 0.0000021, actual, offset);
+
+		return Arrays.equals(expected, actual);
+	}
+
+	/**
+	 * Compute BM25 scores for a block of postings.
+	 *
+	 * @param tf
+	 *            Term frequencies.
+	 * @param docLen
+	 *            Document (field) lengths.
+	 * @param n
+	 *            The number of postings.
+	 * @param k1
+	 *            The BM25 k_1 parameter.
+	 * @param b
+	 *            The BM25 b parameter.
+	 * @param avgDocLen
+	 *            The average field length.
+	 * @param idfWeight
+	 *            The RSJ weight of the term.
+	 * @param userWeight
+	 *            The query term weight.
+	 * @param scores
+	 *            Output: scores[offset] to scores[offset+n-1] are set.
+	 * @param offset
+	 *            Where to store the first score.
+	 */
+	public abstract void bm25(double[] tf, double[] docLen, int n, double k1, double b, double avgDocLen,
+			double idfWeight, double userWeight, double[] scores, int offset);
+
+	/**
+	 * Compute Indri scores (Dirichlet smoothing with linear interpolation) for
+	 * a block of postings.
+	 *
+	 * @param tf
+	 *            Term frequencies.
+	 * @param docLen
+	 *            Document (field) lengths.
+	 * @param n
+	 *            The number of postings.
+	 * @param mu
+	 *            The Dirichlet smoothing parameter.
+	 * @param oneMinusLambda
+	 *            1 - lambda.
+	 * @param muPMle
+	 *            mu * ctf / colLen.
+	 * @param lambdaPMle
+	 *            lambda * ctf / colLen.
+	 * @param scores
+	 *            Output: scores[offset] to scores[offset+n-1] are set.
+	 * @param offset
+	 *            Where to store the first score.
+	 */
+	public abstract void indri(double[] tf, double[] docLen, int n, double mu, double oneMinusLambda, double muPMle,
+			double lambdaPMle, double[] scores, int offset);
+
+	/**
+	 * Get the name of the implementation.
+	 *
+	 * @return The name.
+	 */
+	@Override
+	public String toString() {
+		return this.getClass().getSimpleName();
+	}
+
+	// --------------- Nested classes --------------------------------
+
+	/**
+	 * Scalar kernels, which are also used for the tails of SIMD kernels.
+	 */
+	static class Scalar extends ScoreKernels {
+
+		public void bm25(double[] tf, double[] docLen, int n, double k1, double b, double avgDocLen,
+				double idfWeight, double userWeight, double[] scores, int offset) {
+			bm25(tf, docLen, 0, n, k1, b, avgDocLen, idfWeight, userWeight, scores, offset);
+		}
+
+		public void indri(double[] tf, double[] docLen, int n, double mu, double oneMinusLambda, double muPMle,
+				double lambdaPMle, double[] scores, int offset) {
+			indri(tf, docLen, 0, n, mu, oneMinusLambda, muPMle, lambdaPMle, scores, offset);
+		}
+
+		/**
+		 * BM25 scores for postings start to n-1 of a block.
+		 */
+		static void bm25(double[] tf, double[] docLen, int start, int n, double k1, double b, double avgDocLen,
+				double idfWeight, double userWeight, double[] scores, int offset) {
+			for (int i = start; i < n; i++) {
+				double tfWeight = tf[i] / (tf[i] + k1 * (1 - b + b * (docLen[i] / avgDocLen)));
+				scores[offset + i] = idfWeight * tfWeight * userWeight;
+			}
+		}
+
+		/**
+		 * Indri scores for postings start to n-1 of a block.
+		 */
+		static void indri(double[] tf, double[] docLen, int start, int n, double mu, double oneMinusLambda,
+				double muPMle, double lambdaPMle, double[] scores, int offset) {
+			for (int i = start; i < n; i++) {
+				scores[offset + i] = oneMinusLambda * (tf[i] + muPMle) / (docLen[i] + mu) + lambdaPMle;
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD batch scoring kernels that use the Java Vector API. Each lane does the
+ * same operations, in the same order, as {@link ScoreKernels.Scalar}, so the
+ * scores are identical. The tail of a block that doesn't fill a vector is
+ * scored by the scalar kernel.
+ * <p>
+ * This class needs the jdk.incubator.vector module to compile and to run; see
+ * {@link ScoreKernels}.
+ * </p>
+ */
+public class ScoreKernelsVector extends ScoreKernels {
+
+	// --------------- Constants and variables ---------------------
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	// --------------- Methods ---------------------------------------
+
+	public void bm25(double[] tf, double[] docLen, int n, double k1, double b, double avgDocLen, double idfWeight,
+			double userWeight, double[] scores, int offset) {
+
+		int upper = SPECIES.loopBound(n);
+		double oneMinusB = 1 - b;
+		int i = 0;
+
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector vTf = DoubleVector.fromArray(SPECIES, tf, i);
+			DoubleVector vLen = DoubleVector.fromArray(SPECIES, docLen, i);
+			DoubleVector norm = vLen.div(avgDocLen).mul(b).add(oneMinusB).mul(k1);
+			DoubleVector tfWeight = vTf.div(vTf.add(norm));
+
+			// (idfWeight * tfWeight) * userWeight, as in the scalar kernel
+
+			tfWeight.mul(idfWeight).mul(userWeight).intoArray(scores, offset + i);
+		}
+
+		ScoreKernels.Scalar.bm25(tf, docLen, i, n, k1, b, avgDocLen, idfWeight, userWeight, scores, offset);
+	}
+
+	public void indri(double[] tf, double[] docLen, int n, double mu, double oneMinusLambda, double muPMle,
+			double lambdaPMle, double[] scores, int offset) {
+
+		int upper = SPECIES.loopBound(n);
+		int i = 0;
+
+		for (; i < upper; i += SPECIES.length()) {
+			DoubleVector vTf = DoubleVector.fromArray(SPECIES, tf, i);
+			DoubleVector vLen = DoubleVector.fromArray(SPECIES, docLen, i);
+
+			vTf.add(muPMle).mul(oneMinusLambda).div(vLen.add(mu)).add(lambdaPMle).intoArray(scores, offset + i);
+		}
+
+		ScoreKernels.Scalar.indri(tf, docLen, i, n, mu, oneMinusLambda, muPMle, lambdaPMle, scores, offset);
+	}
+}
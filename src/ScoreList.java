@@ -1,149 +1,335 @@
-
 /**
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class implements the document score list data structure and provides
  * methods for accessing and manipulating them.
+ * <p>
+ * The list is stored in parallel arrays of docids and scores. External
+ * document ids are read from the index only when they are requested, so a
+ * query that matches many documents doesn't load the stored fields of each
+ * one. Sorting breaks ties by the external id's position in sorted order
+ * (see Idx.getExternalDocidOrdinals), which orders documents exactly as
+ * comparing their external ids would.
+ * </p>
  */
 public class ScoreList {
 
-	// A utility class to create a <internalDocid, externalDocid, score>
-	// object.
-
-	private class ScoreListEntry {
-		private int docid;
-		private String externalId;
-		private double score;
+	// --------------- Constants and variables ---------------------
 
-		private ScoreListEntry(int internalDocid, double score) {
-			this.docid = internalDocid;
-			this.score = score;
+	/**
+	 * Lists that are at least this long are sorted in parallel. Shorter
+	 * pieces of a parallel sort are sorted sequentially.
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
 
-			try {
-				this.externalId = Idx.getExternalDocid(this.docid);
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
-		}
-		public String getExternalDocid(){
-			return externalId;
-		}
-	}
+	/**
+	 * Runs that are at most this long are sorted with insertion sort.
+	 */
+	private static final int INSERTION_THRESHOLD = 16;
 
 	/**
-	 * A list of document ids and scores.
+	 * A list of document ids and scores; the first size entries are used.
 	 */
-	private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+	private int[] docids = new int[16];
+	private double[] scores = new double[16];
+	private int size = 0;
+
+	// --------------- Methods ---------------------------------------
 
 	/**
 	 * Append a document score to a score list.
-	 * 
+	 *
 	 * @param docid
 	 *            An internal document id.
 	 * @param score
 	 *            The document's score.
 	 */
 	public void add(int docid, double score) {
-		scores.add(new ScoreListEntry(docid, score));
+
+		if (this.size == this.docids.length) {
+			int capacity = this.size + (this.size >> 1);
+
+			this.docids = Arrays.copyOf(this.docids, capacity);
+			this.scores = Arrays.copyOf(this.scores, capacity);
+		}
+
+		this.docids[this.size] = docid;
+		this.scores[this.size] = score;
+		this.size++;
 	}
 
 	/**
 	 * Get the external docid of the n'th entry
-	 * 
+	 *
 	 * @param n
 	 *            The index of the requested document.
 	 * @return The external document id.
-	 */	
-	public String getExternalDocid(int n){
-		return this.scores.get(n).getExternalDocid();
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
+	 */
+	public String getExternalDocid(int n) throws IOException {
+		return Idx.getExternalDocid(this.getDocid(n));
 	}
-	
+
 	/**
 	 * Get the internal docid of the n'th entry.
-	 * 
+	 *
 	 * @param n
 	 *            The index of the requested document.
 	 * @return The internal document id.
 	 */
 	public int getDocid(int n) {
-		return this.scores.get(n).docid;
+		this.checkIndex(n);
+		return this.docids[n];
 	}
 
 	/**
 	 * Get the score of the n'th entry.
-	 * 
+	 *
 	 * @param n
 	 *            The index of the requested document score.
 	 * @return The document's score.
 	 */
 	public double getDocidScore(int n) {
-		return this.scores.get(n).score;
+		this.checkIndex(n);
+		return this.scores[n];
 	}
 
 	/**
 	 * Set the score of the n'th entry.
-	 * 
+	 *
 	 * @param n
 	 *            The index of the score to change.
 	 * @param score
 	 *            The new score.
 	 */
 	public void setDocidScore(int n, double score) {
-		this.scores.get(n).score = score;
+		this.checkIndex(n);
+		this.scores[n] = score;
 	}
 
 	/**
 	 * Get the size of the score list.
-	 * 
+	 *
 	 * @return The size of the posting list.
 	 */
 	public int size() {
-		return this.scores.size();
+		return this.size;
 	}
 
-	/*
-	 * Compare two ScoreListEntry objects. Sort by score, then external docid.
+	/**
+	 * Sort the list by score and external document id. Documents that have
+	 * the same external id stay in docid order.
+	 *
+	 * @throws IOException
+	 *             Error accessing the Lucene index.
 	 */
-	public class ScoreListComparator implements Comparator<ScoreListEntry> {
+	public void sort() throws IOException {
 
-		@Override
-		public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-			if (s1.score > s2.score)
-				return -1;
-			else if (s1.score < s2.score)
-				return 1;
-			else
-				return s1.externalId.compareTo(s2.externalId);
-//			else if (s1.docid > s2.docid)
-//				return 1;
-//			else if (s1.docid < s2.docid)
-//				return -1;
-//			else
-//				return 0;
+		if (this.size < 2) {
+			return;
 		}
-	}
 
-	/**
-	 * Sort the list by score and external document id.
-	 */
-	public void sort() {
-		Collections.sort(this.scores, new ScoreListComparator());
+		int[] ordinals = Idx.getExternalDocidOrdinals();
+		int[] order = new int[this.size];
+
+		for (int i = 0; i < this.size; i++) {
+			order[i] = i;
+		}
+
+		Sorter sorter = new Sorter(order, new int[this.size], 0, this.size, this.docids, this.scores, ordinals);
+
+		if (this.size < PARALLEL_THRESHOLD) {
+			sorter.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(sorter);
+		}
+
+		// Apply the permutation.
+
+		int[] sortedDocids = new int[this.docids.length];
+		double[] sortedScores = new double[this.scores.length];
+
+		for (int i = 0; i < this.size; i++) {
+			sortedDocids[i] = this.docids[order[i]];
+			sortedScores[i] = this.scores[order[i]];
+		}
+
+		this.docids = sortedDocids;
+		this.scores = sortedScores;
 	}
 
 	/**
 	 * Reduce the score list to the first num results to save on RAM.
-	 * 
+	 *
 	 * @param num
 	 *            Number of results to keep.
 	 */
 	public void truncate(int num) {
-		List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(
-				this.scores.subList(0, Math.min(num, scores.size())));
-		this.scores.clear();
-		this.scores = truncated;
+		this.size = Math.min(num, this.size);
+		this.docids = Arrays.copyOf(this.docids, this.size);
+		this.scores = Arrays.copyOf(this.scores, this.size);
+	}
+
+	/**
+	 * @param n
+	 *            The index of an entry.
+	 * @throws IndexOutOfBoundsException
+	 *             The list doesn't have an n'th entry.
+	 */
+	private void checkIndex(int n) {
+		if ((n < 0) || (n >= this.size)) {
+			throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+		}
+	}
+
+	/**
+	 * A merge sort of a permutation of the list: by score (descending), then
+	 * by external id ordinal, then by docid. Large ranges sort their halves
+	 * in parallel, like Arrays.parallelSort.
+	 */
+	private static class Sorter extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] order;
+		private final int[] buffer;
+		private final int from;
+		private final int to;
+		private final int[] docids;
+		private final double[] scores;
+		private final int[] ordinals;
+
+		/**
+		 * @param order
+		 *            The permutation to sort; [from, to) is sorted.
+		 * @param buffer
+		 *            A scratch array as long as order.
+		 * @param from
+		 *            The first index of the range.
+		 * @param to
+		 *            The index after the range.
+		 * @param docids
+		 *            The docids of the list.
+		 * @param scores
+		 *            The scores of the list.
+		 * @param ordinals
+		 *            The external id ordinal of each docid.
+		 */
+		private Sorter(int[] order, int[] buffer, int from, int to, int[] docids, double[] scores, int[] ordinals) {
+			this.order = order;
+			this.buffer = buffer;
+			this.from = from;
+			this.to = to;
+			this.docids = docids;
+			this.scores = scores;
+			this.ordinals = ordinals;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (this.to - this.from <= INSERTION_THRESHOLD) {
+				this.insertionSort();
+				return;
+			}
+
+			int middle = (this.from + this.to) >>> 1;
+			Sorter left = new Sorter(this.order, this.buffer, this.from, middle, this.docids, this.scores,
+					this.ordinals);
+			Sorter right = new Sorter(this.order, this.buffer, middle, this.to, this.docids, this.scores,
+					this.ordinals);
+
+			if (this.to - this.from >= PARALLEL_THRESHOLD) {
+				invokeAll(left, right);
+			} else {
+				left.compute();
+				right.compute();
+			}
+
+			this.merge(middle);
+		}
+
+		/**
+		 * Sort a short range with insertion sort.
+		 */
+		private void insertionSort() {
+			for (int i = this.from + 1; i < this.to; i++) {
+				int e = this.order[i];
+				int j = i - 1;
+
+				while ((j >= this.from) && (this.compare(e, this.order[j]) < 0)) {
+					this.order[j + 1] = this.order[j];
+					j--;
+				}
+
+				this.order[j + 1] = e;
+			}
+		}
+
+		/**
+		 * Merge the sorted ranges [from, middle) and [middle, to).
+		 *
+		 * @param middle
+		 *            The start of the second range.
+		 */
+		private void merge(int middle) {
+
+			// Already in order?
+
+			if (this.compare(this.order[middle - 1], this.order[middle]) <= 0) {
+				return;
+			}
+
+			System.arraycopy(this.order, this.from, this.buffer, this.from, this.to - this.from);
+
+			int i = this.from;
+			int j = middle;
+			int k = this.from;
+
+			while ((i < middle) && (j < this.to)) {
+				if (this.compare(this.buffer[j], this.buffer[i]) < 0) {
+					this.order[k++] = this.buffer[j++];
+				} else {
+					this.order[k++] = this.buffer[i++];
+				}
+			}
+
+			System.arraycopy(this.buffer, i, this.order, k, middle - i);
+			System.arraycopy(this.buffer, j, this.order, k + (middle - i), this.to - j);
+		}
+
+		/**
+		 * Compare two entries of the list.
+		 *
+		 * @param a
+		 *            The index of an entry.
+		 * @param b
+		 *            The index of another entry.
+		 * @return A negative number if a comes first, positive if b comes
+		 *         first, and 0 if they are the same.
+		 */
+		private int compare(int a, int b) {
+
+			double scoreA = this.scores[a];
+			double scoreB = this.scores[b];
+
+			if (scoreA > scoreB) {
+				return -1;
+			} else if (scoreA < scoreB) {
+				return 1;
+			}
+
+			int docidA = this.docids[a];
+			int docidB = this.docids[b];
+			int c = Integer.compare(this.ordinals[docidA], this.ordinals[docidB]);
+
+			return (c != 0) ? c : Integer.compare(docidA, docidB);
+		}
 	}
 }
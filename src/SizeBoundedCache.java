@@ -0,0 +1,170 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ * A least-recently-used cache whose bound is the estimated total size of
+ * the cached values, rather than their number, so a few very large values
+ * can't push out everything else without being accounted for. Subclasses
+ * define how a value's size is estimated. The size of an entry is estimated
+ * once, when it is cached. Cached values are shared by every caller that
+ * gets them, so they must not be modified.
+ * <p>
+ * The cache is thread-safe.
+ * </p>
+ *
+ * @param <V>
+ *            The type of the cached values.
+ */
+public abstract class SizeBoundedCache<V> {
+
+	// --------------- Constants and variables ---------------------
+
+	private final String name;
+
+	private final String units;
+
+	private long capacity;
+
+	private long size = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Cached values and their sizes, least recently used first.
+	 */
+	private final LinkedHashMap<String, Entry<V>> cache = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param name
+	 *            The name of the cache, for getStatistics.
+	 * @param units
+	 *            What the cached values are, for getStatistics.
+	 * @param capacity
+	 *            The maximum total size of the cached values, in bytes.
+	 */
+	protected SizeBoundedCache(String name, String units, long capacity) {
+		this.name = name;
+		this.units = units;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Estimate the size of a value.
+	 *
+	 * @param value
+	 *            The value.
+	 * @return The estimated size, in bytes.
+	 */
+	protected abstract long sizeOf(V value);
+
+	/**
+	 * Get a cached value.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value, or null if it isn't cached.
+	 */
+	public synchronized V get(String key) {
+
+		Entry<V> e = this.cache.get(key);
+
+		if (e == null) {
+			this.misses++;
+			return null;
+		} else {
+			this.hits++;
+			return e.value;
+		}
+	}
+
+	/**
+	 * Cache a value, and evict the least recently used values if the cache
+	 * is full. A value that is larger than the capacity isn't cached.
+	 *
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 */
+	public synchronized void put(String key, V value) {
+
+		long bytes = this.sizeOf(value) + 2L * key.length();
+
+		if (bytes > this.capacity) {
+			return;
+		}
+
+		Entry<V> old = this.cache.put(key, new Entry<V>(value, bytes));
+
+		if (old != null) {
+			this.size -= old.bytes;
+		}
+
+		this.size += bytes;
+		this.evict();
+	}
+
+	/**
+	 * Remove every value from the cache.
+	 */
+	public synchronized void clear() {
+		this.cache.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * Set the capacity of the cache.
+	 *
+	 * @param bytes
+	 *            The maximum total size of the cached values. 0 disables the
+	 *            cache.
+	 */
+	public synchronized void setCapacity(long bytes) {
+		this.capacity = bytes;
+		this.evict();
+	}
+
+	/**
+	 * Get a string that describes the use of the cache.
+	 *
+	 * @return Cache statistics.
+	 */
+	public synchronized String getStatistics() {
+		return this.name + ":  " + this.cache.size() + " " + this.units + ", " + this.size + " bytes, " + this.hits
+				+ " hits, " + this.misses + " misses";
+	}
+
+	/**
+	 * Evict least recently used values until the cache fits its capacity.
+	 */
+	private void evict() {
+
+		Iterator<Entry<V>> it = this.cache.values().iterator();
+
+		while ((this.size > this.capacity) && it.hasNext()) {
+			this.size -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * A cached value and its estimated size.
+	 */
+	private static class Entry<V> {
+		final V value;
+		final long bytes;
+
+		Entry(V value, long bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -3,11 +3,14 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 
 /**
  *  An Indri DocVector-style interface for the Lucene termvector.
@@ -16,8 +19,19 @@ import org.apache.lucene.index.TermsEnum;
  *    stems:      The field's vocabulary.  The 0'th entry is an empty string.
  *                It indicates a stopword.
  *    stemsFreq:  The frequency (tf) of each entry in stems.
- *    positions:  The index of the stem that occurred at this position. 
+ *    positions:  The index of the stem that occurred at this position.
  *  </pre>
+ *  If the index has a {@link ForwardIndex} for the field, the
+ *  TermVector is read from it instead of from the Lucene termvector,
+ *  and stem statistics come from the forward index's term table.
+ *  <p>
+ *  A TermVector can be reused for many documents (see load).  Its
+ *  buffers grow as needed and are never shrunk, so reading a batch of
+ *  documents (e.g., for pseudo relevance feedback) allocates little
+ *  more than the stem strings.  indexOfStem uses an open-addressing
+ *  hash table.  Stem df and ctf are looked up only when they are
+ *  first requested, and are remembered across documents.
+ *  </p>
  */
 public class TermVector {
 
@@ -34,11 +48,28 @@ public class TermVector {
   public String fieldName;
 
   private int fieldLength;
-  private Terms luceneTerms;
-  private int[] positions;	// Index of the stem that at this position
-  private String[] stems;	// The vocabulary. 0 indicates a stopword
-  private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+  private int positionsLength;	// Logical length of positions
+  private int stemsLength;	// Logical length of stems, including stem 0
+  private int[] positions = new int[256];	// Index of the stem that at this position
+  private String[] stems = new String[64];	// The vocabulary. 0 indicates a stopword
+  private int[] stemsFreq = new int[64];	// The frequency (tf) of each entry in stems
+  private ForwardIndex.Field forwardIndex;
+  private int[] termIds = new int[64];	// ForwardIndex termIds of the entries in stems
+
+  //  Open-addressing hash table from stem string to stem index.  0
+  //  marks an empty slot, which is safe because stem 0 is a stopword.
+
+  private int[] stemTable = new int[128];
+
+  //  Collection statistics of the entries in stems, or -1 if they
+  //  have not been requested yet.  statsCache remembers them across
+  //  documents; it is valid for one field of one index.
+
+  private long[] stemsCtf = new long[64];
+  private int[] stemsDf = new int[64];
+  private Map<String, long[]> statsCache = new HashMap<String, long[]>();
+  private String statsField = null;
+  private IndexReader statsReader = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -48,83 +79,227 @@ public class TermVector {
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this.load(docId, fieldName);
+  }
+
+  /**
+   *  Replace the contents of this TermVector with the term vector of
+   *  another document.  The buffers of the previous document are
+   *  reused.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public void load(int docId, String fieldName) throws IOException {
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
+    this.positionsLength = 0;
+    this.stemsLength = 1;
 
-    //  Fetch the term vector, if one exists.
+    if ((this.statsReader != Idx.INDEXREADER) || (!fieldName.equals(this.statsField))) {
+      this.statsCache.clear();
+      this.statsField = fieldName;
+      this.statsReader = Idx.INDEXREADER;
+    }
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    //  Prefer the forward index, which doesn't decode postings.
 
-    //  If Lucene doesn't have a term vector, our TermVector is empty.
-    
-    if (this.luceneTerms == ((Terms) null)) {
-      return;
+    this.forwardIndex = Idx.getForwardIndex(fieldName);
+
+    if (this.forwardIndex != null) {
+      readForwardIndex();
+    } else {
+      readLuceneTermVector();
     }
 
-    //  Allocate space for stems. The 0'th stem indicates a stopword.
+    //  Index the stems.
 
-    int stemsLength = (int) this.luceneTerms.size();
-    stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
-    stemsFreq = new int[stemsLength + 1];
+    int tableSize = Integer.highestOneBit(Math.max(this.stemsLength, 32) * 2) * 2;
 
-    //  Iterate through the terms, filling in the stem and frequency
-    //  information, and finding the position of the last term. The
-    //  0'th term indicates a stopword, so this loop starts at i=1.
+    if (this.stemTable.length < tableSize)
+      this.stemTable = new int[tableSize];
+    else
+      Arrays.fill(this.stemTable, 0);
 
-    TermsEnum ithTerm = this.luceneTerms.iterator(null);
-    
-    int lastPosition = 0;
-    for (int i = 1; ithTerm.next() != null; i++) {
-      stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
-      stemsFreq[i] = (int) ithTerm.totalTermFreq();
-      fieldLength += stemsFreq[i]; 
+    int mask = this.stemTable.length - 1;
 
-      //  Find the position of the last (indexed) term in the
-      //  document, so that the positions array can be created and
-      //  populated later. The last position for each term is the
-      //  largest, so ignore the positions before it.
+    for (int i = 1; i < this.stemsLength; i++) {
+      int slot = hash(this.stems[i]) & mask;
 
-      DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
+      while (this.stemTable[slot] != 0)
+        slot = (slot + 1) & mask;
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
+      this.stemTable[slot] = i;
+      this.stemsCtf[i] = -1;
+      this.stemsDf[i] = -1;
+    }
+  }
+
+  /**
+   *  Fill the data structures from the Lucene term vector.  Stems,
+   *  frequencies and positions are collected in a single pass over
+   *  the term vector.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private void readLuceneTermVector() throws IOException {
+
+    //  Fetch the term vector, if one exists.  If Lucene doesn't have
+    //  a term vector, our TermVector is empty.
 
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
+    Terms luceneTerms = Idx.INDEXREADER.getTermVector(this.docId, this.fieldName);
 
-      lastPosition = Math.max(lastPosition, ithPositions.nextPosition());
+    if (luceneTerms == ((Terms) null)) {
+      return;
     }
 
-    // Create and fill the positions array. Since we have position indexes, the array's size needs 
-    // to be one bigger than the biggest position.
-    positions = new int[lastPosition + 1];
+    ensureStemsCapacity((int) luceneTerms.size() + 1);
+
+    //  The 0'th term indicates a stopword, so stems start at i=1.
+    //  Positions that no stem claims are stopwords.
+
+    TermsEnum ithTerm = luceneTerms.iterator(null);
+    BytesRef term;
 
-    ithTerm = this.luceneTerms.iterator(null);
+    for (int i = 1; (term = ithTerm.next()) != null; i++) {
+      ensureStemsCapacity(i + 1);
+      this.stems[i] = term.utf8ToString();
+      this.stemsFreq[i] = (int) ithTerm.totalTermFreq();
+      this.fieldLength += this.stemsFreq[i];
+      this.stemsLength = i + 1;
 
-    for (int i = 0; ithTerm.next() != null; i++) {
       DocsAndPositionsEnum ithPositions = ithTerm.docsAndPositions(null, null);
 
+      if (ithPositions == null)
+        continue;
+
       ithPositions.nextDoc(); /* Initialize iPositions */
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
+      for (int j = 0; j < this.stemsFreq[i]; j++)
+        setStemAt(ithPositions.nextPosition(), i);
+    }
+  }
+
+  /**
+   *  Fill the data structures from the forward index.  Stem strings
+   *  are shared with the forward index's term table.  If the forward
+   *  index doesn't store positions, they are read from the Lucene term
+   *  vector.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private void readForwardIndex() throws IOException {
+
+    int n = this.forwardIndex.stemsLength(this.docId);
+
+    ensureStemsCapacity(n + 1);
+
+    for (int i = 1; i <= n; i++) {
+      this.termIds[i] = this.forwardIndex.stemId(this.docId, i);
+      this.stems[i] = this.forwardIndex.termString(this.termIds[i]);
+      this.stemsFreq[i] = this.forwardIndex.stemFreq(this.docId, i);
+      this.fieldLength += this.stemsFreq[i];
+    }
+
+    this.stemsLength = n + 1;
+
+    if (! this.forwardIndex.hasPositions()) {
+      readLucenePositions();
+      return;
     }
+
+    int length = this.forwardIndex.positionsLength(this.docId);
+
+    for (int p = 0; p < length; p++)
+      setStemAt(p, this.forwardIndex.stemAt(this.docId, p));
+  }
+
+  /**
+   *  Fill the positions from the Lucene term vector.  The term vector
+   *  and the forward index list a document's stems in the same (term)
+   *  order, so the i'th term of the term vector is stem i.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private void readLucenePositions() throws IOException {
+
+    Terms luceneTerms = Idx.INDEXREADER.getTermVector(this.docId, this.fieldName);
+
+    if (luceneTerms == ((Terms) null)) {
+      return;
+    }
+
+    TermsEnum ithTerm = luceneTerms.iterator(null);
+    DocsAndPositionsEnum ithPositions = null;
+
+    for (int i = 1; ithTerm.next() != null; i++) {
+      ithPositions = ithTerm.docsAndPositions(null, ithPositions);
+
+      if (ithPositions == null)
+        continue;
+
+      ithPositions.nextDoc();
+
+      for (int j = 0; j < this.stemsFreq[i]; j++)
+        setStemAt(ithPositions.nextPosition(), i);
+    }
+  }
+
+  /**
+   *  Grow the per-stem buffers so that they hold at least n entries.
+   *  @param n The required capacity.
+   */
+  private void ensureStemsCapacity(int n) {
+    if (n <= this.stems.length)
+      return;
+
+    int capacity = Math.max(n, 2 * this.stems.length);
+
+    this.stems = Arrays.copyOf(this.stems, capacity);
+    this.stemsFreq = Arrays.copyOf(this.stemsFreq, capacity);
+    this.termIds = Arrays.copyOf(this.termIds, capacity);
+    this.stemsCtf = Arrays.copyOf(this.stemsCtf, capacity);
+    this.stemsDf = Arrays.copyOf(this.stemsDf, capacity);
+  }
+
+  /**
+   *  Record the stem that occurs at a position.  Positions between the
+   *  previous last position and this one are stopwords.
+   *  @param pos A position in the document.
+   *  @param stem The index of the stem.
+   */
+  private void setStemAt(int pos, int stem) {
+    if (pos >= this.positions.length)
+      this.positions = Arrays.copyOf(this.positions, Math.max(pos + 1, 2 * this.positions.length));
+
+    while (this.positionsLength <= pos)
+      this.positions[this.positionsLength++] = 0;
+
+    this.positions[pos] = stem;
+  }
+
+  /**
+   *  Spread the bits of a string's hash code for the stem table.
+   *  @param s A stem string.
+   *  @return The hash value.
+   */
+  private static int hash(String s) {
+    int h = s.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
   }
 
   /**
    *  Get the index of stem in the stems vector, or -1 if the stems
-   *  vector does not contain the stem.  
+   *  vector does not contain the stem.
    *  @param stem The stem to search for.
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
-    
-    for (int s=1; s<this.stems.length; s++)
-      if (stem.equals (this.stems [s]))
-	return s;
-    
+
+    int mask = this.stemTable.length - 1;
+
+    for (int slot = hash(stem) & mask; this.stemTable[slot] != 0; slot = (slot + 1) & mask)
+      if (stem.equals (this.stems [this.stemTable[slot]]))
+	return this.stemTable[slot];
+
     return -1;
   }
 
@@ -137,7 +312,7 @@ public class TermVector {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.positions.length;
+    return this.positionsLength;
   }
 
   /**
@@ -147,7 +322,7 @@ public class TermVector {
    *  @return Index of the stem.
    */
   public int stemAt(int i) {
-    if (i < positions.length)
+    if (i < this.positionsLength)
       return positions[i];
     else
       return -1;
@@ -161,7 +336,9 @@ public class TermVector {
    *  @return The stem frequency (tf)
    */
   public int stemFreq(int i) {
-    if (i < stemsFreq.length)
+    if (i == 0)
+      return 0;
+    else if (i < this.stemsLength)
       return stemsFreq[i];
     else
       return -1;
@@ -173,7 +350,7 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
-    if (i < stems.length)
+    if ((i > 0) && (i < this.stemsLength))
       return stems[i];
     else
       return null;
@@ -187,9 +364,37 @@ public class TermVector {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.stems.length;
+    return this.stemsLength;
+  }
+
+  /**
+   *  Look up the df and ctf of the i'th stem, unless they are already
+   *  known.
+   *  @param i Index of the stem.
+   *  @throws IOException  Error accessing the Lucene index
+   */
+  private void memoizeStats(int i) throws IOException {
+    if (this.stemsDf[i] >= 0)
+      return;
+
+    if (this.forwardIndex != null) {
+      this.stemsCtf[i] = this.forwardIndex.termCtf(this.termIds[i]);
+      this.stemsDf[i] = this.forwardIndex.termDf(this.termIds[i]);
+      return;
+    }
+
+    long[] stats = this.statsCache.get(this.stems[i]);
+
+    if (stats == null) {
+      Term term = new Term(this.fieldName, this.stems[i]);
+      stats = new long[] { Idx.INDEXREADER.totalTermFreq(term), Idx.INDEXREADER.docFreq(term) };
+      this.statsCache.put(this.stems[i], stats);
+    }
+
+    this.stemsCtf[i] = stats[0];
+    this.stemsDf[i] = (int) stats[1];
   }
-  
+
   /**
    * Returns ctf of the i'th stem.
    * @param i Index of the stem.
@@ -197,9 +402,10 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    memoizeStats(i);
+    return this.stemsCtf[i];
   }
-  
+
   /**
    * Returns the df of the i'th stem.
    * @param i Index of the stem.
@@ -207,7 +413,8 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    memoizeStats(i);
+    return this.stemsDf[i];
   }
-  
+
 }
@@ -47,6 +47,20 @@ public class Timer {
     this.hasRun = true;
   }
 
+  /**
+   *  Get the elapsed time of the last run.
+   *  @return The elapsed time in nanoseconds.
+   *  @throws IllegalStateException The timer hasn't been run or is running now.
+   */
+  public long getNanos () {
+
+    if ((! this.hasRun) || this.isRunning)
+      throw new IllegalStateException(
+                "The timer cannot be read unless it has been run and stopped.");
+
+    return this.timeStop - this.timeStart;
+  }
+
   /**
    *  Converts a timing result to a string.
    *  @throws IllegalStateException The timer hasn't been run or is running now.
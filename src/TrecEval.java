@@ -0,0 +1,328 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.math.*;
+import java.util.*;
+
+/**
+ * An in-process evaluator that computes the trec_eval measures that tuning
+ * experiments use, so that a run doesn't have to be written and evaluated by
+ * an external trec_eval process. The relevance judgments (qrels) are read
+ * once; each query is evaluated when its results are added, and the averages
+ * are updated as queries arrive.
+ * <p>
+ * The measures follow trec_eval's definitions:
+ * </p>
+ * <ul>
+ * <li>Results are ranked by score and then by descending document name, the
+ * order in which trec_eval reads a run file (not the order of ScoreList).</li>
+ * <li>A document is relevant if its judgment is at least 1; queries that
+ * aren't in the qrels, or that have no results, aren't evaluated.</li>
+ * <li>map is the average precision at the ranks of the relevant documents,
+ * divided by the number of relevant documents; P_k divides by k even if
+ * fewer than k documents are retrieved; recall_k divides by the number of
+ * relevant documents; ndcg_cut_k uses the judgment as the gain and
+ * log2(rank + 1) as the discount.</li>
+ * <li>The aggregate of num_ret, num_rel and num_rel_ret is the sum;
+ * the aggregate of the other measures is the mean over the evaluated
+ * queries.</li>
+ * </ul>
+ * <p>
+ * Values are printed with trec_eval's "%-22s\t%s\t%6.4f" format, rounded the
+ * way C's printf rounds, so a report can be compared with trec_eval's
+ * output line by line.
+ * </p>
+ */
+public class TrecEval {
+
+	// --------------- Constants and variables ---------------------
+
+	/**
+	 * The cutoffs of the P_k, recall_k and ndcg_cut_k measures.
+	 */
+	private static final int[] P_CUTOFFS = { 5, 10, 20, 30, 100 };
+	private static final int[] RECALL_CUTOFFS = { 10, 20, 100 };
+	private static final int[] NDCG_CUTOFFS = { 5, 10, 20 };
+
+	/**
+	 * Measures whose aggregate is a sum, and which are printed as integers.
+	 */
+	private static final Set<String> COUNTS = new HashSet<String>(
+			Arrays.asList("num_ret", "num_rel", "num_rel_ret"));
+
+	/**
+	 * The judgments of each query: document name to relevance.
+	 */
+	private final Map<String, Map<String, Integer>> qrels = new HashMap<String, Map<String, Integer>>();
+
+	/**
+	 * The measures of each evaluated query, sorted by qid the way trec_eval
+	 * sorts them (by string comparison), whatever order queries are added in.
+	 */
+	private final Map<String, Map<String, Double>> perQuery = new TreeMap<String, Map<String, Double>>();
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * Read relevance judgments in trec_eval's qrels format (qid iteration
+	 * docno relevance).
+	 *
+	 * @param qrelsPath
+	 *            The qrels file.
+	 * @throws IOException
+	 *             Error reading the file.
+	 * @throws IllegalArgumentException
+	 *             A line of the file isn't a judgment.
+	 */
+	public TrecEval(String qrelsPath) throws IOException {
+
+		BufferedReader input = new BufferedReader(new FileReader(qrelsPath));
+
+		try {
+			String line;
+
+			while ((line = input.readLine()) != null) {
+				String[] fields = line.trim().split("\\s+");
+
+				if ((fields.length == 1) && (fields[0].length() == 0)) {
+					continue;
+				}
+
+				if (fields.length != 4) {
+					throw new IllegalArgumentException("Syntax error in qrels line:  " + line);
+				}
+
+				Map<String, Integer> judgments = this.qrels.get(fields[0]);
+
+				if (judgments == null) {
+					judgments = new HashMap<String, Integer>();
+					this.qrels.put(fields[0], judgments);
+				}
+
+				judgments.put(fields[2], Integer.parseInt(fields[3]));
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Evaluate the results of a query.
+	 *
+	 * @param qid
+	 *            The query id.
+	 * @param docnos
+	 *            The names of the retrieved documents.
+	 * @param scores
+	 *            Their scores.
+	 * @return The measures of the query, or null if the query has no
+	 *         judgments or no results.
+	 */
+	public synchronized Map<String, Double> addQuery(String qid, String[] docnos, final double[] scores) {
+
+		Map<String, Integer> judgments = this.qrels.get(qid);
+
+		// A query without results has no lines in the run file, so
+		// trec_eval doesn't evaluate it.
+
+		if ((judgments == null) || (docnos.length == 0)) {
+			return null;
+		}
+
+		// Rank the results the way that trec_eval does.
+
+		final String[] names = docnos;
+		Integer[] order = new Integer[docnos.length];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(scores[b], scores[a]);
+				return (c != 0) ? c : names[b].compareTo(names[a]);
+			}
+		});
+
+		int[] rel = new int[order.length];
+
+		for (int i = 0; i < order.length; i++) {
+			Integer judgment = judgments.get(docnos[order[i]]);
+			rel[i] = (judgment == null) ? 0 : judgment;
+		}
+
+		// The judgments, best first, for the ideal ranking.
+
+		List<Integer> ideal = new ArrayList<Integer>();
+		int numRel = 0;
+
+		for (int judgment : judgments.values()) {
+			if (judgment >= 1) {
+				ideal.add(judgment);
+				numRel++;
+			}
+		}
+
+		Collections.sort(ideal, Collections.reverseOrder());
+
+		// Compute the measures.
+
+		Map<String, Double> m = new LinkedHashMap<String, Double>();
+		int numRelRet = 0;
+		double sumPrecision = 0;
+
+		for (int i = 0; i < rel.length; i++) {
+			if (rel[i] >= 1) {
+				numRelRet++;
+				sumPrecision += (double) numRelRet / (i + 1);
+			}
+		}
+
+		m.put("num_ret", (double) rel.length);
+		m.put("num_rel", (double) numRel);
+		m.put("num_rel_ret", (double) numRelRet);
+		m.put("map", (numRel > 0) ? sumPrecision / numRel : 0.0);
+
+		for (int k : P_CUTOFFS) {
+			m.put("P_" + k, (double) countRelevant(rel, k) / k);
+		}
+
+		for (int k : RECALL_CUTOFFS) {
+			m.put("recall_" + k, (numRel > 0) ? (double) countRelevant(rel, k) / numRel : 0.0);
+		}
+
+		for (int k : NDCG_CUTOFFS) {
+			double dcg = 0;
+			double idcg = 0;
+
+			for (int i = 0; i < Math.min(k, rel.length); i++) {
+				if (rel[i] > 0) {
+					dcg += rel[i] / log2(i + 2);
+				}
+			}
+
+			for (int i = 0; i < Math.min(k, ideal.size()); i++) {
+				idcg += ideal.get(i) / log2(i + 2);
+			}
+
+			m.put("ndcg_cut_" + k, (idcg > 0) ? dcg / idcg : 0.0);
+		}
+
+		// Remember the measures. A query that is evaluated again replaces
+		// its earlier measures.
+
+		this.perQuery.put(qid, m);
+		return m;
+	}
+
+	/**
+	 * Get the aggregate measures of the queries that have been evaluated so
+	 * far. The measures are summed in qid order, as trec_eval sums them, so
+	 * the aggregate doesn't depend on the order that queries were added in.
+	 *
+	 * @return The aggregate measures.
+	 */
+	public synchronized Map<String, Double> getAggregate() {
+
+		Map<String, Double> totals = new LinkedHashMap<String, Double>();
+
+		for (Map<String, Double> q : this.perQuery.values()) {
+			for (Map.Entry<String, Double> e : q.entrySet()) {
+				Double total = totals.get(e.getKey());
+
+				totals.put(e.getKey(), ((total == null) ? 0.0 : total) + e.getValue());
+			}
+		}
+
+		Map<String, Double> m = new LinkedHashMap<String, Double>();
+		int n = this.perQuery.size();
+
+		for (Map.Entry<String, Double> e : totals.entrySet()) {
+			m.put(e.getKey(), COUNTS.contains(e.getKey()) ? e.getValue() : e.getValue() / n);
+		}
+
+		return m;
+	}
+
+	/**
+	 * Get a report in the format of trec_eval -q: the measures of each
+	 * evaluated query, in qid order, and then the aggregate measures
+	 * ("all").
+	 *
+	 * @return The report.
+	 */
+	public synchronized String getReport() {
+
+		StringBuilder report = new StringBuilder();
+
+		for (Map.Entry<String, Map<String, Double>> q : this.perQuery.entrySet()) {
+			format(report, q.getKey(), q.getValue());
+		}
+
+		report.append(String.format("%-22s\t%s\t%d\n", "num_q", "all", this.perQuery.size()));
+		format(report, "all", this.getAggregate());
+
+		return report.toString();
+	}
+
+	/**
+	 * Format measures in trec_eval's format.
+	 *
+	 * @param report
+	 *            Output: the formatted measures are appended.
+	 * @param qid
+	 *            The query id, or "all".
+	 * @param m
+	 *            The measures.
+	 */
+	private static void format(StringBuilder report, String qid, Map<String, Double> m) {
+
+		for (Map.Entry<String, Double> e : m.entrySet()) {
+			String value;
+
+			if (COUNTS.contains(e.getKey())) {
+				value = Long.toString(Math.round(e.getValue()));
+			} else {
+
+				// printf rounds the exact binary value, half to even.
+
+				value = new BigDecimal(e.getValue()).setScale(4, RoundingMode.HALF_EVEN).toPlainString();
+			}
+
+			report.append(String.format("%-22s\t%s\t%s\n", e.getKey(), qid, value));
+		}
+	}
+
+	/**
+	 * Count the relevant documents in the top k ranks.
+	 *
+	 * @param rel
+	 *            The judgments of the ranked documents.
+	 * @param k
+	 *            The cutoff.
+	 * @return The number of relevant documents.
+	 */
+	private static int countRelevant(int[] rel, int k) {
+
+		int count = 0;
+
+		for (int i = 0; i < Math.min(k, rel.length); i++) {
+			if (rel[i] >= 1) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @param x
+	 *            A positive number.
+	 * @return The base 2 logarithm of x.
+	 */
+	private static double log2(double x) {
+		return Math.log(x) / Math.log(2.0);
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ * Checks that TrecEval reports queries in qid order, as trec_eval -q does,
+ * whatever order they are evaluated in. Run it with the search engine
+ * classes on the classpath; it exits with an error if a check fails.
+ */
+public class TrecEvalTest {
+
+	// --------------- Methods ---------------------------------------
+
+	/**
+	 * @param args
+	 *            Ignored.
+	 * @throws Exception
+	 *             A check failed, or the qrels file can't be written.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		File qrels = File.createTempFile("qrels", ".txt");
+		qrels.deleteOnExit();
+
+		Writer output = new FileWriter(qrels);
+
+		try {
+			for (String qid : new String[] { "1", "2", "10" }) {
+				output.write(qid + " 0 a 1\n" + qid + " 0 b 0\n" + qid + " 0 c 2\n");
+			}
+		} finally {
+			output.close();
+		}
+
+		String[] docnos = { "a", "b", "c" };
+
+		// Added in qid order and out of order, the reports must be the
+		// same, with the queries in trec_eval's (string) order.
+
+		TrecEval inOrder = new TrecEval(qrels.getPath());
+		TrecEval outOfOrder = new TrecEval(qrels.getPath());
+
+		inOrder.addQuery("1", docnos, new double[] { 3, 2, 1 });
+		inOrder.addQuery("10", docnos, new double[] { 1, 2, 3 });
+		inOrder.addQuery("2", docnos, new double[] { 2, 3, 1 });
+
+		outOfOrder.addQuery("2", docnos, new double[] { 2, 3, 1 });
+		outOfOrder.addQuery("10", docnos, new double[] { 1, 2, 3 });
+		outOfOrder.addQuery("1", docnos, new double[] { 3, 2, 1 });
+
+		String report = outOfOrder.getReport();
+
+		check(report.equals(inOrder.getReport()), "The report depends on the order that queries were added in");
+
+		int q1 = report.indexOf("\t1\t");
+		int q10 = report.indexOf("\t10\t");
+		int q2 = report.indexOf("\t2\t");
+		int all = report.indexOf("\tall\t");
+
+		check((0 <= q1) && (q1 < q10) && (q10 < q2) && (q2 < all), "Queries aren't reported in qid order:\n" + report);
+
+		System.out.println("TrecEvalTest:  OK");
+	}
+
+	/**
+	 * Fail if a condition is false.
+	 *
+	 * @param condition
+	 *            The condition.
+	 * @param message
+	 *            The failure message.
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}